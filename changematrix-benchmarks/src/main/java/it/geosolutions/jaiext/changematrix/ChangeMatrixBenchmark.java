@@ -0,0 +1,241 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of the "ChangeMatrix" operation, i.e. of {@link ChangeMatrixOpImage}, over a pair of synthetic classified images (see
+ * SyntheticClassifiedImage) held in memory, so that neither I/O nor the generation of the images is measured.
+ * <p>
+ * Each invocation creates a new operation and computes all of its tiles, <code>threads</code> at a time, the destination tiles being consumed
+ * and no tile cache being involved. The benchmarks run across data types, class counts, ROI on/off, tile sizes and thread counts, reporting
+ * both the throughput and the percentiles of the time needed for a whole image. JMH needs at least Java 7, so the module is only built in
+ * the <code>benchmarks</code> profile. Build and run with:
+ *
+ * <pre>
+ * mvn -Pbenchmarks -pl changematrix-benchmarks -am package
+ * java -jar changematrix-benchmarks/target/benchmarks.jar
+ * </pre>
+ *
+ * Results are written as JSON to <code>changematrix-jmh.json</code> unless other <code>-rf</code> / <code>-rff</code> options are given; any
+ * other JMH option can be used as well, e.g. <code>-p dataType=byte -p threads=1,8</code> to run a subset of the parameters.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChangeMatrixBenchmark {
+
+    /** Size in pixels of the side of the images. */
+    @Param({ "4096" })
+    public int size;
+
+    /** Data type of the images, one of byte, short or int. */
+    @Param({ "byte", "short", "int" })
+    public String dataType;
+
+    /** Number of classes, at most 256 so that all the data types can hold them. */
+    @Param({ "8", "44", "250" })
+    public int classes;
+
+    /** Whether an elliptic ROI inscribed in the images is used. */
+    @Param({ "false", "true" })
+    public boolean roi;
+
+    /** Size in pixels of the side of the tiles. */
+    @Param({ "256", "512", "1024" })
+    public int tileSize;
+
+    /** Number of threads computing the tiles. */
+    @Param({ "1", "4", "8" })
+    public int threads;
+
+    private RenderedImage reference;
+
+    private RenderedImage now;
+
+    private ROI roiShape;
+
+    private Set<Integer> classSet;
+
+    private RenderingHints hints;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // same patches and change rate as the SpeedChangeMatrixTest synthetic data
+        reference = load(SyntheticClassifiedImage.reference(size, size, tileSize, tileSize,
+                classes, 20, 0.05, 2000L));
+        now = load(SyntheticClassifiedImage.now(size, size, tileSize, tileSize, classes, 20,
+                0.05, 2000L));
+        roiShape = roi ? new ROIShape(new Ellipse2D.Double(0, 0, size, size)) : null;
+
+        classSet = new HashSet<Integer>();
+        for (int i = 0; i < classes; i++) {
+            classSet.add(i);
+        }
+
+        // keep the destination tiles out of the shared cache
+        hints = new RenderingHints(JAI.KEY_TILE_CACHE, JAI.createTileCache(0L));
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Converts a synthetic image to the benchmarked data type and copies it in memory.
+     */
+    private RenderedImage load(final RenderedImage synthetic) {
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("Format");
+        pbj.addSource(synthetic);
+        pbj.setParameter("dataType", dataType(dataType));
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileWidth(tileSize).setTileHeight(tileSize);
+        final RenderedOp formatted = JAI.create("Format", pbj, new RenderingHints(
+                JAI.KEY_IMAGE_LAYOUT, layout));
+
+        final TiledImage image = new TiledImage(formatted, tileSize, tileSize);
+        for (int y = image.getMinTileY(); y <= image.getMaxTileY(); y++) {
+            for (int x = image.getMinTileX(); x <= image.getMaxTileX(); x++) {
+                image.getTile(x, y);
+            }
+        }
+        formatted.dispose();
+        return image;
+    }
+
+    private static int dataType(final String name) {
+        if ("byte".equals(name)) {
+            return DataBuffer.TYPE_BYTE;
+        } else if ("short".equals(name)) {
+            return DataBuffer.TYPE_SHORT;
+        } else if ("int".equals(name)) {
+            return DataBuffer.TYPE_INT;
+        }
+        throw new IllegalArgumentException("Unsupported data type: " + name);
+    }
+
+    /**
+     * Computes the change matrix, and the change flags, of the whole images.
+     */
+    @Benchmark
+    public ChangeMatrix changeMatrix(final Blackhole blackhole) throws Exception {
+        final ChangeMatrix cm = new ChangeMatrix(classSet);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.setParameter("result", cm);
+        if (roiShape != null) {
+            pbj.setParameter("roi", roiShape);
+        }
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+
+        final List<Callable<Raster>> tiles = new ArrayList<Callable<Raster>>();
+        for (int y = result.getMinTileY(); y <= result.getMaxTileY(); y++) {
+            for (int x = result.getMinTileX(); x <= result.getMaxTileX(); x++) {
+                final int tileX = x;
+                final int tileY = y;
+                tiles.add(new Callable<Raster>() {
+
+                    @Override
+                    public Raster call() {
+                        return result.getTile(tileX, tileY);
+                    }
+                });
+            }
+        }
+        for (Future<Raster> tile : executor.invokeAll(tiles)) {
+            blackhole.consume(tile.get());
+        }
+
+        result.dispose();
+        cm.freeze();
+        blackhole.consume(cm.retrievePairOccurrences(0, 0));
+        return cm;
+    }
+
+    /**
+     * Runs the benchmarks, writing the results as JSON unless otherwise requested on the command line.
+     */
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        final ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (options.getIncludes().isEmpty()) {
+            builder.include(ChangeMatrixBenchmark.class.getSimpleName());
+        }
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue()) {
+            builder.result("changematrix-jmh.json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
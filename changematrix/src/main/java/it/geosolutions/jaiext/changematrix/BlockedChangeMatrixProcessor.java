@@ -0,0 +1,345 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
+import javax.media.jai.RasterFormatTag;
+
+/**
+ * Computes a complete {@link ChangeMatrix} for two images on the CPU with the blocked map/reduce scheme of the CUDA "changemap" and
+ * "changemat" kernels.
+ * <p>
+ * The map stage splits the tiles of the reference image into blocks of at most {@link #getBlockSize()} pixels per side, and counts the
+ * transitions of each block into its own table of primitive counters. The reduce stage sums the block tables pairwise along a binary tree
+ * over the blocks, the root being merged into the {@link ChangeMatrix} once. Both stages are run by {@link #getParallelism()} workers
+ * submitted to a caller supplied {@link Executor}, e.g. a fixed thread pool or a fork-join pool: each worker claims the next block from a
+ * shared cursor and, once done with it, climbs the tree for as long as it is the second of two siblings to complete, so that the reduction
+ * proceeds while blocks are still being counted and only a few tables are alive at any time. No destination raster is produced. Usage
+ * example:
+ *
+ * <pre>
+ * final BlockedChangeMatrixProcessor processor = new BlockedChangeMatrixProcessor(reference, now, roi, cm);
+ * processor.setBlockSize(256);
+ * processor.setParallelism(24);
+ * processor.compute(executor);
+ * </pre>
+ *
+ * @see ChangeMatrixProcessor
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class BlockedChangeMatrixProcessor {
+
+    private final PlanarImage reference;
+
+    private final PlanarImage now;
+
+    private final ROI roi;
+
+    private final ChangeMatrix result;
+
+    private final TransitionCounter counter;
+
+    private final RasterFormatTag[] formatTags;
+
+    /** Maximum size in pixels of the side of a block. */
+    private int blockSize = 512;
+
+    /** Number of workers submitted to the executor. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructor
+     *
+     * @param reference the image representing the situation at time T0
+     * @param now the image representing the situation at time T1 > T0
+     * @param roi an optional {@code ROI} or {@code null}
+     * @param result the {@link ChangeMatrix} collecting the changes
+     * @throws IllegalArgumentException in case the images cannot be compared or the ROI does not intersect them
+     */
+    public BlockedChangeMatrixProcessor(final RenderedImage reference, final RenderedImage now,
+            final ROI roi, final ChangeMatrix result) {
+        if (result == null) {
+            throw new IllegalArgumentException("The provided result is null");
+        }
+        ChangeMatrixRIF.checkSources(reference, now);
+        this.reference = PlanarImage.wrapRenderedImage(reference);
+        this.now = PlanarImage.wrapRenderedImage(now);
+        this.roi = ChangeMatrixRIF.checkROI(roi, reference);
+        this.result = result;
+        this.counter = new TransitionCounter(result, reference.getSampleModel().getDataType());
+        // we have no destination, the now image is used in its place to get the tags of both sources
+        this.formatTags = RasterAccessor.findCompatibleTags(new RenderedImage[] { reference }, now);
+    }
+
+    /**
+     * @return the maximum size in pixels of the side of a block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the maximum size in pixels of the side of a block, which defaults to 512. Blocks never cross the tiles of the reference image.
+     *
+     * @param blockSize the maximum size of the side of a block, must be positive
+     */
+    public void setBlockSize(final int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the number of workers submitted to the executor
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of workers submitted to the executor, which defaults to the number of available processors.
+     *
+     * @param parallelism the number of workers, must be positive
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Computes the changes between the two images into the {@link ChangeMatrix}, waiting for all the blocks to be counted and reduced.
+     *
+     * @param executor the {@link Executor} running the workers, or <code>null</code> to run them in the calling thread
+     * @throws InterruptedException if interrupted while waiting for the workers to complete
+     * @throws IllegalStateException if a worker failed
+     */
+    public void compute(final Executor executor) throws InterruptedException {
+        final Computation computation = new Computation(getBlocks());
+        computation.start(executor != null ? executor : ChangeMatrixProcessor.CALLER_RUNS);
+        computation.await();
+    }
+
+    /**
+     * Retrieves the blocks to count, splitting each tile of the reference image, in tile order.
+     *
+     * @return the blocks to count
+     */
+    List<Rectangle> getBlocks() {
+        final Rectangle bounds = reference.getBounds();
+        final List<Rectangle> blocks = new ArrayList<Rectangle>();
+        for (int tileY = reference.getMinTileY(); tileY <= reference.getMaxTileY(); tileY++) {
+            for (int tileX = reference.getMinTileX(); tileX <= reference.getMaxTileX(); tileX++) {
+                final Rectangle tile = new Rectangle(reference.tileXToX(tileX),
+                        reference.tileYToY(tileY), reference.getTileWidth(),
+                        reference.getTileHeight()).intersection(bounds);
+                for (int y = tile.y; y < tile.y + tile.height; y += blockSize) {
+                    for (int x = tile.x; x < tile.x + tile.width; x += blockSize) {
+                        final Rectangle block = new Rectangle(x, y, Math.min(blockSize, tile.x
+                                + tile.width - x), Math.min(blockSize, tile.y + tile.height - y));
+                        if (roi == null || roi.intersects(block)) {
+                            blocks.add(block);
+                        }
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Counts the transitions of a block into the provided table.
+     */
+    private void countBlock(final Rectangle block, final TransitionTable table) {
+        final ChangeMatrixStatistics statistics = result.getStatistics();
+        final long start = statistics != null ? System.nanoTime() : 0;
+
+        final RasterAccessor s1 = new RasterAccessor(data(reference, block), block,
+                formatTags[0], reference.getColorModel());
+        final RasterAccessor s2 = new RasterAccessor(data(now, block), block, formatTags[1],
+                now.getColorModel());
+
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(block)) {
+            spans = ROISpans.create(roi, block);
+        }
+
+        if (TransitionCounter.identical(s1, s2)) {
+            counter.countUnchanged(s1, spans, table);
+        } else {
+            counter.count(s1, s2, null, spans, table);
+        }
+        if (statistics != null) {
+            statistics.tileComputed(block, spans, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Retrieves the data of an image over a block, sharing the tile containing the block when there is one rather than copying it.
+     */
+    private static Raster data(final PlanarImage image, final Rectangle block) {
+        final int tileX = image.XToTileX(block.x);
+        final int tileY = image.YToTileY(block.y);
+        if (tileX == image.XToTileX(block.x + block.width - 1)
+                && tileY == image.YToTileY(block.y + block.height - 1)) {
+            return image.getTile(tileX, tileY);
+        }
+        return image.getData(block);
+    }
+
+    /**
+     * The state of a running computation, shared by its workers.
+     * <p>
+     * The reduction tree has the blocks as its leaves, level <code>l</code> holding the sums of <code>2^l</code> consecutive blocks. The first
+     * of two siblings to complete parks its table into the slot of their parent and leaves, the second one takes it, adds it to its own table
+     * and carries on with the parent. A node without a sibling goes up unchanged.
+     */
+    private final class Computation {
+
+        private final List<Rectangle> blocks;
+
+        /** Index of the next block to count. */
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        /** Number of workers still running. */
+        private final AtomicInteger running = new AtomicInteger();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        /** For each level above the blocks, the tables parked by the first completed child of each node. */
+        private final List<AtomicReferenceArray<TransitionTable>> parked = new ArrayList<AtomicReferenceArray<TransitionTable>>();
+
+        Computation(final List<Rectangle> blocks) {
+            this.blocks = blocks;
+            // level l + 1 is made of ceil(n / 2^(l + 1)) nodes, the last level having a single one
+            for (long width = 1; width < blocks.size(); width <<= 1) {
+                final int nodes = (int) ((blocks.size() + 2 * width - 1) / (2 * width));
+                parked.add(new AtomicReferenceArray<TransitionTable>(nodes));
+            }
+        }
+
+        void start(final Executor executor) {
+            final int workers = Math.min(parallelism, blocks.size());
+            if (workers == 0) {
+                done.countDown();
+                return;
+            }
+            running.set(workers);
+            for (int i = 0; i < workers; i++) {
+                try {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            work();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    failure.compareAndSet(null, e);
+                    // account for this worker and for the ones we are not going to submit
+                    for (int j = i; j < workers; j++) {
+                        workerDone();
+                    }
+                    return;
+                }
+            }
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+            final Throwable t = failure.get();
+            if (t != null) {
+                throw new IllegalStateException("Unable to compute the change matrix", t);
+            }
+        }
+
+        private void work() {
+            try {
+                // a table given back by the reduction, reused for the next block
+                TransitionTable spare = null;
+                int index;
+                while (failure.get() == null && (index = cursor.getAndIncrement()) < blocks.size()) {
+                    final TransitionTable table = spare != null ? spare : result
+                            .createTransitionTable();
+                    countBlock(blocks.get(index), table);
+                    spare = reduce(index, table);
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                workerDone();
+            }
+        }
+
+        /**
+         * Climbs the reduction tree from a block.
+         *
+         * @return a cleared table that can be reused, or <code>null</code>
+         */
+        private TransitionTable reduce(int index, TransitionTable table) {
+            TransitionTable spare = null;
+            for (int level = 0; level < parked.size(); level++) {
+                final int sibling = index ^ 1;
+                index >>= 1;
+                if (((long) sibling << level) >= blocks.size()) {
+                    // no sibling, go up unchanged
+                    continue;
+                }
+                final AtomicReferenceArray<TransitionTable> slots = parked.get(level);
+                if (slots.compareAndSet(index, null, table)) {
+                    // first to complete, the sibling will take it from here
+                    return spare;
+                }
+                final TransitionTable other = slots.getAndSet(index, null);
+                table.addAll(other);
+                other.clear();
+                spare = other;
+            }
+            // root of the tree
+            result.merge(table);
+            table.clear();
+            return table;
+        }
+
+        private void workerDone() {
+            if (running.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The binary format of a {@link ChangeMatrix}, used to move partial results between JVMs.
+ * <p>
+ * The layout is:
+ * <ul>
+ * <li>the 4 bytes magic number <code>CMX1</code></li>
+ * <li>the number of classes, followed by the classes sorted in ascending order, each one as zig-zag encoded difference from the previous one</li>
+ * <li>the number of non zero cells, followed by each cell as difference from the previous one and by its counter. Cells are the flat, row
+ * major, indexes of the pairs in the sorted classes, in ascending order.</li>
+ * </ul>
+ * All the numbers are unsigned variable length integers, 7 bits per byte, least significant group first. Sparse matrices therefore take a few
+ * bytes per non zero cell. Nothing beyond the end of a matrix is ever read, so several matrices can be written to, and read back from, the same
+ * stream.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class ChangeMatrixCodec {
+
+    /** "CMX" followed by the format version. */
+    private static final int MAGIC = 0x434D5801;
+
+    private ChangeMatrixCodec() {
+    }
+
+    /**
+     * Writes a {@link ChangeMatrix} into a stream, which is flushed but not closed.
+     *
+     * @param matrix the {@link ChangeMatrix} to write
+     * @param out the stream to write to
+     * @throws IOException in case the stream cannot be written
+     */
+    static void write(final ChangeMatrix matrix, final OutputStream out) throws IOException {
+        final int[] classes = matrix.getClasses();
+        final int n = classes.length;
+        final int[] sorted = classes.clone();
+        Arrays.sort(sorted);
+        final int[] rank = new int[n];
+        for (int i = 0; i < n; i++) {
+            rank[i] = Arrays.binarySearch(sorted, classes[i]);
+        }
+
+        // non zero cells, remapped to the sorted classes and sorted for delta encoding
+        final TransitionTable table = matrix.snapshot();
+        final long[] cells = new long[table.size()];
+        final long[] counts = new long[cells.length];
+        final int size = table.copyTo(cells, counts);
+        for (int k = 0; k < size; k++) {
+            cells[k] = rank[(int) (cells[k] % n)] + (long) rank[(int) (cells[k] / n)] * n;
+        }
+        sort(cells, counts, size);
+
+        writeInt(out, MAGIC);
+        writeVarLong(out, n);
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            final long delta = sorted[i] - previous;
+            writeVarLong(out, (delta << 1) ^ (delta >> 63));
+            previous = sorted[i];
+        }
+        writeVarLong(out, size);
+        previous = 0;
+        for (int k = 0; k < size; k++) {
+            writeVarLong(out, cells[k] - previous);
+            writeVarLong(out, counts[k]);
+            previous = cells[k];
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a {@link ChangeMatrix} from a stream, which is not closed.
+     *
+     * @param in the stream to read from
+     * @return the {@link ChangeMatrix} read from the stream
+     * @throws IOException in case the stream cannot be read or does not contain a {@link ChangeMatrix}
+     */
+    static ChangeMatrix read(final InputStream in) throws IOException {
+        if (readInt(in) != MAGIC) {
+            throw new IOException("The stream does not contain a change matrix");
+        }
+        final long n = readVarLong(in);
+        if (n <= 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Invalid number of classes: " + n);
+        }
+        // grown as the classes are actually read, so that a corrupt count ends with an
+        // EOFException rather than with a huge allocation
+        int[] sorted = new int[(int) Math.min(n, 1024)];
+        final Set<Integer> classes = new LinkedHashSet<Integer>();
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            final long zigzag = readVarLong(in);
+            final long delta = (zigzag >>> 1) ^ -(zigzag & 1);
+            if (i > 0 && delta <= 0) {
+                throw new IOException("The classes are not sorted in ascending order");
+            }
+            previous += delta;
+            if (previous < Integer.MIN_VALUE || previous > Integer.MAX_VALUE) {
+                throw new IOException("Invalid class: " + previous);
+            }
+            if (i == sorted.length) {
+                sorted = Arrays.copyOf(sorted, (int) Math.min(n, 2L * sorted.length));
+            }
+            sorted[i] = (int) previous;
+            classes.add(sorted[i]);
+        }
+        final ChangeMatrix matrix = new ChangeMatrix(classes);
+
+        final long size = readVarLong(in);
+        final TransitionTable table = matrix.createTransitionTable();
+        previous = 0;
+        for (long k = 0; k < size; k++) {
+            final long cell = previous + readVarLong(in);
+            if (cell < previous || cell >= n * n) {
+                throw new IOException("Invalid cell: " + cell);
+            }
+            final int row = matrix.indexOf(sorted[(int) (cell / n)]);
+            final int col = matrix.indexOf(sorted[(int) (cell % n)]);
+            table.add(row, col, readVarLong(in));
+            previous = cell;
+        }
+        matrix.merge(table);
+        return matrix;
+    }
+
+    private static void writeInt(final OutputStream out, final int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(final InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | readByte(in);
+        }
+        return value;
+    }
+
+    private static void writeVarLong(final OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static int readByte(final InputStream in) throws IOException {
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of the change matrix stream");
+        }
+        return b;
+    }
+
+    /**
+     * Sorts the cells in ascending order, moving their counters along (heap sort, no boxing).
+     */
+    private static void sort(final long[] cells, final long[] counts, final int size) {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(cells, counts, i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(cells, counts, 0, end);
+            siftDown(cells, counts, 0, end);
+        }
+    }
+
+    private static void siftDown(final long[] cells, final long[] counts, int i, final int size) {
+        while (true) {
+            int largest = i;
+            final int left = 2 * i + 1;
+            final int right = left + 1;
+            if (left < size && cells[left] > cells[largest]) {
+                largest = left;
+            }
+            if (right < size && cells[right] > cells[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(cells, counts, i, largest);
+            i = largest;
+        }
+    }
+
+    private static void swap(final long[] cells, final long[] counts, final int i, final int j) {
+        final long cell = cells[i];
+        cells[i] = cells[j];
+        cells[j] = cell;
+        final long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+    }
+}
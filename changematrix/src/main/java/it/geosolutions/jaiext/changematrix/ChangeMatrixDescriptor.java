@@ -17,13 +17,19 @@
  */
 package it.geosolutions.jaiext.changematrix;
 
+import java.awt.image.RenderedImage;
 import java.awt.image.renderable.ParameterBlock;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.media.jai.OperationDescriptorImpl;
 import javax.media.jai.ROI;
@@ -82,6 +88,20 @@ import javax.media.jai.registry.RenderedRegistryMode;
  * <td>null</td>
  * <td>The {@link ChangeMatrix} object to collect the changes.</td>
  * </tr>
+ * <tr>
+ * <td>packedMask</td>
+ * <td>Boolean</td>
+ * <td>false</td>
+ * <td>Whether to write the change flags as a 1 bit per pixel mask, backed by a {@code MultiPixelPackedSampleModel}, rather than in the data type
+ * of the sources</td>
+ * </tr>
+ * <tr>
+ * <td>transitionCodes</td>
+ * <td>Boolean</td>
+ * <td>false</td>
+ * <td>Whether to write in the destination the transition code of each pixel, see {@link ChangeMatrix#getTransitionCode(int, int)}, rather than
+ * the change flags. Cannot be combined with packedMask.</td>
+ * </tr>
  * </table>
  * 
  * @author Simone Giannecchini, GeoSolutions
@@ -91,6 +111,23 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
 
     /**
      * This class is used to capture the changes in classes between two images.
+     * <p>
+     * Classes are resolved to a dense index through a direct lookup array whenever the span between the smallest and the largest class fits a
+     * byte/short/ushort domain, falling back to a map only for wide integer domains. Counters are stored in a single flat array indexed by
+     * {@code row * classesNumber + col}, so registering a pair does not box and does not chase per-cell objects. When more than
+     * {@link #MAX_DENSE_CLASSES} classes are provided, e.g. parcel or soil unit IDs, the counters are instead kept in a primitive open addressing
+     * hash table keyed by the packed cell, so that only the pairs actually hit take space.
+     * <p>
+     * The "ChangeMatrix" operation publishes a partial result for each tile it computes, keyed by the tile index. A tile computed again, e.g.
+     * because it was evicted from the tile cache and requested once more, replaces its previous partial result instead of adding to it. The
+     * partial results are assembled lazily, when the matrix is read.
+     * <p>
+     * An optional remapping from the raw values found in the images to the classes of the matrix, e.g. from the CORINE level 3 codes to the
+     * level 1 ones, can be provided at construction time. It is folded into the lookup array, so that mapping and aggregation cost a single
+     * load per pixel and no separate "Lookup" pass over the sources is needed for each aggregation level.
+     * <p>
+     * Matrices computed separately, e.g. on different strips of the same images on different machines, can be combined through
+     * {@link #merge(ChangeMatrix)}, after being moved around with {@link #write(OutputStream)} and {@link #read(InputStream)}.
      * 
      * @author Simone Giannecchini, GeoSolutions SAS
      */
@@ -99,19 +136,55 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
         /**
          * This one is used to signal this class that we should not update the internal counters any longer.
          */
-        private boolean frozen = false;
+        private volatile boolean frozen = false;
+
+        /** The statistics collecting the metrics of the computations, <code>null</code> if not collected. */
+        private volatile ChangeMatrixStatistics statistics;
 
         /** Used to signal non existing values in the results. */
         public static final long NO_VALUE = -1;
 
-        /** Mappings between real-world classes and indexes in the sparse matrix */
-        private Map<Integer, Integer> classesMappings = new HashMap<Integer, Integer>();
+        /** Used to signal a class which is not part of the set of classes we register changes for. */
+        static final int NO_CLASS = -1;
+
+        /** Largest span of class values that we resolve through a direct lookup array (covers byte, short and ushort domains). */
+        static final int MAX_LOOKUP_RANGE = 1 << 16;
+
+        /** Largest number of classes for which the counters are stored densely, i.e. all the classesNumber * classesNumber of them. */
+        static final int MAX_DENSE_CLASSES = 256;
+
+        /** Real-world classes, in index order. */
+        private final int[] classes;
+
+        /** Smallest class value, used as offset into {@link #lookup}. */
+        private final int lookupOffset;
+
+        /** Direct lookup from (class - lookupOffset) to index in the matrix, {@link #NO_CLASS} for unknown classes. <code>null</code> for wide domains. */
+        private final int[] lookup;
+
+        /** Mappings between real-world classes and indexes in the matrix, only used when the classes span is too wide for {@link #lookup} */
+        private final ClassIndexTable classesMappings;
+
+        /** Mappings between classes and indexes in the matrix, bypassing the remapping. <code>null</code> when no remapping was provided. */
+        private final ClassIndexTable classIndexes;
 
-        /** Sparse matrix to hold the results */
-        private List<AtomicLong> matrix;
+        /** Flat matrix to hold the results, row major with the reference class as row. <code>null</code> when the matrix is sparse. */
+        private final AtomicLongArray matrix;
+
+        /** Counters keyed by the flat, row major, cell, <code>null</code> when the matrix is dense. Guarded by itself. */
+        private final SparseCounters sparse;
 
         /** Number of classes. */
-        private int classesNumber;
+        private final int classesNumber;
+
+        /** Partial results of the tiles computed so far. */
+        private final Map<TileKey, TilePartial> tiles = new HashMap<TileKey, TilePartial>();
+
+        /** The partial results of the tiles summed together, <code>null</code> when to be assembled again. Guarded by {@link #tiles}. */
+        private long[] assembled;
+
+        /** Same as {@link #assembled}, for a sparse matrix. Guarded by {@link #tiles}. */
+        private SparseCounters assembledSparse;
 
         /**
          * Constructor
@@ -119,6 +192,20 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
          * @param classes the {@link Set} of {@link Integer} classes to register changes for
          */
         public ChangeMatrix(Set<Integer> classes) {
+            this(classes, null);
+        }
+
+        /**
+         * Constructor
+         * <p>
+         * The raw values found in the images are mapped to the classes through the provided remapping before being registered, raw values not
+         * being remapped are used as they are. Raw values remapped to <code>null</code> or to a value which is not among the classes are
+         * ignored. Once the matrix is built, classes are used to read it, see {@link #retrievePairOccurrences(int, int)}.
+         * 
+         * @param classes the {@link Set} of {@link Integer} classes to register changes for
+         * @param remapping the remapping from raw values to classes, or <code>null</code> if the raw values are the classes
+         */
+        public ChangeMatrix(Set<Integer> classes, Map<Integer, Integer> remapping) {
             // checks
             if (classes == null) {
                 throw new IllegalArgumentException("The provided classes set is null");
@@ -128,24 +215,109 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
             }
 
             // build the mappings and the matrix to hold the result
-
-            // matrix as list
             classesNumber = classes.size();
-            matrix = new ArrayList<AtomicLong>(classesNumber * classesNumber);
-            for (int i = classesNumber * classesNumber - 1; i >= 0; i--) {
-                matrix.add(new AtomicLong(0));
+            this.classes = new int[classesNumber];
+            final Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+            int k = 0;
+            for (Integer clazz : classes) {
+                if (clazz == null) {
+                    throw new IllegalArgumentException("The provided classes set contains a null class");
+                }
+                indexes.put(clazz, k);
+                this.classes[k++] = clazz.intValue();
+            }
+
+            // raw values to indexes, remapping included
+            final Map<Integer, Integer> raw;
+            if (remapping == null) {
+                raw = indexes;
+                classIndexes = null;
+            } else {
+                raw = new HashMap<Integer, Integer>(indexes);
+                for (Map.Entry<Integer, Integer> entry : remapping.entrySet()) {
+                    if (entry.getKey() == null) {
+                        throw new IllegalArgumentException("The provided remapping contains a null value");
+                    }
+                    final Integer index = entry.getValue() != null ? indexes.get(entry.getValue())
+                            : null;
+                    raw.put(entry.getKey(), index != null ? index : NO_CLASS);
+                }
+                classIndexes = new ClassIndexTable(indexes);
+            }
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (Integer value : raw.keySet()) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
             }
 
             // mappings
-            int k = 0;
-            for (Integer clazz : classes) {
-                classesMappings.put(clazz, k++);
+            lookupOffset = min;
+            if ((long) max - (long) min < MAX_LOOKUP_RANGE) {
+                lookup = new int[max - min + 1];
+                Arrays.fill(lookup, NO_CLASS);
+                for (Map.Entry<Integer, Integer> entry : raw.entrySet()) {
+                    lookup[entry.getKey() - min] = entry.getValue();
+                }
+                classesMappings = null;
+            } else {
+                lookup = null;
+                classesMappings = new ClassIndexTable(raw);
+            }
+
+            // matrix as flat array, or as hash table for large class sets
+            if (classesNumber <= MAX_DENSE_CLASSES) {
+                matrix = new AtomicLongArray(classesNumber * classesNumber);
+                sparse = null;
+            } else {
+                matrix = null;
+                sparse = new SparseCounters(classesNumber);
+            }
+        }
+
+        /**
+         * Adds to the counter of a cell of the shared matrix.
+         */
+        private void addToCell(final long cell, final long delta) {
+            if (matrix != null) {
+                matrix.addAndGet((int) cell, delta);
+            } else {
+                synchronized (sparse) {
+                    sparse.add(cell, delta);
+                }
+            }
+        }
+
+        /**
+         * Resolves a raw value, as found in the images, to the index in the matrix of its class.
+         * 
+         * @param clazz the raw value
+         * @return the index of the class, or {@link #NO_CLASS} if we were not asked to register changes for it
+         */
+        final int indexOf(final int clazz) {
+            if (lookup != null) {
+                final int i = clazz - lookupOffset;
+                return i >= 0 && i < lookup.length ? lookup[i] : NO_CLASS;
             }
+            return classesMappings.get(clazz, NO_CLASS);
+        }
 
+        /**
+         * Resolves a class to its index in the matrix, regardless of the remapping.
+         * 
+         * @param clazz the class
+         * @return the index of the class, or {@link #NO_CLASS} if we were not asked to register changes for it
+         */
+        final int indexOfClass(final int clazz) {
+            if (classIndexes == null) {
+                return indexOf(clazz);
+            }
+            return classIndexes.get(clazz, NO_CLASS);
         }
 
         /**
-         * Register the change, if the two classes are within those we were asked to compute changes for.
+         * Register the change, if the two classes are within those we were asked to compute changes for. The provided values are remapped as
+         * the ones read from the images.
          * 
          * @param reference, the initial class
          * @param newSample, the landing class
@@ -154,12 +326,237 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
             if (frozen) {
                 return;
             }
-            Integer row = classesMappings.get(reference);
-            Integer col = classesMappings.get(now);
-            if (row != null && col != null) {
-                matrix.get(col + row * classesNumber).incrementAndGet();
+            final int row = indexOf(reference);
+            if (row == NO_CLASS) {
+                return;
+            }
+            final int col = indexOf(now);
+            if (col != NO_CLASS) {
+                addToCell(col + (long) row * classesNumber, 1);
+            }
+
+        }
+
+        /**
+         * Computes the changes between two images directly into this matrix, without producing the change flags raster of the "ChangeMatrix"
+         * operation.
+         * <p>
+         * The tiles of the reference image are walked, each one compared with the same area of the now image and published into this matrix
+         * once. Nothing ends up in the tile cache apart from the source tiles themselves. Use a {@link ChangeMatrixProcessor} to run the
+         * computation asynchronously, or to bound the number of tiles computed at the same time.
+         * 
+         * @param reference the image representing the situation at time T0
+         * @param now the image representing the situation at time T1 > T0
+         * @param roi an optional {@code ROI} or {@code null}
+         * @param executor the {@link Executor} used to compute the tiles in parallel, or <code>null</code> to compute them in the calling thread
+         * @throws InterruptedException if interrupted while waiting for the tiles to be computed
+         * @throws IllegalArgumentException in case the images cannot be compared or the ROI does not intersect them
+         */
+        public void compute(final RenderedImage reference, final RenderedImage now,
+                final ROI roi, final Executor executor) throws InterruptedException {
+            final Future<ChangeMatrix> future = new ChangeMatrixProcessor(reference, now, roi,
+                    this).submit(executor != null ? executor : ChangeMatrixProcessor.CALLER_RUNS);
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unable to compute the change matrix", e.getCause());
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw e;
+            }
+        }
+
+        /**
+         * Creates an empty {@link TransitionTable} with the same classes as this matrix, to be used for accumulating changes locally to a
+         * single thread.
+         * 
+         * @return a new, empty, {@link TransitionTable}
+         */
+        TransitionTable createTransitionTable() {
+            return new TransitionTable(classesNumber, matrix == null);
+        }
+
+        /**
+         * Publishes the changes accumulated in the provided {@link TransitionTable} into this matrix.
+         * 
+         * @param table a {@link TransitionTable} created by {@link #createTransitionTable()}
+         */
+        void merge(final TransitionTable table) {
+            if (frozen || table.isEmpty()) {
+                return;
+            }
+            if (table.getClassesNumber() != classesNumber) {
+                throw new IllegalArgumentException("The provided table does not match the classes of this matrix");
+            }
+            final ChangeMatrixStatistics statistics = this.statistics;
+            final long start = statistics != null ? System.nanoTime() : 0;
+            final TilePartial partial = new TilePartial(table);
+            if (matrix != null) {
+                for (int k = 0; k < partial.cells.length; k++) {
+                    matrix.addAndGet((int) partial.cells[k], partial.counts[k]);
+                }
+            } else {
+                synchronized (sparse) {
+                    partial.addTo(sparse);
+                }
+            }
+            if (statistics != null) {
+                statistics.merged(false, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Publishes the changes accumulated in the provided {@link TransitionTable} for a tile, replacing the changes previously published for
+         * the same tile, if any.
+         * 
+         * @param owner an identifier of the image the tile belongs to
+         * @param tileX the X index of the tile
+         * @param tileY the Y index of the tile
+         * @param table a {@link TransitionTable} created by {@link #createTransitionTable()}
+         */
+        void merge(final long owner, final int tileX, final int tileY, final TransitionTable table) {
+            if (frozen) {
+                return;
+            }
+            if (table.getClassesNumber() != classesNumber) {
+                throw new IllegalArgumentException("The provided table does not match the classes of this matrix");
+            }
+            final ChangeMatrixStatistics statistics = this.statistics;
+            final long start = statistics != null ? System.nanoTime() : 0;
+            final TileKey key = new TileKey(owner, tileX, tileY);
+            final TilePartial partial = table.isEmpty() ? null : new TilePartial(table);
+            final TilePartial previous;
+            synchronized (tiles) {
+                previous = partial == null ? tiles.remove(key) : tiles.put(key, partial);
+                if (previous != null || partial != null) {
+                    assembled = null;
+                    assembledSparse = null;
+                }
+            }
+            if (statistics != null) {
+                statistics.merged(previous != null, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Adds the changes registered by another matrix to this one.
+         * <p>
+         * Pairs involving classes this matrix was not asked to register changes for are ignored. Nothing is added to a frozen matrix.
+         * 
+         * @param other the {@link ChangeMatrix} whose changes are to be added to this one
+         */
+        public void merge(final ChangeMatrix other) {
+            if (other == null) {
+                throw new IllegalArgumentException("The provided change matrix is null");
+            }
+            if (frozen || other == this) {
+                return;
+            }
+            final TransitionTable table = other.snapshot();
+            final long[] cells = new long[table.size()];
+            final long[] counts = new long[cells.length];
+            final int size = table.copyTo(cells, counts);
+            final int n = other.classesNumber;
+            for (int k = 0; k < size; k++) {
+                final int row = indexOfClass(other.classes[(int) (cells[k] / n)]);
+                final int col = indexOfClass(other.classes[(int) (cells[k] % n)]);
+                if (row != NO_CLASS && col != NO_CLASS) {
+                    addToCell(col + (long) row * classesNumber, counts[k]);
+                }
+            }
+        }
+
+        /**
+         * Writes this matrix in a compact binary format, only the classes and the non zero counters being written. The stream is flushed but
+         * not closed, so that further data can follow.
+         * 
+         * @param out the stream to write to
+         * @throws IOException in case the stream cannot be written
+         */
+        public void write(final OutputStream out) throws IOException {
+            if (out == null) {
+                throw new IllegalArgumentException("The provided stream is null");
+            }
+            ChangeMatrixCodec.write(this, out);
+        }
+
+        /**
+         * Reads a matrix written by {@link #write(OutputStream)}. Nothing beyond the end of the matrix is read, and the stream is not closed.
+         * 
+         * @param in the stream to read from
+         * @return the {@link ChangeMatrix} read from the stream
+         * @throws IOException in case the stream cannot be read or does not contain a {@link ChangeMatrix}
+         */
+        public static ChangeMatrix read(final InputStream in) throws IOException {
+            if (in == null) {
+                throw new IllegalArgumentException("The provided stream is null");
             }
+            return ChangeMatrixCodec.read(in);
+        }
 
+        /**
+         * @return the real-world classes, in index order. The returned array must not be modified.
+         */
+        int[] getClasses() {
+            return classes;
+        }
+
+        /**
+         * Takes a copy of all the changes registered so far, shared counters and tile partial results summed together.
+         * 
+         * @return a {@link TransitionTable} holding the changes registered so far
+         */
+        TransitionTable snapshot() {
+            final TransitionTable table = createTransitionTable();
+            if (matrix != null) {
+                for (int i = 0; i < matrix.length(); i++) {
+                    table.addCell(i, matrix.get(i));
+                }
+            } else {
+                synchronized (sparse) {
+                    final long[] cells = new long[sparse.size()];
+                    final long[] counts = new long[cells.length];
+                    final int size = sparse.copyTo(cells, counts);
+                    for (int k = 0; k < size; k++) {
+                        table.addCell(cells[k], counts[k]);
+                    }
+                }
+            }
+            synchronized (tiles) {
+                for (TilePartial partial : tiles.values()) {
+                    partial.addTo(table);
+                }
+            }
+            return table;
+        }
+
+        /**
+         * Sums together the partial results of the tiles computed so far, and retrieves the sum for a cell.
+         * 
+         * @param cell the flat, row major, cell
+         * @return the sum of the partial results for the cell
+         */
+        private long getAssembled(final long cell) {
+            synchronized (tiles) {
+                if (matrix != null) {
+                    if (assembled == null) {
+                        final long[] sum = new long[classesNumber * classesNumber];
+                        for (TilePartial partial : tiles.values()) {
+                            partial.addTo(sum);
+                        }
+                        assembled = sum;
+                    }
+                    return assembled[(int) cell];
+                }
+                if (assembledSparse == null) {
+                    final SparseCounters sum = new SparseCounters(classesNumber);
+                    for (TilePartial partial : tiles.values()) {
+                        partial.addTo(sum);
+                    }
+                    assembledSparse = sum;
+                }
+                return assembledSparse.get(cell);
+            }
         }
 
         /**
@@ -173,15 +570,52 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
          *         of the two, or both, classes weren't in the initial set of classes to register changes for.
          */
         public long retrievePairOccurrences(int reference, int now) {
-            Integer row = classesMappings.get(reference);
-            Integer col = classesMappings.get(now);
-            if (row != null && col != null) {
-                return matrix.get(col + row * classesNumber).get();
+            final int row = indexOfClass(reference);
+            final int col = indexOfClass(now);
+            if (row != NO_CLASS && col != NO_CLASS) {
+                final long cell = col + (long) row * classesNumber;
+                final long shared;
+                if (matrix != null) {
+                    shared = matrix.get((int) cell);
+                } else {
+                    synchronized (sparse) {
+                        shared = sparse.get(cell);
+                    }
+                }
+                return shared + getAssembled(cell);
             } else {
                 return NO_VALUE;
             }
         }
 
+        /**
+         * Retrieves the transition code of a pair of classes, i.e. the value the "ChangeMatrix" operation writes in its destination for the
+         * pair when asked for the transition codes. Codes are dense, from 0 to {@code getClassesNumber() * getClassesNumber() - 1}.
+         * 
+         * @param reference, the value for the reference image
+         * @param now, the value for the second image
+         * @return the transition code of the pair, or {@link #getNoTransitionCode()} in case one of the two, or both, classes weren't in the
+         *         initial set of classes to register changes for
+         */
+        public int getTransitionCode(int reference, int now) {
+            final int row = indexOfClass(reference);
+            final int col = indexOfClass(now);
+            if (row != NO_CLASS && col != NO_CLASS) {
+                return col + row * classesNumber;
+            } else {
+                return getNoTransitionCode();
+            }
+        }
+
+        /**
+         * Retrieves the transition code used as NoData, for the pixels outside the ROI or with classes we were not asked to register changes for.
+         * 
+         * @return {@code getClassesNumber() * getClassesNumber()}, saturated to {@link Integer#MAX_VALUE}
+         */
+        public int getNoTransitionCode() {
+            return (int) Math.min((long) classesNumber * classesNumber, Integer.MAX_VALUE);
+        }
+
         /**
          * Retrieves the number of classes we have been asked to register changes for
          * 
@@ -191,12 +625,100 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
             return classesNumber;
         }
 
+        /**
+         * Sets the statistics collecting the throughput and contention metrics of the computations filling this matrix. The same statistics
+         * can be shared by several matrices, e.g. all the ones of a job.
+         * 
+         * @param statistics the statistics to update, or <code>null</code>, the default, not to collect any
+         */
+        public void setStatistics(final ChangeMatrixStatistics statistics) {
+            this.statistics = statistics;
+        }
+
+        /**
+         * Retrieves the statistics collecting the metrics of the computations filling this matrix.
+         * 
+         * @return the statistics, or <code>null</code> if none are collected
+         */
+        public ChangeMatrixStatistics getStatistics() {
+            return statistics;
+        }
+
         /**
          * This is used to indicate to the underlying code to stop registering values as the computation has been performed already.
          */
         public void freeze() {
             frozen = true;
         }
+
+        /**
+         * Identifies a tile of a given image.
+         */
+        static final class TileKey {
+
+            private final long owner;
+
+            private final int tileX;
+
+            private final int tileY;
+
+            TileKey(final long owner, final int tileX, final int tileY) {
+                this.owner = owner;
+                this.tileX = tileX;
+                this.tileY = tileY;
+            }
+
+            @Override
+            public int hashCode() {
+                int hash = (int) (owner ^ (owner >>> 32));
+                hash = 31 * hash + tileX;
+                return 31 * hash + tileY;
+            }
+
+            @Override
+            public boolean equals(final Object obj) {
+                if (!(obj instanceof TileKey)) {
+                    return false;
+                }
+                final TileKey other = (TileKey) obj;
+                return owner == other.owner && tileX == other.tileX && tileY == other.tileY;
+            }
+        }
+
+        /**
+         * The non zero counters of a tile, kept compact since tiles usually see a handful of transitions.
+         */
+        private static final class TilePartial {
+
+            private final long[] cells;
+
+            private final long[] counts;
+
+            TilePartial(final TransitionTable table) {
+                final int size = table.size();
+                cells = new long[size];
+                counts = new long[size];
+                table.copyTo(cells, counts);
+            }
+
+            void addTo(final long[] sum) {
+                for (int k = 0; k < cells.length; k++) {
+                    sum[(int) cells[k]] += counts[k];
+                }
+            }
+
+            void addTo(final TransitionTable sum) {
+                for (int k = 0; k < cells.length; k++) {
+                    sum.addCell(cells[k], counts[k]);
+                }
+            }
+
+            void addTo(final SparseCounters sum) {
+                for (int k = 0; k < cells.length; k++) {
+                    sum.add(cells[k], counts[k]);
+                }
+            }
+        }
     }
 
     /**
@@ -208,11 +730,17 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
 
     public static final int RESULT_ARG_INDEX = 1;
 
-    public static final String[] PARAM_NAMES = { "roi", "result" };
+    public static final int PACKED_MASK_ARG_INDEX = 2;
+
+    public static final int TRANSITION_CODES_ARG_INDEX = 3;
+
+    public static final String[] PARAM_NAMES = { "roi", "result", "packedMask", "transitionCodes" };
 
-    private static final Class<?>[] PARAM_CLASSES = { javax.media.jai.ROI.class, ChangeMatrix.class };
+    private static final Class<?>[] PARAM_CLASSES = { javax.media.jai.ROI.class, ChangeMatrix.class,
+            Boolean.class, Boolean.class };
 
-    private static final Object[] PARAM_DEFAULTS = { (ROI) null, NO_PARAMETER_DEFAULT };
+    private static final Object[] PARAM_DEFAULTS = { (ROI) null, NO_PARAMETER_DEFAULT, Boolean.FALSE,
+            Boolean.FALSE };
 
     /** Constructor. */
     public ChangeMatrixDescriptor() {
@@ -231,7 +759,15 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
                         {
                                 "arg1Desc",
                                 "result (ChangeMatrix) -"
-                                        + "a sparse matrix as a Map holding the count of change pixels" } },
+                                        + "a sparse matrix as a Map holding the count of change pixels" },
+                        {
+                                "arg2Desc",
+                                "packedMask (default false) - whether to write the change flags"
+                                        + " as a 1 bit per pixel mask" },
+                        {
+                                "arg3Desc",
+                                "transitionCodes (default false) - whether to write the transition"
+                                        + " code of each pixel rather than the change flags" } },
 
                 new String[] { RenderedRegistryMode.MODE_NAME }, // supported modes
 
@@ -260,13 +796,20 @@ public class ChangeMatrixDescriptor extends OperationDescriptorImpl {
         // result
         // TODO improve checks on type, etc...
         final Object o2 = pb.getObjectParameter(RESULT_ARG_INDEX);
-        if (o2 != null && o2 instanceof ChangeMatrix) {
-            return true;
-        } else {
+        if (o2 == null || !(o2 instanceof ChangeMatrix)) {
             msg.append("result is null or not of type ChangeMatrix");
             return false;
         }
 
+        // a single kind of output
+        if (pb.getNumParameters() > TRANSITION_CODES_ARG_INDEX
+                && Boolean.TRUE.equals(pb.getObjectParameter(PACKED_MASK_ARG_INDEX))
+                && Boolean.TRUE.equals(pb.getObjectParameter(TRANSITION_CODES_ARG_INDEX))) {
+            msg.append("packedMask and transitionCodes cannot be both set");
+            return false;
+        }
+        return true;
+
     }
 
 }
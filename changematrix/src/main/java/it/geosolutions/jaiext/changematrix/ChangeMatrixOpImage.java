@@ -20,11 +20,11 @@ package it.geosolutions.jaiext.changematrix;
 import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
 
 import java.awt.Rectangle;
-import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.media.jai.AreaOpImage;
 import javax.media.jai.ImageLayout;
@@ -48,6 +48,20 @@ public class ChangeMatrixOpImage extends PointOpImage {
 
     private final ChangeMatrix result;
 
+    private final TransitionCounter counter;
+
+    /** Whether the change flags are packed, 1 bit per pixel, in the destination. */
+    private final boolean packed;
+
+    /** Whether the destination receives the transition codes rather than the change flags. */
+    private final boolean codes;
+
+    /** Source of the identifiers of the images publishing tiles into a {@link ChangeMatrix}. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** Identifies this image when publishing its tiles into the {@link ChangeMatrix}. */
+    private final long id = IDS.incrementAndGet();
+
     /**
      * Creates a new instance.
      * 
@@ -66,12 +80,35 @@ public class ChangeMatrixOpImage extends PointOpImage {
     @SuppressWarnings("rawtypes")
     public ChangeMatrixOpImage(final RenderedImage reference, final RenderedImage now,
             final Map config, final ImageLayout layout, ROI roi, final ChangeMatrix result) {
+        this(reference, now, config, layout, roi, result, false);
+    }
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param now the source image
+     * @param config configurable attributes of the image (see {@link AreaOpImage})
+     * @param layout an optional ImageLayout object; when asking for the transition codes it must provide a sample model wide enough for
+     *        them, see {@link ChangeMatrixRIF}
+     * @param roi an optional {@code ROI} or {@code null}
+     * @param result a {@link ChangeMatrix} object to compute and hold the results
+     * @param codes whether to write the transition codes, see {@link ChangeMatrix#getTransitionCode(int, int)}, rather than the change flags
+     * @throws IllegalArgumentException if the ROI's bounds do not contain the entire source image
+     * @see ChangeMatrixDescriptor
+     * @see ChangeMatrix
+     */
+    @SuppressWarnings("rawtypes")
+    public ChangeMatrixOpImage(final RenderedImage reference, final RenderedImage now,
+            final Map config, final ImageLayout layout, ROI roi, final ChangeMatrix result,
+            final boolean codes) {
 
         super(reference, now, layout, config, true);
 
         this.result = result;
+        this.counter = new TransitionCounter(result, reference.getSampleModel().getDataType());
+        this.packed = !codes && PackedChangeMask.isPacked(getSampleModel());
+        this.codes = codes;
 
-        this.roi = roi;
         if (roi != null) {
             // check that the ROI contains the source image bounds
             final Rectangle sourceBounds = new Rectangle(now.getMinX(), now.getMinY(),
@@ -84,12 +121,13 @@ public class ChangeMatrixOpImage extends PointOpImage {
             // massage roi
             roi = roi.intersect(new ROIShape(sourceBounds));
         }
+        this.roi = roi;
 
         // where do we put the final elements?
     }
 
     /**
-     * Multiplies the pixel values of two source images within a specified rectangle.
+     * Computes the change flags for the specified rectangle and registers the changes in the {@link ChangeMatrix}.
      * 
      * @param sources Cobbled sources, guaranteed to provide all the source data necessary for computing the rectangle.
      * @param dest The tile containing the rectangle to be computed.
@@ -97,6 +135,9 @@ public class ChangeMatrixOpImage extends PointOpImage {
      */
     protected void computeRect(final Raster[] sources, final WritableRaster dest,
             final Rectangle destRect) {
+        final ChangeMatrixStatistics statistics = result.getStatistics();
+        final long start = statistics != null ? System.nanoTime() : 0;
+
         // Retrieve format tags.
         final RasterFormatTag[] formatTags = getFormatTags();
 
@@ -105,181 +146,47 @@ public class ChangeMatrixOpImage extends PointOpImage {
                 getSourceImage(0).getColorModel());
         final RasterAccessor s2 = new RasterAccessor(sources[1], destRect, formatTags[1],
                 getSourceImage(1).getColorModel());
-        final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[2], getColorModel());
-
-        final int src1LineStride = s1.getScanlineStride();
-        final int src1PixelStride = s1.getPixelStride();
-        final int[] src1BandOffsets = s1.getBandOffsets();
-
-        final int src2LineStride = s2.getScanlineStride();
-        final int src2PixelStride = s2.getPixelStride();
-        final int[] src2BandOffsets = s2.getBandOffsets();
-
-        final int dstNumBands = d.getNumBands();
-        final int dstWidth = d.getWidth();
-        final int dstHeight = d.getHeight();
-        final int dstLineStride = d.getScanlineStride();
-        final int dstPixelStride = d.getPixelStride();
-        final int[] dstBandOffsets = d.getBandOffsets();
 
-        switch (s1.getDataType()) {
-
-        case DataBuffer.TYPE_BYTE:
-            byteLoop(dstNumBands, dstWidth, dstHeight, sources[0].getMinX(), sources[0].getMinY(),
-                    src1LineStride, src1PixelStride, src1BandOffsets, s1.getByteDataArrays(),
-                    src2LineStride, src2PixelStride, src2BandOffsets, s2.getByteDataArrays(),
-                    dstLineStride, dstPixelStride, dstBandOffsets, d.getByteDataArrays());
-            break;
-
-        case DataBuffer.TYPE_USHORT:
-        case DataBuffer.TYPE_SHORT:
-            shortLoop(dstNumBands, dstWidth, dstHeight, sources[0].getMinX(), sources[0].getMinY(),
-                    src1LineStride, src1PixelStride, src1BandOffsets, s1.getShortDataArrays(),
-                    src2LineStride, src2PixelStride, src2BandOffsets, s2.getShortDataArrays(),
-                    dstLineStride, dstPixelStride, dstBandOffsets, d.getShortDataArrays());
-            break;
-
-        case DataBuffer.TYPE_INT:
-            intLoop(dstNumBands, dstWidth, dstHeight, sources[0].getMinX(), sources[0].getMinY(),
-                    src1LineStride, src1PixelStride, src1BandOffsets, s1.getIntDataArrays(),
-                    src2LineStride, src2PixelStride, src2BandOffsets, s2.getIntDataArrays(),
-                    dstLineStride, dstPixelStride, dstBandOffsets, d.getIntDataArrays());
-            break;
+        // rasterize the ROI once for the whole rectangle
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(destRect)) {
+            spans = ROISpans.create(roi, destRect);
         }
-        d.copyBinaryDataToRaster();
-    }
-
-    private void intLoop(final int dstNumBands, final int dstWidth, final int dstHeight,
-            final int src1MinX, final int src1MinY, final int src1LineStride,
-            final int src1PixelStride, final int[] src1BandOffsets, final int[][] src1Data,
-            final int src2LineStride, final int src2PixelStride, final int[] src2BandOffsets,
-            final int[][] src2Data, final int dstLineStride, final int dstPixelStride,
-            final int[] dstBandOffsets, final int[][] dstData) {
-
-        for (int b = 0; b < dstNumBands; b++) {
-            final int[] s1 = src1Data[b];
-            final int[] s2 = src2Data[b];
-            final int[] d = dstData[b];
-            int src1LineOffset = src1BandOffsets[b];
-            int src2LineOffset = src2BandOffsets[b];
-            int dstLineOffset = dstBandOffsets[b];
-
-            for (int h = 0; h < dstHeight; h++) {
-                int src1PixelOffset = src1LineOffset;
-                int src2PixelOffset = src2LineOffset;
-                int dstPixelOffset = dstLineOffset;
-                src1LineOffset += src1LineStride;
-                src2LineOffset += src2LineStride;
-                dstLineOffset += dstLineStride;
 
-                for (int w = 0; w < dstWidth; w++) {
-                    final int before = (s1[src1PixelOffset]);
-                    final int after = (s2[src1PixelOffset]);
-                    d[dstPixelOffset] = before == after ? 0 : 1;
-                    final int x = src1MinX + (src1PixelOffset % src1LineStride) / src1PixelStride;
-                    final int y = src1MinY + (src1PixelOffset / src1LineStride);
-                    if (roi == null || roi.contains(x, y)) {
-                        result.registerPair(s1[src1PixelOffset], s2[src2PixelOffset]);
-
-                    } else {
-                        // we of course use 0 as NoData
-                        d[dstPixelOffset] = (byte) 0;
-                    }
-
-                    src1PixelOffset += src1PixelStride;
-                    src2PixelOffset += src2PixelStride;
-                    dstPixelOffset += dstPixelStride;
-                }
+        // accumulate locally to this thread, then publish once per tile, replacing what a previous
+        // computation of the same tile (e.g. after being evicted from the cache) published
+        final TransitionTable table = result.createTransitionTable();
+        if (!codes && TransitionCounter.identical(s1, s2)) {
+            // nothing changed in the tile, e.g. sea or untouched forest: only the diagonal is hit
+            // and the change flags are all 0, so skip the per pixel pair work (transition codes
+            // still need a per pixel lookup, hence they take the usual path)
+            counter.countUnchanged(s1, spans, table);
+            if (packed) {
+                new PackedChangeMask(dest, destRect).clear();
+            } else {
+                final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[2],
+                        getColorModel());
+                TransitionCounter.clear(d);
+                d.copyBinaryDataToRaster();
             }
+        } else if (packed) {
+            final PackedChangeMask mask = new PackedChangeMask(dest, destRect);
+            mask.clear();
+            counter.count(s1, s2, spans, table, mask);
+        } else if (codes) {
+            final int[] transitions = new int[destRect.width * destRect.height];
+            counter.count(s1, s2, null, false, spans, table, transitions);
+            dest.setSamples(destRect.x, destRect.y, destRect.width, destRect.height, 0,
+                    transitions);
+        } else {
+            final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[2],
+                    getColorModel());
+            counter.count(s1, s2, d, spans, table);
+            d.copyBinaryDataToRaster();
         }
-    }
-
-    private void byteLoop(final int dstNumBands, final int dstWidth, final int dstHeight,
-            final int src1MinX, final int src1MinY, final int src1LineStride,
-            final int src1PixelStride, final int[] src1BandOffsets, final byte[][] src1Data,
-            final int src2LineStride, final int src2PixelStride, final int[] src2BandOffsets,
-            final byte[][] src2Data, final int dstLineStride, final int dstPixelStride,
-            final int[] dstBandOffsets, final byte[][] dstData) {
-
-        for (int b = 0; b < dstNumBands; b++) {
-            final byte[] s1 = src1Data[b];
-            final byte[] s2 = src2Data[b];
-            final byte[] d = dstData[b];
-            int src1LineOffset = src1BandOffsets[b];
-            int src2LineOffset = src2BandOffsets[b];
-            int dstLineOffset = dstBandOffsets[b];
-
-            for (int h = 0; h < dstHeight; h++) {
-                int src1PixelOffset = src1LineOffset;
-                int src2PixelOffset = src2LineOffset;
-                int dstPixelOffset = dstLineOffset;
-                src1LineOffset += src1LineStride;
-                src2LineOffset += src2LineStride;
-                dstLineOffset += dstLineStride;
-
-                for (int w = 0; w < dstWidth; w++) {
-                    final byte before = (byte) (s1[src1PixelOffset]);
-                    final byte after = (byte) (s2[src1PixelOffset]);
-                    d[dstPixelOffset] = before == after ? (byte) 0 : (byte) 1;
-
-                    final int x = src1MinX + (src1PixelOffset % src1LineStride) / src1PixelStride;
-                    final int y = src1MinY + (src1PixelOffset / src1LineStride);
-                    if (roi == null || roi.contains(x, y)) {
-                        result.registerPair(s1[src1PixelOffset], s2[src2PixelOffset]);
-
-                    } else {
-                        // we of course use 0 as NoData
-                        d[dstPixelOffset] = (byte) 0;
-                    }
-                    src1PixelOffset += src1PixelStride;
-                    src2PixelOffset += src2PixelStride;
-                    dstPixelOffset += dstPixelStride;
-                }
-            }
-        }
-    }
-
-    private void shortLoop(final int dstNumBands, final int dstWidth, final int dstHeight,
-            final int src1MinX, final int src1MinY, final int src1LineStride,
-            final int src1PixelStride, final int[] src1BandOffsets, final short[][] src1Data,
-            final int src2LineStride, final int src2PixelStride, final int[] src2BandOffsets,
-            final short[][] src2Data, final int dstLineStride, final int dstPixelStride,
-            final int[] dstBandOffsets, final short[][] dstData) {
-
-        for (int b = 0; b < dstNumBands; b++) {
-            final short[] s1 = src1Data[b];
-            final short[] s2 = src2Data[b];
-            final short[] d = dstData[b];
-            int src1LineOffset = src1BandOffsets[b];
-            int src2LineOffset = src2BandOffsets[b];
-            int dstLineOffset = dstBandOffsets[b];
-
-            for (int h = 0; h < dstHeight; h++) {
-                int src1PixelOffset = src1LineOffset;
-                int src2PixelOffset = src2LineOffset;
-                int dstPixelOffset = dstLineOffset;
-                src1LineOffset += src1LineStride;
-                src2LineOffset += src2LineStride;
-                dstLineOffset += dstLineStride;
-
-                for (int w = 0; w < dstWidth; w++) {
-                    final short before = (short) (s1[src1PixelOffset]);
-                    final short after = (short) (s2[src1PixelOffset]);
-                    d[dstPixelOffset] = before == after ? (short) 0 : (short) 1;
-                    final int x = src1MinX + (src1PixelOffset % src1LineStride) / src1PixelStride;
-                    final int y = src1MinY + (src1PixelOffset / src1LineStride);
-                    if (roi == null || roi.contains(x, y)) {
-                        result.registerPair(s1[src1PixelOffset], s2[src2PixelOffset]);
-
-                    } else {
-                        // we of course use 0 as NoData
-                        d[dstPixelOffset] = (byte) 0;
-                    }
-                    src1PixelOffset += src1PixelStride;
-                    src2PixelOffset += src2PixelStride;
-                    dstPixelOffset += dstPixelStride;
-                }
-            }
+        if (statistics != null) {
+            statistics.tileComputed(destRect, spans, System.nanoTime() - start);
         }
+        result.merge(id, XToTileX(destRect.x), YToTileY(destRect.y), table);
     }
 }
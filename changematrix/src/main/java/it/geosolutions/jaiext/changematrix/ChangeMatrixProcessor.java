@@ -0,0 +1,267 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.media.jai.ROI;
+
+/**
+ * Computes a complete {@link ChangeMatrix} for two images in parallel, on a caller supplied {@link Executor}.
+ * <p>
+ * The tiles of the reference image are computed by at most {@link #getMaxInFlightTiles()} workers submitted to the executor. Each worker
+ * claims the next tile to compute from a shared cursor as soon as it is done with the previous one, so that faster workers take over the tiles
+ * slower ones would not get to, while the number of tiles being computed at the same time, and hence the memory they need, stays bounded. Any
+ * {@link Executor} can be used, e.g. a fixed thread pool or a fork-join pool.
+ * <p>
+ * No destination raster is produced, see {@link ChangeMatrix#compute(RenderedImage, RenderedImage, ROI, Executor)}. Usage example:
+ *
+ * <pre>
+ * final ChangeMatrixProcessor processor = new ChangeMatrixProcessor(reference, now, roi, cm);
+ * processor.setMaxInFlightTiles(24);
+ * final Future&lt;ChangeMatrix&gt; future = processor.submit(executor);
+ * ...
+ * future.get();
+ * </pre>
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ChangeMatrixProcessor {
+
+    /** An {@link Executor} running the submitted tasks in the calling thread. */
+    static final Executor CALLER_RUNS = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final ChangeMatrixSink sink;
+
+    private final ChangeMatrix result;
+
+    /** Maximum number of tiles computed at the same time. */
+    private int maxInFlightTiles = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Constructor
+     *
+     * @param reference the image representing the situation at time T0
+     * @param now the image representing the situation at time T1 > T0
+     * @param roi an optional {@code ROI} or {@code null}
+     * @param result the {@link ChangeMatrix} collecting the changes
+     * @throws IllegalArgumentException in case the images cannot be compared or the ROI does not intersect them
+     */
+    public ChangeMatrixProcessor(final RenderedImage reference, final RenderedImage now,
+            final ROI roi, final ChangeMatrix result) {
+        if (result == null) {
+            throw new IllegalArgumentException("The provided result is null");
+        }
+        this.result = result;
+        this.sink = new ChangeMatrixSink(reference, now, roi, result);
+    }
+
+    /**
+     * @return the maximum number of tiles computed at the same time
+     */
+    public int getMaxInFlightTiles() {
+        return maxInFlightTiles;
+    }
+
+    /**
+     * Sets the maximum number of tiles computed at the same time, which defaults to the number of available processors.
+     *
+     * @param maxInFlightTiles the maximum number of tiles computed at the same time, must be positive
+     */
+    public void setMaxInFlightTiles(final int maxInFlightTiles) {
+        if (maxInFlightTiles <= 0) {
+            throw new IllegalArgumentException("The maximum number of tiles in flight must be positive");
+        }
+        this.maxInFlightTiles = maxInFlightTiles;
+    }
+
+    /**
+     * Starts the computation of the {@link ChangeMatrix} on the provided {@link Executor}.
+     * <p>
+     * Cancelling the returned {@link Future} stops the workers from claiming new tiles, interrupting them if requested; the tiles already
+     * computed stay in the {@link ChangeMatrix}, which is then incomplete.
+     *
+     * @param executor the {@link Executor} running the workers
+     * @return a {@link Future} completing with the {@link ChangeMatrix} once all the tiles have been computed
+     */
+    public Future<ChangeMatrix> submit(final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("The provided executor is null");
+        }
+        final Computation computation = new Computation(sink.getRectangles());
+        computation.start(executor);
+        return computation;
+    }
+
+    /**
+     * The state of a running computation, shared by its workers.
+     */
+    private final class Computation implements Future<ChangeMatrix> {
+
+        private final List<Rectangle> rectangles;
+
+        /** Index of the next rectangle to compute. */
+        private final AtomicInteger cursor = new AtomicInteger();
+
+        /** Number of workers still running. */
+        private final AtomicInteger running = new AtomicInteger();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private volatile boolean cancelled;
+
+        /** Threads currently running a worker, to be interrupted on cancellation. */
+        private final Set<Thread> threads = new HashSet<Thread>();
+
+        Computation(final List<Rectangle> rectangles) {
+            this.rectangles = rectangles;
+        }
+
+        void start(final Executor executor) {
+            final int workers = Math.min(maxInFlightTiles, rectangles.size());
+            if (workers == 0) {
+                done.countDown();
+                return;
+            }
+            running.set(workers);
+            for (int i = 0; i < workers; i++) {
+                try {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            work();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    failure.compareAndSet(null, e);
+                    // account for this worker and for the ones we are not going to submit
+                    for (int j = i; j < workers; j++) {
+                        workerDone();
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void work() {
+            final Thread thread = Thread.currentThread();
+            synchronized (threads) {
+                threads.add(thread);
+            }
+            try {
+                int index;
+                while (!cancelled && failure.get() == null
+                        && (index = cursor.getAndIncrement()) < rectangles.size()) {
+                    sink.computeRect(rectangles.get(index));
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                synchronized (threads) {
+                    threads.remove(thread);
+                }
+                workerDone();
+            }
+        }
+
+        private void workerDone() {
+            if (running.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            if (cancelled || done.getCount() == 0) {
+                return false;
+            }
+            cancelled = true;
+            if (mayInterruptIfRunning) {
+                synchronized (threads) {
+                    for (Thread thread : threads) {
+                        thread.interrupt();
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || done.getCount() == 0;
+        }
+
+        @Override
+        public ChangeMatrix get() throws InterruptedException, ExecutionException {
+            if (!cancelled) {
+                done.await();
+            }
+            return report();
+        }
+
+        @Override
+        public ChangeMatrix get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!cancelled && !done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private ChangeMatrix report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            final Throwable t = failure.get();
+            if (t != null) {
+                throw new ExecutionException(t);
+            }
+            return result;
+        }
+    }
+}
@@ -22,7 +22,11 @@ import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.renderable.ParameterBlock;
 import java.awt.image.renderable.RenderedImageFactory;
 
@@ -54,6 +58,104 @@ public class ChangeMatrixRIF implements RenderedImageFactory {
     public RenderedImage create(ParameterBlock paramBlock, RenderingHints renderHints) {
 
         RenderedImage reference = paramBlock.getRenderedSource(0);
+        RenderedImage now = paramBlock.getRenderedSource(1);
+        checkSources(reference, now);
+
+        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
+        if (layout == null)
+            layout = new ImageLayout();
+
+        // packed change flags, 1 bit per pixel
+        final Object packedMask = paramBlock
+                .getObjectParameter(ChangeMatrixDescriptor.PACKED_MASK_ARG_INDEX);
+        final Object transitionCodes = paramBlock
+                .getObjectParameter(ChangeMatrixDescriptor.TRANSITION_CODES_ARG_INDEX);
+        final boolean codes = Boolean.TRUE.equals(transitionCodes);
+        if (Boolean.TRUE.equals(packedMask)) {
+            if (codes) {
+                throw new IllegalArgumentException(
+                        "Unable to write both the packed mask and the transition codes");
+            }
+            layout = createPackedLayout(layout, reference);
+        }
+
+        // result
+        final ChangeMatrix result = (ChangeMatrix) paramBlock
+                .getObjectParameter(ChangeMatrixDescriptor.RESULT_ARG_INDEX);
+
+        // transition codes, wide enough for all the pairs and the NoData code
+        if (codes) {
+            layout = createCodesLayout(layout, reference, result);
+        }
+
+        // checks on ROI
+        ROI roi = (ROI) paramBlock.getObjectParameter(ChangeMatrixDescriptor.ROI_ARG_INDEX);
+        roi = checkROI(roi, reference);
+
+        return new ChangeMatrixOpImage(reference, now, renderHints, layout, roi, result, codes);
+    }
+
+    /**
+     * Sets up a layout for a 1 bit per pixel destination, keeping the tile size of the provided layout or, if missing, of the reference image.
+     * 
+     * @param layout the requested layout, which is not modified
+     * @param reference the reference image
+     * @return the layout with a byte {@link MultiPixelPackedSampleModel} and a binary {@link IndexColorModel}
+     */
+    static ImageLayout createPackedLayout(final ImageLayout layout, final RenderedImage reference) {
+        final ImageLayout packed = (ImageLayout) layout.clone();
+        final int tileWidth = layout.isValid(ImageLayout.TILE_WIDTH_MASK) ? layout
+                .getTileWidth(null) : reference.getTileWidth();
+        final int tileHeight = layout.isValid(ImageLayout.TILE_HEIGHT_MASK) ? layout
+                .getTileHeight(null) : reference.getTileHeight();
+        packed.setTileWidth(tileWidth).setTileHeight(tileHeight);
+        packed.setSampleModel(new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, tileWidth,
+                tileHeight, 1));
+        final byte[] map = { 0, (byte) 0xFF };
+        packed.setColorModel(new IndexColorModel(1, 2, map, map, map));
+        return packed;
+    }
+
+    /**
+     * Sets up a layout for a transition codes destination, ushort if all the codes fit, int otherwise, keeping the tile size of the provided
+     * layout or, if missing, of the reference image.
+     * 
+     * @param layout the requested layout, which is not modified
+     * @param reference the reference image
+     * @param result the {@link ChangeMatrix} providing the codes
+     * @return the layout with a single banded ushort or int sample model
+     * @throws IllegalArgumentException if there are too many classes for the codes to fit an int
+     */
+    static ImageLayout createCodesLayout(final ImageLayout layout, final RenderedImage reference,
+            final ChangeMatrix result) {
+        final long noTransition = (long) result.getClassesNumber() * result.getClassesNumber();
+        if (noTransition > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Too many classes for the transition codes to fit an int");
+        }
+        final ImageLayout codes = (ImageLayout) layout.clone();
+        final int tileWidth = layout.isValid(ImageLayout.TILE_WIDTH_MASK) ? layout
+                .getTileWidth(null) : reference.getTileWidth();
+        final int tileHeight = layout.isValid(ImageLayout.TILE_HEIGHT_MASK) ? layout
+                .getTileHeight(null) : reference.getTileHeight();
+        final int dataType = noTransition <= 0xFFFF ? DataBuffer.TYPE_USHORT
+                : DataBuffer.TYPE_INT;
+        final SampleModel sampleModel = new PixelInterleavedSampleModel(dataType, tileWidth,
+                tileHeight, 1, tileWidth, new int[] { 0 });
+        codes.setTileWidth(tileWidth).setTileHeight(tileHeight);
+        codes.setSampleModel(sampleModel);
+        codes.setColorModel(PlanarImage.createColorModel(sampleModel));
+        return codes;
+    }
+
+    /**
+     * Checks that the reference and now images can be compared: single banded, same integer data type and same size.
+     * 
+     * @param reference the reference image
+     * @param now the now image
+     * @throws IllegalArgumentException in case the images cannot be compared
+     */
+    static void checkSources(final RenderedImage reference, final RenderedImage now) {
         if (reference.getSampleModel().getNumBands() > 1) {
             throw new IllegalArgumentException(
                     "Unable to process image with more than one band (source[0])");
@@ -65,7 +167,6 @@ public class ChangeMatrixRIF implements RenderedImageFactory {
             throw new IllegalArgumentException(
                     "Unable to process image (source[0]) as it has a non integer data type");
         }
-        RenderedImage now = paramBlock.getRenderedSource(1);
         if (now.getSampleModel().getNumBands() > 1) {
             throw new IllegalArgumentException(
                     "Unable to process image with more than one band (source[0])");
@@ -86,17 +187,17 @@ public class ChangeMatrixRIF implements RenderedImageFactory {
             throw new IllegalArgumentException(
                     "Unable to process images with different raster dimensions");
         }
+    }
 
-        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
-        if (layout == null)
-            layout = new ImageLayout();
-
-        // result
-        final ChangeMatrix result = (ChangeMatrix) paramBlock
-                .getObjectParameter(ChangeMatrixDescriptor.RESULT_ARG_INDEX);
-
-        // checks on ROI
-        ROI roi = (ROI) paramBlock.getObjectParameter(ChangeMatrixDescriptor.ROI_ARG_INDEX);
+    /**
+     * Crops the provided {@link ROI} to the bounds of the reference image.
+     * 
+     * @param roi the {@link ROI} to check, may be <code>null</code>
+     * @param reference the reference image
+     * @return the cropped {@link ROI}, or <code>null</code> if the ROI contains the entire image
+     * @throws IllegalArgumentException in case the ROI does not intersect the reference image
+     */
+    static ROI checkROI(ROI roi, final RenderedImage reference) {
         if (roi != null) {
             // ok, does the ROI intersects the reference image? if not we should throw an error
             final Rectangle bounds = PlanarImage.wrapRenderedImage(reference).getBounds();
@@ -115,7 +216,6 @@ public class ChangeMatrixRIF implements RenderedImageFactory {
 
             }
         }
-
-        return new ChangeMatrixOpImage(reference, now, renderHints, layout, roi, result);
+        return roi;
     }
 }
@@ -0,0 +1,141 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
+import javax.media.jai.RasterFormatTag;
+
+/**
+ * Computes a {@link ChangeMatrix} walking the tiles of the sources directly, without producing the change flags raster that
+ * {@link ChangeMatrixOpImage} would compute and put in the tile cache.
+ *
+ * @see ChangeMatrixProcessor
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class ChangeMatrixSink {
+
+    private final PlanarImage reference;
+
+    private final PlanarImage now;
+
+    private final ROI roi;
+
+    private final ChangeMatrix result;
+
+    private final TransitionCounter counter;
+
+    private final RasterFormatTag[] formatTags;
+
+    /**
+     * Constructor
+     *
+     * @param reference the reference image
+     * @param now the now image
+     * @param roi an optional {@code ROI} or {@code null}
+     * @param result the {@link ChangeMatrix} collecting the changes
+     * @throws IllegalArgumentException in case the images cannot be compared or the ROI does not intersect them
+     */
+    ChangeMatrixSink(final RenderedImage reference, final RenderedImage now, final ROI roi,
+            final ChangeMatrix result) {
+        ChangeMatrixRIF.checkSources(reference, now);
+        this.reference = PlanarImage.wrapRenderedImage(reference);
+        this.now = PlanarImage.wrapRenderedImage(now);
+        this.roi = ChangeMatrixRIF.checkROI(roi, reference);
+        this.result = result;
+        this.counter = new TransitionCounter(result, reference.getSampleModel().getDataType());
+        // we have no destination, the now image is used in its place to get the tags of both sources
+        this.formatTags = RasterAccessor.findCompatibleTags(new RenderedImage[] { reference }, now);
+    }
+
+    /**
+     * Retrieves the rectangles to compute, one for each tile of the reference image.
+     *
+     * @return the rectangles to compute
+     */
+    List<Rectangle> getRectangles() {
+        final Rectangle bounds = reference.getBounds();
+        final List<Rectangle> rectangles = new ArrayList<Rectangle>(reference.getNumXTiles()
+                * reference.getNumYTiles());
+        for (int tileY = reference.getMinTileY(); tileY <= reference.getMaxTileY(); tileY++) {
+            for (int tileX = reference.getMinTileX(); tileX <= reference.getMaxTileX(); tileX++) {
+                final Rectangle rect = new Rectangle(reference.tileXToX(tileX),
+                        reference.tileYToY(tileY), reference.getTileWidth(),
+                        reference.getTileHeight()).intersection(bounds);
+                if (!rect.isEmpty() && (roi == null || roi.intersects(rect))) {
+                    rectangles.add(rect);
+                }
+            }
+        }
+        return rectangles;
+    }
+
+    /**
+     * Counts the changes inside a rectangle and publishes them into the {@link ChangeMatrix}.
+     *
+     * @param rect the rectangle to compute
+     */
+    void computeRect(final Rectangle rect) {
+        final ChangeMatrixStatistics statistics = result.getStatistics();
+        final long start = statistics != null ? System.nanoTime() : 0;
+
+        // the rectangles are reference tiles, read them in place rather than copying them
+        final Raster referenceData = data(reference, rect);
+        final Raster nowData = data(now, rect);
+        final RasterAccessor s1 = new RasterAccessor(referenceData, rect, formatTags[0],
+                reference.getColorModel());
+        final RasterAccessor s2 = new RasterAccessor(nowData, rect, formatTags[1],
+                now.getColorModel());
+
+        // rasterize the ROI once for the whole rectangle
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(rect)) {
+            spans = ROISpans.create(roi, rect);
+        }
+
+        final TransitionTable table = result.createTransitionTable();
+        counter.count(s1, s2, null, spans, table);
+        if (statistics != null) {
+            statistics.tileComputed(rect, spans, System.nanoTime() - start);
+        }
+        result.merge(table);
+    }
+
+    /**
+     * Retrieves the data of an image inside a rectangle, the tile itself when the rectangle falls inside a single tile, a copy otherwise,
+     * e.g. for a now image whose tile grid differs from the reference one.
+     */
+    private static Raster data(final PlanarImage image, final Rectangle rect) {
+        final int tileX = image.XToTileX(rect.x);
+        final int tileY = image.YToTileY(rect.y);
+        if (tileX == image.XToTileX(rect.x + rect.width - 1)
+                && tileY == image.YToTileY(rect.y + rect.height - 1)) {
+            return image.getTile(tileX, tileY);
+        }
+        return image.getData(rect);
+    }
+}
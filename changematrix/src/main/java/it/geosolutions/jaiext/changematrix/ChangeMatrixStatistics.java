@@ -0,0 +1,234 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Throughput and contention metrics of the computations filling one or more {@link ChangeMatrix} objects, see
+ * {@link ChangeMatrix#setStatistics(ChangeMatrixStatistics)}.
+ * <p>
+ * The counters are striped: each thread updates the stripe its id hashes to, a fixed number of stripes scaled on the available processors,
+ * and the stripes are summed on read. Threads seldom contend on a stripe, and the memory held does not grow with the number of threads that
+ * ever updated the statistics, so that they can be left enabled in production. Reads are not atomic snapshots: values read while a
+ * computation is running may be slightly behind each other. The statistics can be exposed through JMX, see {@link #register(String)}.
+ * Usage example:
+ *
+ * <pre>
+ * final ChangeMatrixStatistics statistics = new ChangeMatrixStatistics();
+ * cm.setStatistics(statistics);
+ * statistics.register(&quot;clc2000-2006&quot;);
+ * ...
+ * System.out.println(statistics);
+ * statistics.unregister();
+ * </pre>
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ChangeMatrixStatistics implements ChangeMatrixStatisticsMBean {
+
+    /** Domain of the names the statistics are registered with in JMX. */
+    public static final String JMX_DOMAIN = "it.geosolutions.jaiext.changematrix";
+
+    private static final int TILES = 0;
+
+    private static final int PIXELS = 1;
+
+    private static final int MASKED = 2;
+
+    private static final int TILE_NANOS = 3;
+
+    private static final int RECOMPUTED = 4;
+
+    private static final int MERGES = 5;
+
+    private static final int MERGE_NANOS = 6;
+
+    private static final int COUNTERS = 7;
+
+    /** Distance between the first counters of two stripes, 128 bytes so that stripes do not share cache lines. */
+    private static final int STRIDE = 16;
+
+    /** Number of stripes, the power of two above twice the available processors, at most 64. */
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    /** The striped counters, <code>STRIDE</code> slots per stripe. */
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+    /** The values at the last {@link #reset()}, subtracted from the sums. Guarded by this. */
+    private final long[] baseline = new long[COUNTERS];
+
+    /** The name these statistics are registered with in JMX, <code>null</code> if not registered. Guarded by this. */
+    private ObjectName name;
+
+    /**
+     * Records the computation of a tile.
+     *
+     * @param rect the computed rectangle
+     * @param spans the inside spans of the ROI over the rectangle, or <code>null</code> if all of its pixels were counted
+     * @param nanos the time spent counting the changes of the rectangle
+     */
+    void tileComputed(final Rectangle rect, final ROISpans spans, final long nanos) {
+        final long area = (long) rect.width * rect.height;
+        final long inside = spans == null ? area : spans.getArea();
+        final int stripe = stripe();
+        cells.addAndGet(stripe + TILES, 1);
+        cells.addAndGet(stripe + PIXELS, inside);
+        cells.addAndGet(stripe + MASKED, area - inside);
+        cells.addAndGet(stripe + TILE_NANOS, nanos);
+    }
+
+    /**
+     * Records the merge of some changes into a {@link ChangeMatrix}.
+     *
+     * @param recomputed whether the merged changes replaced the ones of a previous computation of the same tile
+     * @param nanos the time spent merging
+     */
+    void merged(final boolean recomputed, final long nanos) {
+        final int stripe = stripe();
+        if (recomputed) {
+            cells.addAndGet(stripe + RECOMPUTED, 1);
+        }
+        cells.addAndGet(stripe + MERGES, 1);
+        cells.addAndGet(stripe + MERGE_NANOS, nanos);
+    }
+
+    private static int stripes(final int processors) {
+        int stripes = 1;
+        while (stripes < 2 * processors && stripes < 64) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * @return the offset of the first counter of the stripe of the current thread
+     */
+    private static int stripe() {
+        // spread the sequential thread ids over the stripes (Fibonacci hashing)
+        final long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & (STRIPES - 1)) * STRIDE;
+    }
+
+    private long sum(final int counter) {
+        long sum = 0;
+        for (int i = counter; i < cells.length(); i += STRIDE) {
+            sum += cells.get(i);
+        }
+        synchronized (this) {
+            return sum - baseline[counter];
+        }
+    }
+
+    public long getTilesComputed() {
+        return sum(TILES);
+    }
+
+    public long getPixelsCounted() {
+        return sum(PIXELS);
+    }
+
+    public long getPixelsMasked() {
+        return sum(MASKED);
+    }
+
+    public long getTileNanos() {
+        return sum(TILE_NANOS);
+    }
+
+    public long getNanosPerTile() {
+        final long tiles = getTilesComputed();
+        return tiles == 0 ? 0 : getTileNanos() / tiles;
+    }
+
+    public long getTilesRecomputed() {
+        return sum(RECOMPUTED);
+    }
+
+    public long getMerges() {
+        return sum(MERGES);
+    }
+
+    public long getMergeNanos() {
+        return sum(MERGE_NANOS);
+    }
+
+    public void reset() {
+        // the counters may be updated while being reset, we move the origin instead
+        final long[] sums = new long[COUNTERS];
+        for (int stripe = 0; stripe < cells.length(); stripe += STRIDE) {
+            for (int i = 0; i < COUNTERS; i++) {
+                sums[i] += cells.get(stripe + i);
+            }
+        }
+        synchronized (this) {
+            System.arraycopy(sums, 0, baseline, 0, COUNTERS);
+        }
+    }
+
+    /**
+     * Registers these statistics in the platform MBean server, with name
+     * <code>it.geosolutions.jaiext.changematrix:type=ChangeMatrixStatistics,name=&lt;name&gt;</code>.
+     *
+     * @param name the name identifying these statistics, e.g. the name of the job they are collected for
+     * @return the name these statistics have been registered with
+     * @throws JMException if the statistics cannot be registered, e.g. because the name is already in use
+     * @throws IllegalStateException if these statistics are already registered
+     */
+    public synchronized ObjectName register(final String name) throws JMException {
+        if (this.name != null) {
+            throw new IllegalStateException("The statistics are already registered as "
+                    + this.name);
+        }
+        final ObjectName objectName = new ObjectName(JMX_DOMAIN
+                + ":type=ChangeMatrixStatistics,name=" + ObjectName.quote(name));
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        this.name = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregisters these statistics from the platform MBean server, if registered.
+     *
+     * @throws JMException if the statistics cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (name == null) {
+            return;
+        }
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        name = null;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeMatrixStatistics[tiles=" + getTilesComputed() + ", pixels="
+                + getPixelsCounted() + ", masked=" + getPixelsMasked() + ", nanosPerTile="
+                + getNanosPerTile() + ", recomputed=" + getTilesRecomputed() + ", merges="
+                + getMerges() + ", mergeNanos=" + getMergeNanos() + "]";
+    }
+}
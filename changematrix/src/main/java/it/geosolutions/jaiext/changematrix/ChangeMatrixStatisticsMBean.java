@@ -0,0 +1,73 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+/**
+ * The JMX management interface of {@link ChangeMatrixStatistics}.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public interface ChangeMatrixStatisticsMBean {
+
+    /**
+     * @return the number of tiles, or blocks, whose changes have been counted
+     */
+    long getTilesComputed();
+
+    /**
+     * @return the number of pixels inside the ROI of the computed tiles, i.e. the pixels whose transition has been looked at
+     */
+    long getPixelsCounted();
+
+    /**
+     * @return the number of pixels of the computed tiles which have been skipped as outside the ROI
+     */
+    long getPixelsMasked();
+
+    /**
+     * @return the total time spent counting the changes of the tiles, in nanoseconds
+     */
+    long getTileNanos();
+
+    /**
+     * @return the mean time spent counting the changes of a tile, in nanoseconds, 0 if no tile has been computed
+     */
+    long getNanosPerTile();
+
+    /**
+     * @return the number of tiles computed again, e.g. after having been evicted from the tile cache, whose counts replaced the ones they
+     *         previously published. Tiles without any change to publish, e.g. outside the ROI, are not tracked.
+     */
+    long getTilesRecomputed();
+
+    /**
+     * @return the number of merges of the changes of a tile, or of a reduction, into a {@link ChangeMatrixDescriptor.ChangeMatrix}
+     */
+    long getMerges();
+
+    /**
+     * @return the total time spent merging changes into a {@link ChangeMatrixDescriptor.ChangeMatrix}, waiting for its locks included, in
+     *         nanoseconds
+     */
+    long getMergeNanos();
+
+    /**
+     * Starts counting again from 0.
+     */
+    void reset();
+}
@@ -0,0 +1,91 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import java.util.Map;
+
+/**
+ * A primitive open addressing hash table from class values to their indexes in a change matrix, used when the class values span a domain
+ * too wide for a direct lookup array, e.g. parcel or soil unit IDs.
+ * <p>
+ * Linear probing over power of two arrays, kept at most half full, as {@link SparseCounters}. Nothing is boxed on lookup. The table is
+ * filled once at construction and never changes afterwards, hence it can be read concurrently.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class ClassIndexTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int[] keys;
+
+    private final int[] values;
+
+    /** Tells the used slots apart, as any <code>int</code> can be a class value. */
+    private final boolean[] used;
+
+    /**
+     * Constructor
+     *
+     * @param mappings the indexes of the class values
+     */
+    ClassIndexTable(final Map<Integer, Integer> mappings) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < mappings.size() * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        final int mask = capacity - 1;
+        for (Map.Entry<Integer, Integer> entry : mappings.entrySet()) {
+            final int key = entry.getKey().intValue();
+            int slot = hash(key) & mask;
+            while (used[slot] && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = key;
+            values[slot] = entry.getValue().intValue();
+        }
+    }
+
+    private static int hash(final int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Retrieves the index of a class value.
+     *
+     * @param key the class value
+     * @param missing the value to return for unknown class values
+     * @return the index of the class value, <code>missing</code> if it is not in the table
+     */
+    int get(final int key, final int missing) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Point;
+import java.awt.image.renderable.ParameterBlock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.media.jai.OperationDescriptorImpl;
+import javax.media.jai.ROI;
+import javax.media.jai.registry.RenderedRegistryMode;
+
+/**
+ * An {@code OperationDescriptor} for the "GriddedChangeMatrix" operation.
+ * <p>
+ * This operation works like the "ChangeMatrix" one, but counts the changes separately for each cell of a coarse grid laid over the images, e.g.
+ * a 1 km reporting grid over 100 m rasters, in a single pass over the data. The grid is anchored at the upper left corner of the images, cell
+ * <code>(i, j)</code> covering the pixels whose column, relative to the first one, is in <code>[i * cellWidth, (i + 1) * cellWidth)</code> and
+ * whose row is in <code>[j * cellHeight, (j + 1) * cellHeight)</code>. The counts are collected by a {@link GriddedChangeMatrix}.
+ * <p>
+ * Sources are the reference image (situation at time T0) and the now image (situation at time T1 > T0), as for the "ChangeMatrix" operation.
+ * The destination holds the change flags.
+ * <p>
+ * <b>Summary of parameters:</b>
+ * <table border="1", cellpadding="3">
+ * <tr>
+ * <th>Name</th>
+ * <th>Class</th>
+ * <th>Default</th>
+ * <th>Description</th>
+ * </tr>
+ * <tr>
+ * <td>roi</td>
+ * <td>ROI</td>
+ * <td>null</td>
+ * <td>An optional ROI defining the area to process</td>
+ * </tr>
+ * <tr>
+ * <td>result</td>
+ * <td>GriddedChangeMatrix</td>
+ * <td>null</td>
+ * <td>The {@link GriddedChangeMatrix} object to collect the changes of each grid cell.</td>
+ * </tr>
+ * </table>
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class GriddedChangeMatrixDescriptor extends OperationDescriptorImpl {
+
+    /**
+     * This class is used to capture the changes in classes between two images, separately for each cell of a grid.
+     * <p>
+     * Grids are usually made of many small cells, each one seeing a handful of transitions, so the counts are not kept in a {@link ChangeMatrix}
+     * per cell but as compact lists of non zero counters, published by tile as for the "ChangeMatrix" operation: a tile computed again
+     * replaces its previous contribution. Use {@link #getChangeMatrix(int, int)} to get a full matrix for a cell.
+     *
+     * @author Simone Giannecchini, GeoSolutions SAS
+     */
+    public static class GriddedChangeMatrix {
+
+        /** Resolves the classes, it is never updated itself. */
+        private final ChangeMatrix template;
+
+        /** The classes in the index order of {@link #template}. */
+        private final Set<Integer> classes;
+
+        private final int cellWidth;
+
+        private final int cellHeight;
+
+        /** Counters of the tiles computed so far. */
+        private final Map<ChangeMatrix.TileKey, TileCells> tiles = new HashMap<ChangeMatrix.TileKey, TileCells>();
+
+        /** Counters of the tiles summed together by cell, <code>null</code> when to be assembled again. Guarded by {@link #tiles}. */
+        private Map<Long, long[][]> assembled;
+
+        private volatile boolean frozen = false;
+
+        /**
+         * Constructor
+         *
+         * @param classes the {@link Set} of {@link Integer} classes to register changes for
+         * @param cellWidth the width of the grid cells, in pixels
+         * @param cellHeight the height of the grid cells, in pixels
+         */
+        public GriddedChangeMatrix(final Set<Integer> classes, final int cellWidth,
+                final int cellHeight) {
+            this(classes, null, cellWidth, cellHeight);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param classes the {@link Set} of {@link Integer} classes to register changes for
+         * @param remapping the remapping from raw values to classes, or <code>null</code> if the raw values are the classes, see
+         *        {@link ChangeMatrix#ChangeMatrix(Set, Map)}
+         * @param cellWidth the width of the grid cells, in pixels
+         * @param cellHeight the height of the grid cells, in pixels
+         */
+        public GriddedChangeMatrix(final Set<Integer> classes,
+                final Map<Integer, Integer> remapping, final int cellWidth, final int cellHeight) {
+            if (cellWidth <= 0 || cellHeight <= 0) {
+                throw new IllegalArgumentException("The grid cells must have a positive size");
+            }
+            this.template = new ChangeMatrix(classes, remapping);
+            this.classes = new LinkedHashSet<Integer>();
+            for (int clazz : template.getClasses()) {
+                this.classes.add(clazz);
+            }
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+        }
+
+        /**
+         * @return the width of the grid cells, in pixels
+         */
+        public int getCellWidth() {
+            return cellWidth;
+        }
+
+        /**
+         * @return the height of the grid cells, in pixels
+         */
+        public int getCellHeight() {
+            return cellHeight;
+        }
+
+        /**
+         * Retrieves the number of classes we have been asked to register changes for
+         *
+         * @return int, the number of classes we have been asked to register changes for
+         */
+        public int getClassesNumber() {
+            return template.getClassesNumber();
+        }
+
+        /**
+         * @return the grid cells where at least a transition between the classes has been registered, sorted by row and then by column
+         */
+        public List<Point> getCells() {
+            final Long[] keys;
+            synchronized (tiles) {
+                keys = assemble().keySet().toArray(new Long[0]);
+            }
+            Arrays.sort(keys);
+            final List<Point> cells = new ArrayList<Point>(keys.length);
+            for (Long key : keys) {
+                cells.add(new Point((int) key.longValue(), (int) (key.longValue() >> 32)));
+            }
+            return Collections.unmodifiableList(cells);
+        }
+
+        /**
+         * Retrieves the change value for a certain order pair of classes in a grid cell.
+         *
+         * @param cellX the column of the grid cell
+         * @param cellY the row of the grid cell
+         * @param reference, the value for the reference image
+         * @param now, the value for the second image
+         * @return the number of pixels of the cell that changed class as per the provided ones, or {@link ChangeMatrix#NO_VALUE} in case one of
+         *         the two, or both, classes weren't in the initial set of classes to register changes for.
+         */
+        public long retrievePairOccurrences(final int cellX, final int cellY, final int reference,
+                final int now) {
+            final int row = template.indexOfClass(reference);
+            final int col = template.indexOfClass(now);
+            if (row == ChangeMatrix.NO_CLASS || col == ChangeMatrix.NO_CLASS) {
+                return ChangeMatrix.NO_VALUE;
+            }
+            final long pair = col + (long) row * template.getClassesNumber();
+            synchronized (tiles) {
+                final long[][] counters = assemble().get(key(cellX, cellY));
+                if (counters != null) {
+                    for (int k = 0; k < counters[0].length; k++) {
+                        if (counters[0][k] == pair) {
+                            return counters[1][k];
+                        }
+                    }
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Builds the {@link ChangeMatrix} of a grid cell. The returned matrix is a copy, it is not updated by further computations.
+         *
+         * @param cellX the column of the grid cell
+         * @param cellY the row of the grid cell
+         * @return the {@link ChangeMatrix} of the cell, or <code>null</code> if no transition between the classes has been registered for it
+         */
+        public ChangeMatrix getChangeMatrix(final int cellX, final int cellY) {
+            final long[][] counters;
+            synchronized (tiles) {
+                counters = assemble().get(key(cellX, cellY));
+            }
+            if (counters == null) {
+                return null;
+            }
+            final ChangeMatrix matrix = new ChangeMatrix(classes);
+            final TransitionTable table = matrix.createTransitionTable();
+            for (int k = 0; k < counters[0].length; k++) {
+                table.addCell(counters[0][k], counters[1][k]);
+            }
+            matrix.merge(table);
+            return matrix;
+        }
+
+        /**
+         * This is used to indicate to the underlying code to stop registering values as the computation has been performed already.
+         */
+        public void freeze() {
+            frozen = true;
+        }
+
+        /**
+         * @return the {@link ChangeMatrix} resolving the classes for the counting loops, never updated itself
+         */
+        ChangeMatrix getTemplate() {
+            return template;
+        }
+
+        /**
+         * @return a {@link TransitionTable} for counting the transitions of a single cell, sparse as cells usually see a handful of them
+         */
+        TransitionTable createTransitionTable() {
+            return new TransitionTable(template.getClassesNumber(), true);
+        }
+
+        /**
+         * Publishes the counters of the cells of a tile, replacing the ones previously published for the same tile, if any.
+         *
+         * @param owner an identifier of the image the tile belongs to
+         * @param tileX the X index of the tile
+         * @param tileY the Y index of the tile
+         * @param cells the counters of the cells of the tile
+         */
+        void publish(final long owner, final int tileX, final int tileY, final TileCells cells) {
+            if (frozen) {
+                return;
+            }
+            final ChangeMatrix.TileKey key = new ChangeMatrix.TileKey(owner, tileX, tileY);
+            synchronized (tiles) {
+                final TileCells previous = cells.isEmpty() ? tiles.remove(key) : tiles.put(key,
+                        cells);
+                if (previous != null || !cells.isEmpty()) {
+                    assembled = null;
+                }
+            }
+        }
+
+        /**
+         * Sums together the counters of the tiles by cell. To be called holding the lock on {@link #tiles}.
+         *
+         * @return the non zero counters of each cell, as <code>{ pairs, counts }</code>
+         */
+        private Map<Long, long[][]> assemble() {
+            if (assembled == null) {
+                final Map<Long, long[][]> sum = new HashMap<Long, long[][]>();
+                for (TileCells partial : tiles.values()) {
+                    for (int i = 0; i < partial.size; i++) {
+                        final long[][] counters = partial.get(i);
+                        final long[][] previous = sum.put(partial.keys[i], counters);
+                        if (previous != null) {
+                            // a cell crossing tiles
+                            sum.put(partial.keys[i], combine(previous, counters));
+                        }
+                    }
+                }
+                assembled = sum;
+            }
+            return assembled;
+        }
+
+        private static long[][] combine(final long[][] a, final long[][] b) {
+            final SparseCounters sum = new SparseCounters(a[0].length + b[0].length);
+            for (int k = 0; k < a[0].length; k++) {
+                sum.add(a[0][k], a[1][k]);
+            }
+            for (int k = 0; k < b[0].length; k++) {
+                sum.add(b[0][k], b[1][k]);
+            }
+            final long[][] combined = new long[2][sum.size()];
+            sum.copyTo(combined[0], combined[1]);
+            return combined;
+        }
+
+        static long key(final int cellX, final int cellY) {
+            return ((long) cellY << 32) | (cellX & 0xFFFFFFFFL);
+        }
+
+        /**
+         * The non zero counters of the grid cells intersecting a tile, stored back to back.
+         */
+        static final class TileCells {
+
+            private long[] keys = new long[16];
+
+            /** Where the counters of each cell start, one more than the cells. */
+            private int[] starts = new int[17];
+
+            private long[] pairs = new long[64];
+
+            private long[] counts = new long[64];
+
+            private int size;
+
+            /**
+             * Adds the counters of a cell.
+             *
+             * @param cellX the column of the grid cell
+             * @param cellY the row of the grid cell
+             * @param table the transitions counted for the cell, not empty
+             */
+            void add(final int cellX, final int cellY, final TransitionTable table) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    starts = Arrays.copyOf(starts, size * 2 + 1);
+                }
+                final int start = starts[size];
+                final int required = start + table.size();
+                if (required > pairs.length) {
+                    final int capacity = Math.max(required, pairs.length * 2);
+                    pairs = Arrays.copyOf(pairs, capacity);
+                    counts = Arrays.copyOf(counts, capacity);
+                }
+                table.copyTo(pairs, counts, start);
+                keys[size++] = key(cellX, cellY);
+                starts[size] = required;
+            }
+
+            boolean isEmpty() {
+                return size == 0;
+            }
+
+            long[][] get(final int i) {
+                return new long[][] { Arrays.copyOfRange(pairs, starts[i], starts[i + 1]),
+                        Arrays.copyOfRange(counts, starts[i], starts[i + 1]) };
+            }
+        }
+    }
+
+    private static final long serialVersionUID = 4867092873489276815L;
+
+    public static final int ROI_ARG_INDEX = 0;
+
+    public static final int RESULT_ARG_INDEX = 1;
+
+    public static final String[] PARAM_NAMES = { "roi", "result" };
+
+    private static final Class<?>[] PARAM_CLASSES = { javax.media.jai.ROI.class,
+            GriddedChangeMatrix.class };
+
+    private static final Object[] PARAM_DEFAULTS = { (ROI) null, NO_PARAMETER_DEFAULT };
+
+    /** Constructor. */
+    public GriddedChangeMatrixDescriptor() {
+        super(
+                new String[][] {
+                        { "GlobalName", "GriddedChangeMatrix" },
+                        { "LocalName", "GriddedChangeMatrix" },
+                        { "Vendor", "org.jaitools.media.jai" },
+                        { "Description",
+                                "Calculate a change matrix for each cell of a grid between two images" },
+                        { "DocURL", "http://www.geotools.org" },
+                        { "Version", "1.0.0" },
+                        {
+                                "arg0Desc",
+                                "roi (default null) - an optional ROI object for source and/or"
+                                        + "destination masking" },
+                        {
+                                "arg1Desc",
+                                "result (GriddedChangeMatrix) -"
+                                        + "the grid holding the count of change pixels of each cell" } },
+
+                new String[] { RenderedRegistryMode.MODE_NAME }, // supported modes
+
+                2, // number of sources
+
+                PARAM_NAMES, PARAM_CLASSES, PARAM_DEFAULTS,
+
+                null // valid values (none defined)
+        );
+    }
+
+    /**
+     * Validates supplied parameters.
+     *
+     * @param modeName the rendering mode
+     * @param pb the parameter block
+     * @param msg a {@code StringBuffer} to receive error messages
+     * @return {@code true} if parameters are valid; {@code false} otherwise
+     */
+    @Override
+    public boolean validateArguments(String modeName, ParameterBlock pb, StringBuffer msg) {
+        if (!super.validateArguments(modeName, pb, msg)) {
+            return false;
+        }
+
+        final Object o = pb.getObjectParameter(RESULT_ARG_INDEX);
+        if (o instanceof GriddedChangeMatrix) {
+            return true;
+        } else {
+            msg.append("result is null or not of type GriddedChangeMatrix");
+            return false;
+        }
+    }
+}
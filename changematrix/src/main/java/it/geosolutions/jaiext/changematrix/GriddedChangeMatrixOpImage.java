@@ -0,0 +1,145 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.GriddedChangeMatrixDescriptor.GriddedChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PointOpImage;
+import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
+import javax.media.jai.RasterFormatTag;
+
+/**
+ * An operator to calculate change in pixels between two classified images separately for each cell of a grid, relying on the
+ * {@link GriddedChangeMatrix} element.
+ * <p>
+ * Each tile is split along the grid lines and each piece is walked by the same {@link TransitionCounter} loops as the "ChangeMatrix" operation,
+ * so that all the cells are computed in a single pass over the data.
+ *
+ * @see GriddedChangeMatrixDescriptor Description
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class GriddedChangeMatrixOpImage extends PointOpImage {
+
+    private final ROI roi;
+
+    private final GriddedChangeMatrix result;
+
+    private final TransitionCounter counter;
+
+    /** Source of the identifiers of the images publishing tiles into a {@link GriddedChangeMatrix}. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** Identifies this image when publishing its tiles into the {@link GriddedChangeMatrix}. */
+    private final long id = IDS.incrementAndGet();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param reference the reference image
+     * @param now the now image
+     * @param config configurable attributes of the image
+     * @param layout an optional ImageLayout object
+     * @param roi an optional {@code ROI}, already cropped to the bounds of the sources, or {@code null}
+     * @param result a {@link GriddedChangeMatrix} object to compute and hold the results
+     * @see GriddedChangeMatrixDescriptor
+     */
+    @SuppressWarnings("rawtypes")
+    public GriddedChangeMatrixOpImage(final RenderedImage reference, final RenderedImage now,
+            final Map config, final ImageLayout layout, final ROI roi,
+            final GriddedChangeMatrix result) {
+
+        super(reference, now, layout, config, true);
+
+        this.roi = roi;
+        this.result = result;
+        this.counter = new TransitionCounter(result.getTemplate(), reference.getSampleModel()
+                .getDataType());
+    }
+
+    /**
+     * Computes the change flags for the specified rectangle and registers the changes of each grid cell it intersects.
+     *
+     * @param sources Cobbled sources, guaranteed to provide all the source data necessary for computing the rectangle.
+     * @param dest The tile containing the rectangle to be computed.
+     * @param destRect The rectangle within the tile to be computed.
+     */
+    protected void computeRect(final Raster[] sources, final WritableRaster dest,
+            final Rectangle destRect) {
+        // Retrieve format tags.
+        final RasterFormatTag[] formatTags = getFormatTags();
+
+        // rasterize the ROI once for the whole rectangle
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(destRect)) {
+            spans = ROISpans.create(roi, destRect);
+        }
+
+        // the grid cells intersecting the rectangle
+        final int cellWidth = result.getCellWidth();
+        final int cellHeight = result.getCellHeight();
+        final int firstCellX = (destRect.x - getMinX()) / cellWidth;
+        final int lastCellX = (destRect.x + destRect.width - 1 - getMinX()) / cellWidth;
+        final int firstCellY = (destRect.y - getMinY()) / cellHeight;
+        final int lastCellY = (destRect.y + destRect.height - 1 - getMinY()) / cellHeight;
+
+        /* For PointOpImage, srcRect = destRect. */
+        final RasterAccessor s1 = new RasterAccessor(sources[0], destRect, formatTags[0],
+                getSourceImage(0).getColorModel());
+        final RasterAccessor s2 = new RasterAccessor(sources[1], destRect, formatTags[1],
+                getSourceImage(1).getColorModel());
+        final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[2],
+                getColorModel());
+
+        // one table reused for all the cells, as they are published compacted, its sparse
+        // counters being copied and cleared in the time of the transitions actually hit
+        final TransitionTable table = result.createTransitionTable();
+        final GriddedChangeMatrix.TileCells cells = new GriddedChangeMatrix.TileCells();
+        final Rectangle cell = new Rectangle(cellWidth, cellHeight);
+        for (int cellY = firstCellY; cellY <= lastCellY; cellY++) {
+            for (int cellX = firstCellX; cellX <= lastCellX; cellX++) {
+                cell.setLocation(getMinX() + cellX * cellWidth, getMinY() + cellY * cellHeight);
+                final Rectangle rect = cell.intersection(destRect);
+
+                // walk the cell within the accessors of the whole rectangle
+                final int x = rect.x - destRect.x;
+                final int y = rect.y - destRect.y;
+                final ROISpans cellSpans = spans == null ? null : spans.crop(x, y, rect.width,
+                        rect.height);
+                counter.count(s1, s2, d, x, y, rect.width, rect.height, cellSpans, table);
+
+                if (!table.isEmpty()) {
+                    cells.add(cellX, cellY, table);
+                    table.clear();
+                }
+            }
+        }
+        d.copyBinaryDataToRaster();
+
+        // publish once per tile, replacing what a previous computation of the same tile published
+        result.publish(id, XToTileX(destRect.x), YToTileY(destRect.y), cells);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.GriddedChangeMatrixDescriptor.GriddedChangeMatrix;
+
+import java.awt.RenderingHints;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.renderable.RenderedImageFactory;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.ROI;
+
+import com.sun.media.jai.opimage.RIFUtil;
+
+/**
+ * The image factory for the {@link GriddedChangeMatrixOpImage} operation.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class GriddedChangeMatrixRIF implements RenderedImageFactory {
+
+    /** Constructor */
+    public GriddedChangeMatrixRIF() {
+    }
+
+    /**
+     * Create a new instance of {@link GriddedChangeMatrixOpImage} in the rendered layer.
+     *
+     * @param paramBlock specifies the source images and the parameters
+     * @param renderHints mostly useless with this image
+     */
+    public RenderedImage create(ParameterBlock paramBlock, RenderingHints renderHints) {
+
+        final RenderedImage reference = paramBlock.getRenderedSource(0);
+        final RenderedImage now = paramBlock.getRenderedSource(1);
+        ChangeMatrixRIF.checkSources(reference, now);
+
+        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
+        if (layout == null)
+            layout = new ImageLayout();
+
+        // result
+        final GriddedChangeMatrix result = (GriddedChangeMatrix) paramBlock
+                .getObjectParameter(GriddedChangeMatrixDescriptor.RESULT_ARG_INDEX);
+
+        // checks on ROI
+        ROI roi = (ROI) paramBlock.getObjectParameter(GriddedChangeMatrixDescriptor.ROI_ARG_INDEX);
+        roi = ChangeMatrixRIF.checkROI(roi, reference);
+
+        return new GriddedChangeMatrixOpImage(reference, now, renderHints, layout, roi, result);
+    }
+}
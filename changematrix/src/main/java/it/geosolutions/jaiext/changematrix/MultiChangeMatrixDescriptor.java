@@ -0,0 +1,140 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.image.renderable.ParameterBlock;
+
+import javax.media.jai.OperationDescriptorImpl;
+import javax.media.jai.ROI;
+import javax.media.jai.registry.RenderedRegistryMode;
+
+/**
+ * An {@code OperationDescriptor} for the "MultiChangeMatrix" operation.
+ * <p>
+ * This operation works on a time series of two or more classified images, the sources, sorted from the oldest to the most recent one. It
+ * computes in a single pass over the tiles all the consecutive pairwise change matrices, i.e. source 0 against source 1, source 1 against source
+ * 2 and so on, so that each image of the series is read once instead of once per pair it takes part in.
+ * <p>
+ * The destination holds, for each pixel, how many times its class changed along the series, 0 being used for the pixels outside the ROI.
+ * <p>
+ * <b>Summary of parameters:</b>
+ * <table border="1", cellpadding="3">
+ * <tr>
+ * <th>Name</th>
+ * <th>Class</th>
+ * <th>Default</th>
+ * <th>Description</th>
+ * </tr>
+ * <tr>
+ * <td>roi</td>
+ * <td>ROI</td>
+ * <td>null</td>
+ * <td>An optional ROI defining the area to process</td>
+ * </tr>
+ * <tr>
+ * <td>results</td>
+ * <td>ChangeMatrix[]</td>
+ * <td>null</td>
+ * <td>The {@link ChangeMatrix} objects to collect the changes, one less than the sources, the i-th one collecting the changes from source i to
+ * source i + 1.</td>
+ * </tr>
+ * </table>
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class MultiChangeMatrixDescriptor extends OperationDescriptorImpl {
+
+    private static final long serialVersionUID = 4171638229521366453L;
+
+    public static final int ROI_ARG_INDEX = 0;
+
+    public static final int RESULTS_ARG_INDEX = 1;
+
+    public static final String[] PARAM_NAMES = { "roi", "results" };
+
+    private static final Class<?>[] PARAM_CLASSES = { javax.media.jai.ROI.class,
+            ChangeMatrix[].class };
+
+    private static final Object[] PARAM_DEFAULTS = { (ROI) null, NO_PARAMETER_DEFAULT };
+
+    /** Constructor. */
+    public MultiChangeMatrixDescriptor() {
+        super(
+                new String[][] {
+                        { "GlobalName", "MultiChangeMatrix" },
+                        { "LocalName", "MultiChangeMatrix" },
+                        { "Vendor", "org.jaitools.media.jai" },
+                        { "Description",
+                                "Calculate the change matrices between consecutive images of a series" },
+                        { "DocURL", "http://www.geotools.org" },
+                        { "Version", "1.0.0" },
+                        {
+                                "arg0Desc",
+                                "roi (default null) - an optional ROI object for source and/or"
+                                        + "destination masking" },
+                        {
+                                "arg1Desc",
+                                "results (ChangeMatrix[]) -"
+                                        + "the matrices holding the count of change pixels between consecutive sources" } },
+
+                new String[] { RenderedRegistryMode.MODE_NAME }, // supported modes
+
+                2, // minimum number of sources
+
+                PARAM_NAMES, PARAM_CLASSES, PARAM_DEFAULTS,
+
+                null // valid values (none defined)
+        );
+    }
+
+    /**
+     * Validates supplied parameters.
+     *
+     * @param modeName the rendering mode
+     * @param pb the parameter block
+     * @param msg a {@code StringBuffer} to receive error messages
+     * @return {@code true} if parameters are valid; {@code false} otherwise
+     */
+    @Override
+    public boolean validateArguments(String modeName, ParameterBlock pb, StringBuffer msg) {
+        if (!super.validateArguments(modeName, pb, msg)) {
+            return false;
+        }
+
+        // one result for each pair of consecutive sources
+        final Object o = pb.getObjectParameter(RESULTS_ARG_INDEX);
+        if (!(o instanceof ChangeMatrix[])) {
+            msg.append("results is null or not of type ChangeMatrix[]");
+            return false;
+        }
+        final ChangeMatrix[] results = (ChangeMatrix[]) o;
+        if (results.length != pb.getNumSources() - 1) {
+            msg.append("results must hold one ChangeMatrix for each pair of consecutive sources");
+            return false;
+        }
+        for (ChangeMatrix result : results) {
+            if (result == null) {
+                msg.append("results contains a null ChangeMatrix");
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PointOpImage;
+import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
+import javax.media.jai.RasterFormatTag;
+
+/**
+ * An operator to calculate the changes in pixels along a time series of classified images, filling one {@link ChangeMatrix} for each pair of
+ * consecutive images in a single pass over the tiles.
+ *
+ * @see MultiChangeMatrixDescriptor Description
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class MultiChangeMatrixOpImage extends PointOpImage {
+
+    private final ROI roi;
+
+    private final ChangeMatrix[] results;
+
+    /** One counter for each pair of consecutive sources. */
+    private final TransitionCounter[] counters;
+
+    /** Source of the identifiers of the images publishing tiles into a {@link ChangeMatrix}. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** Identifies this image when publishing its tiles into the {@link ChangeMatrix} objects. */
+    private final long id = IDS.incrementAndGet();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sources the images of the series, from the oldest to the most recent one
+     * @param config configurable attributes of the image
+     * @param layout an optional ImageLayout object
+     * @param roi an optional {@code ROI}, already cropped to the bounds of the sources, or {@code null}
+     * @param results the {@link ChangeMatrix} objects to compute, the i-th one holding the changes from source i to source i + 1
+     * @see MultiChangeMatrixDescriptor
+     */
+    @SuppressWarnings("rawtypes")
+    public MultiChangeMatrixOpImage(final Vector<RenderedImage> sources, final Map config,
+            final ImageLayout layout, final ROI roi, final ChangeMatrix[] results) {
+
+        super(sources, layout, config, true);
+
+        if (results.length != sources.size() - 1) {
+            throw new IllegalArgumentException(
+                    "One ChangeMatrix is needed for each pair of consecutive sources");
+        }
+        this.roi = roi;
+        this.results = results.clone();
+        final int dataType = sources.get(0).getSampleModel().getDataType();
+        this.counters = new TransitionCounter[results.length];
+        for (int i = 0; i < results.length; i++) {
+            counters[i] = new TransitionCounter(results[i], dataType);
+        }
+    }
+
+    /**
+     * Computes the number of changes for the specified rectangle and registers them in the {@link ChangeMatrix} objects.
+     *
+     * @param sources Cobbled sources, guaranteed to provide all the source data necessary for computing the rectangle.
+     * @param dest The tile containing the rectangle to be computed.
+     * @param destRect The rectangle within the tile to be computed.
+     */
+    protected void computeRect(final Raster[] sources, final WritableRaster dest,
+            final Rectangle destRect) {
+        // Retrieve format tags.
+        final RasterFormatTag[] formatTags = getFormatTags();
+
+        /* For PointOpImage, srcRect = destRect. */
+        final RasterAccessor[] s = new RasterAccessor[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            s[i] = new RasterAccessor(sources[i], destRect, formatTags[i], getSourceImage(i)
+                    .getColorModel());
+        }
+        final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[sources.length],
+                getColorModel());
+
+        // rasterize the ROI once for the whole rectangle
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(destRect)) {
+            spans = ROISpans.create(roi, destRect);
+        }
+
+        // each source is accessed once for all the pairs it takes part in, the first pair sets
+        // the change flags and the following ones add to them
+        final int tileX = XToTileX(destRect.x);
+        final int tileY = YToTileY(destRect.y);
+        for (int i = 0; i < counters.length; i++) {
+            final TransitionTable table = results[i].createTransitionTable();
+            counters[i].count(s[i], s[i + 1], d, i > 0, spans, table, null);
+            results[i].merge(id, tileX, tileY, table);
+        }
+
+        d.copyBinaryDataToRaster();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.RenderingHints;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.renderable.RenderedImageFactory;
+import java.util.Vector;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.ROI;
+
+import com.sun.media.jai.opimage.RIFUtil;
+
+/**
+ * The image factory for the {@link MultiChangeMatrixOpImage} operation.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class MultiChangeMatrixRIF implements RenderedImageFactory {
+
+    /** Constructor */
+    public MultiChangeMatrixRIF() {
+    }
+
+    /**
+     * Create a new instance of {@link MultiChangeMatrixOpImage} in the rendered layer.
+     *
+     * @param paramBlock specifies the source images and the parameters
+     * @param renderHints mostly useless with this image
+     */
+    public RenderedImage create(ParameterBlock paramBlock, RenderingHints renderHints) {
+
+        // the series, each image must be comparable with the first one
+        final int numSources = paramBlock.getNumSources();
+        if (numSources < 2) {
+            throw new IllegalArgumentException("At least two sources are needed");
+        }
+        final Vector<RenderedImage> sources = new Vector<RenderedImage>(numSources);
+        final RenderedImage first = paramBlock.getRenderedSource(0);
+        sources.add(first);
+        for (int i = 1; i < numSources; i++) {
+            final RenderedImage source = paramBlock.getRenderedSource(i);
+            ChangeMatrixRIF.checkSources(first, source);
+            sources.add(source);
+        }
+
+        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
+        if (layout == null)
+            layout = new ImageLayout();
+
+        // results
+        final ChangeMatrix[] results = (ChangeMatrix[]) paramBlock
+                .getObjectParameter(MultiChangeMatrixDescriptor.RESULTS_ARG_INDEX);
+        if (results == null || results.length != numSources - 1) {
+            throw new IllegalArgumentException(
+                    "One ChangeMatrix is needed for each pair of consecutive sources");
+        }
+
+        // checks on ROI
+        ROI roi = (ROI) paramBlock.getObjectParameter(MultiChangeMatrixDescriptor.ROI_ARG_INDEX);
+        roi = ChangeMatrixRIF.checkROI(roi, first);
+
+        return new MultiChangeMatrixOpImage(sources, renderHints, layout, roi, results);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Writes the change flags of a rectangle as a 1 bit per pixel mask, i.e. into a raster backed by a byte {@link MultiPixelPackedSampleModel}.
+ * <p>
+ * The rectangle is cleared first, then {@link TransitionCounter} sets the bits of the runs of changed pixels while counting them, so that the
+ * sources are read once and the bits are written a byte at a time within a run.
+ * <p>
+ * As for the unpacked change flags, 1 marks a changed pixel and 0 an unchanged pixel or a pixel outside the ROI.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class PackedChangeMask {
+
+    private final byte[] bits;
+
+    private final int lineStride;
+
+    /** The bit of the first pixel of the rectangle in its lines. */
+    private final int bitOffset;
+
+    /** The offset of the first line of the rectangle. */
+    private final int firstLineOffset;
+
+    private final int width;
+
+    private final int height;
+
+    /** The offset of the current line, see {@link #moveTo(int)}. */
+    private int lineOffset;
+
+    /** The row major index of the first pixel of the current line. */
+    private int rowStart;
+
+    /**
+     * Constructor
+     *
+     * @param dest the destination, backed by a 1 bit per pixel byte {@link MultiPixelPackedSampleModel}
+     * @param rect the rectangle to write
+     */
+    PackedChangeMask(final WritableRaster dest, final Rectangle rect) {
+        final MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) dest.getSampleModel();
+        final DataBufferByte buffer = (DataBufferByte) dest.getDataBuffer();
+        this.bits = buffer.getData();
+        this.lineStride = sm.getScanlineStride();
+        this.bitOffset = sm.getDataBitOffset() + rect.x - dest.getSampleModelTranslateX();
+        this.firstLineOffset = buffer.getOffset() + (rect.y - dest.getSampleModelTranslateY())
+                * lineStride;
+        this.width = rect.width;
+        this.height = rect.height;
+        this.lineOffset = firstLineOffset;
+    }
+
+    /**
+     * Tells whether the provided {@link SampleModel} is a 1 bit per pixel, byte backed, one.
+     *
+     * @param sampleModel the {@link SampleModel} to check
+     * @return <code>true</code> if the change flags can be packed into the provided {@link SampleModel}
+     */
+    static boolean isPacked(final SampleModel sampleModel) {
+        return sampleModel instanceof MultiPixelPackedSampleModel
+                && sampleModel.getDataType() == DataBuffer.TYPE_BYTE
+                && ((MultiPixelPackedSampleModel) sampleModel).getPixelBitStride() == 1;
+    }
+
+    /**
+     * Clears the change flags of the rectangle, i.e. marks all of its pixels as unchanged.
+     */
+    void clear() {
+        int offset = firstLineOffset;
+        for (int h = 0; h < height; h++) {
+            fill(bits, offset, bitOffset, bitOffset + width, false);
+            offset += lineStride;
+        }
+    }
+
+    /**
+     * Moves to a line of the rectangle, the one {@link #set(int, int)} will write.
+     *
+     * @param h the line, relative to the rectangle
+     */
+    void moveTo(final int h) {
+        lineOffset = firstLineOffset + h * lineStride;
+        rowStart = h * width;
+    }
+
+    /**
+     * Marks as changed a run of pixels of the current line.
+     *
+     * @param index the row major index in the rectangle of the first pixel of the run
+     * @param length the length of the run
+     */
+    void set(final int index, final int length) {
+        final int bit = bitOffset + index - rowStart;
+        fill(bits, lineOffset, bit, bit + length, true);
+    }
+
+    /**
+     * Sets the bits in <code>[from, to)</code> of a line, most significant bit first.
+     */
+    private static void fill(final byte[] bits, final int lineOffset, final int from,
+            final int to, final boolean value) {
+        if (from >= to) {
+            return;
+        }
+        int first = lineOffset + (from >> 3);
+        final int last = lineOffset + ((to - 1) >> 3);
+        final int leading = 0xFF >>> (from & 7);
+        final int trailing = 0xFF << (7 - ((to - 1) & 7)) & 0xFF;
+        if (first == last) {
+            set(bits, first, leading & trailing, value);
+            return;
+        }
+        set(bits, first++, leading, value);
+        if (first < last) {
+            Arrays.fill(bits, first, last, value ? (byte) 0xFF : (byte) 0);
+        }
+        set(bits, last, trailing, value);
+    }
+
+    private static void set(final byte[] bits, final int index, final int mask,
+            final boolean value) {
+        if (value) {
+            bits[index] |= mask;
+        } else {
+            bits[index] &= ~mask;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.media.jai.ROI;
+
+/**
+ * The inside spans of a {@link ROI} over a rectangle, one sorted list of disjoint <code>[start, end)</code> column intervals per row.
+ * <p>
+ * The ROI is rasterized once, through {@link ROI#getAsRectangleList(int, int, int, int)}, so that the tile loops can skip masked pixels a span at
+ * a time instead of querying the ROI geometry for each pixel. Columns are relative to the rectangle origin.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class ROISpans {
+
+    /** Spans for a row with no inside pixels. */
+    private static final int[] EMPTY_ROW = new int[0];
+
+    /** Per row spans, as <code>start0, end0, start1, end1, ...</code> */
+    private final int[][] rows;
+
+    private ROISpans(final int[][] rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Rasterizes the provided {@link ROI} over the provided rectangle.
+     *
+     * @param roi the {@link ROI} to rasterize
+     * @param rect the area of interest
+     * @return the {@link ROISpans} of the ROI over the rectangle
+     */
+    @SuppressWarnings("unchecked")
+    static ROISpans create(final ROI roi, final Rectangle rect) {
+        final int[][] rows = new int[rect.height][];
+        final int[] sizes = new int[rect.height];
+
+        final List<Rectangle> rectangles = roi.getAsRectangleList(rect.x, rect.y, rect.width,
+                rect.height);
+        if (rectangles != null) {
+            for (Rectangle r : rectangles) {
+                r = r.intersection(rect);
+                if (r.isEmpty()) {
+                    continue;
+                }
+                final int start = r.x - rect.x;
+                final int end = start + r.width;
+                for (int y = r.y - rect.y, maxY = y + r.height; y < maxY; y++) {
+                    int[] row = rows[y];
+                    if (row == null) {
+                        row = rows[y] = new int[4];
+                    } else if (sizes[y] + 2 > row.length) {
+                        row = rows[y] = Arrays.copyOf(row, row.length * 2);
+                    }
+                    row[sizes[y]++] = start;
+                    row[sizes[y]++] = end;
+                }
+            }
+        }
+
+        // sort and coalesce the spans of each row
+        for (int y = 0; y < rows.length; y++) {
+            rows[y] = rows[y] == null ? EMPTY_ROW : normalize(rows[y], sizes[y]);
+        }
+        return new ROISpans(rows);
+    }
+
+    /**
+     * Sorts the spans by start and merges the overlapping or adjacent ones.
+     */
+    private static int[] normalize(final int[] row, final int size) {
+        final int n = size / 2;
+        if (n == 1) {
+            return row.length == 2 ? row : Arrays.copyOf(row, 2);
+        }
+        // sort spans by start, packing start and end in a long
+        final long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            packed[i] = ((long) row[2 * i] << 32) | (row[2 * i + 1] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed);
+        final int[] merged = new int[size];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            final int start = (int) (packed[i] >> 32);
+            final int end = (int) packed[i];
+            if (k > 0 && start <= merged[k - 1]) {
+                merged[k - 1] = Math.max(merged[k - 1], end);
+            } else {
+                merged[k++] = start;
+                merged[k++] = end;
+            }
+        }
+        return k == merged.length ? merged : Arrays.copyOf(merged, k);
+    }
+
+    /**
+     * Restricts these spans to a rectangle within the one they have been created for.
+     *
+     * @param x the first column of the rectangle, relative to the origin of these spans
+     * @param y the first row of the rectangle, relative to the origin of these spans
+     * @param width the width of the rectangle
+     * @param height the height of the rectangle
+     * @return the spans over the rectangle, with columns relative to its origin
+     */
+    ROISpans crop(final int x, final int y, final int width, final int height) {
+        final int[][] cropped = new int[height][];
+        final int end = x + width;
+        for (int h = 0; h < height; h++) {
+            final int[] row = rows[y + h];
+            final int[] clipped = new int[row.length];
+            int k = 0;
+            for (int i = 0; i < row.length; i += 2) {
+                final int start = Math.max(row[i], x);
+                final int stop = Math.min(row[i + 1], end);
+                if (start < stop) {
+                    clipped[k++] = start - x;
+                    clipped[k++] = stop - x;
+                }
+            }
+            cropped[h] = k == 0 ? EMPTY_ROW : Arrays.copyOf(clipped, k);
+        }
+        return new ROISpans(cropped);
+    }
+
+    /**
+     * Retrieves the inside spans of a row.
+     *
+     * @param row the row, relative to the rectangle origin
+     * @return the spans as <code>start0, end0, start1, end1, ...</code>, sorted and disjoint. The returned array must not be modified.
+     */
+    int[] getRow(final int row) {
+        return rows[row];
+    }
+
+    /**
+     * @return the number of inside pixels
+     */
+    long getArea() {
+        long area = 0;
+        for (int[] row : rows) {
+            for (int i = 0; i < row.length; i += 2) {
+                area += row[i + 1] - row[i];
+            }
+        }
+        return area;
+    }
+}
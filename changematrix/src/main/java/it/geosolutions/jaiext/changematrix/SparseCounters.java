@@ -0,0 +1,175 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import java.util.Arrays;
+
+/**
+ * A primitive open addressing hash table of counters keyed by non negative <code>long</code> cells, i.e. the packed
+ * <code>row * classesNumber + col</code> pairs of a change matrix too large to be stored densely.
+ * <p>
+ * Linear probing over power of two arrays, kept at most half full. Nothing is boxed, and only the cells that have been hit take space. The
+ * used slots are listed as well, so that copying and clearing the counters only touches the cells that have been hit, not the whole
+ * capacity, e.g. when a table is reused for many small areas. This class is not thread safe.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class SparseCounters {
+
+    /** Marks a free slot, cells are never negative. */
+    private static final long FREE = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+
+    private long[] values;
+
+    /** The used slots, in insertion order. */
+    private int[] used;
+
+    /** Number of used slots. */
+    private int size;
+
+    /**
+     * Constructor
+     *
+     * @param expected the number of cells we expect to be hit
+     */
+    SparseCounters(final int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        values = new long[capacity];
+        // kept at most half full
+        used = new int[capacity / 2 + 1];
+    }
+
+    private static int hash(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Adds <code>delta</code> to the counter of a cell.
+     *
+     * @param key the cell, must not be negative
+     * @param delta the amount to add
+     */
+    void add(final long key, final long delta) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        long k;
+        while ((k = keys[slot]) != FREE) {
+            if (k == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        used[size] = slot;
+        if (++size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Retrieves the counter of a cell.
+     *
+     * @param key the cell
+     * @return the counter of the cell, 0 if it has never been hit
+     */
+    long get(final long key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        long k;
+        while ((k = keys[slot]) != FREE) {
+            if (k == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Forgets all the cells, keeping the current capacity.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[used[i]] = FREE;
+        }
+        size = 0;
+    }
+
+    /**
+     * @return the number of cells hit so far
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the cells and their counters, in insertion order, into the provided arrays.
+     *
+     * @param cells the array receiving the cells, at least {@link #size()} long
+     * @param counts the array receiving the counters, at least {@link #size()} long
+     * @return the number of copied cells
+     */
+    int copyTo(final long[] cells, final long[] counts) {
+        return copyTo(cells, counts, 0);
+    }
+
+    /**
+     * Copies the cells and their counters, in insertion order, into the provided arrays.
+     *
+     * @param cells the array receiving the cells, at least <code>offset + {@link #size()}</code> long
+     * @param counts the array receiving the counters, at least <code>offset + {@link #size()}</code> long
+     * @param offset where to start writing in the arrays
+     * @return the number of copied cells
+     */
+    int copyTo(final long[] cells, final long[] counts, final int offset) {
+        for (int i = 0; i < size; i++) {
+            final int slot = used[i];
+            cells[offset + i] = keys[slot];
+            counts[offset + i] = values[slot];
+        }
+        return size;
+    }
+
+    private void rehash() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        final int[] oldUsed = used;
+        final int oldSize = size;
+        allocate(oldKeys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldSize; i++) {
+            add(oldKeys[oldUsed[i]], oldValues[oldUsed[i]]);
+        }
+    }
+}
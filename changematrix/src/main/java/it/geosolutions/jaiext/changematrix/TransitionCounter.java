@@ -0,0 +1,648 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.image.DataBuffer;
+import java.util.Arrays;
+
+import javax.media.jai.RasterAccessor;
+
+/**
+ * The tile loops of the change matrix computation: compares the reference and the now samples of a rectangle, counts their transitions in a
+ * {@link TransitionTable} and, optionally, writes the change flags (0 unchanged, 1 changed) in a destination and the transition codes in an
+ * array.
+ * <p>
+ * Only the pixels inside the provided {@link ROISpans} are counted, the destination being set to 0, which we use as NoData, elsewhere. Consecutive
+ * pixels with the same pair of classes are counted as a single run, so that the classes are resolved and the table is touched once per run.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class TransitionCounter {
+
+    private final ChangeMatrix result;
+
+    /** The transition code of the pixels outside the ROI or with a class we do not register changes for. */
+    private final int noTransition;
+
+    /**
+     * Constructor
+     *
+     * @param result the {@link ChangeMatrix} resolving the classes
+     * @param dataType the data type of the sources, as declared by their sample model
+     * @throws IllegalArgumentException if the data type is not an integer one
+     */
+    TransitionCounter(final ChangeMatrix result, final int dataType) {
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE
+                || dataType == DataBuffer.TYPE_UNDEFINED) {
+            throw new IllegalArgumentException(
+                    "Unable to process images with a non integer data type");
+        }
+        this.result = result;
+        this.noTransition = result.getNoTransitionCode();
+    }
+
+    /**
+     * Retrieves the mask to apply to the samples to get their integer value, i.e. unsigned for byte and ushort.
+     *
+     * @param dataType the data type of the samples
+     * @return the mask for the samples
+     * @throws IllegalArgumentException if the data type is not an integer one
+     */
+    private static int sampleMask(final int dataType) {
+        switch (dataType) {
+        case DataBuffer.TYPE_BYTE:
+            return 0xFF;
+        case DataBuffer.TYPE_USHORT:
+            return 0xFFFF;
+        case DataBuffer.TYPE_SHORT:
+        case DataBuffer.TYPE_INT:
+            return 0xFFFFFFFF;
+        default:
+            throw new IllegalArgumentException("Unable to process images with a non integer data type");
+        }
+    }
+
+    /**
+     * Counts the transitions between two sources over the same rectangle.
+     *
+     * @param s1 the reference samples
+     * @param s2 the now samples
+     * @param d the destination for the change flags, or <code>null</code> if we are only interested in the counts
+     * @param spans the inside spans of the ROI over the rectangle, or <code>null</code> if all the pixels have to be counted
+     * @param table the {@link TransitionTable} where to count the transitions
+     */
+    void count(final RasterAccessor s1, final RasterAccessor s2, final RasterAccessor d,
+            final ROISpans spans, final TransitionTable table) {
+        count(s1, s2, d, 0, 0, s1.getWidth(), s1.getHeight(), false, spans, table, null, null);
+    }
+
+    /**
+     * Counts the transitions between two sources over a part of the rectangle of their accessors, e.g. a grid cell, so that the accessors
+     * of a tile can be built once and walked cell by cell.
+     *
+     * @param s1 the reference samples
+     * @param s2 the now samples
+     * @param d the destination for the change flags, or <code>null</code> if we are only interested in the counts
+     * @param x the first column of the part, relative to the rectangle of the accessors
+     * @param y the first row of the part, relative to the rectangle of the accessors
+     * @param width the width of the part
+     * @param height the height of the part
+     * @param spans the inside spans of the ROI over the part, or <code>null</code> if all the pixels have to be counted
+     * @param table the {@link TransitionTable} where to count the transitions
+     */
+    void count(final RasterAccessor s1, final RasterAccessor s2, final RasterAccessor d,
+            final int x, final int y, final int width, final int height, final ROISpans spans,
+            final TransitionTable table) {
+        count(s1, s2, d, x, y, width, height, false, spans, table, null, null);
+    }
+
+    /**
+     * Counts the transitions between two sources over the same rectangle, packing the change flags in the same pass.
+     *
+     * @param s1 the reference samples
+     * @param s2 the now samples
+     * @param spans the inside spans of the ROI over the rectangle, or <code>null</code> if all the pixels have to be counted
+     * @param table the {@link TransitionTable} where to count the transitions
+     * @param mask the {@link PackedChangeMask} receiving the change flags, already cleared, since only the changed pixels are set
+     */
+    void count(final RasterAccessor s1, final RasterAccessor s2, final ROISpans spans,
+            final TransitionTable table, final PackedChangeMask mask) {
+        count(s1, s2, null, 0, 0, s1.getWidth(), s1.getHeight(), false, spans, table, null, mask);
+    }
+
+    /**
+     * Counts the transitions between two sources over the same rectangle.
+     *
+     * @param s1 the reference samples
+     * @param s2 the now samples
+     * @param d the destination for the change flags, or <code>null</code> if we are only interested in the counts
+     * @param accumulate whether to add the change flags to the destination, e.g. to count the changes along a series of images, rather than
+     *        setting them. The destination outside the ROI is left untouched.
+     * @param spans the inside spans of the ROI over the rectangle, or <code>null</code> if all the pixels have to be counted
+     * @param table the {@link TransitionTable} where to count the transitions
+     * @param codes the row major array, as large as the rectangle, receiving the transition codes, see
+     *        {@link ChangeMatrix#getTransitionCode(int, int)}, or <code>null</code> if we are not interested in them
+     */
+    void count(final RasterAccessor s1, final RasterAccessor s2, final RasterAccessor d,
+            final boolean accumulate, final ROISpans spans, final TransitionTable table,
+            final int[] codes) {
+        count(s1, s2, d, 0, 0, s1.getWidth(), s1.getHeight(), accumulate, spans, table, codes,
+                null);
+    }
+
+    private void count(final RasterAccessor s1, final RasterAccessor s2, final RasterAccessor d,
+            final int x0, final int y0, final int width, final int height,
+            final boolean accumulate, final ROISpans spans, final TransitionTable table,
+            final int[] codes, final PackedChangeMask packedMask) {
+        // the accessors tell the actual type of the samples, which may have been promoted to
+        // match the destination
+        final int dataType = s1.getDataType();
+        final int sampleMask = sampleMask(dataType);
+
+        final int src1LineStride = s1.getScanlineStride();
+        final int src1PixelStride = s1.getPixelStride();
+        final int[] src1BandOffsets = s1.getBandOffsets();
+
+        final int src2LineStride = s2.getScanlineStride();
+        final int src2PixelStride = s2.getPixelStride();
+        final int[] src2BandOffsets = s2.getBandOffsets();
+
+        final int numBands = s1.getNumBands();
+        final int dstLineStride = d != null ? d.getScanlineStride() : 0;
+        final int dstPixelStride = d != null ? d.getPixelStride() : 0;
+        final int[] dstBandOffsets = d != null ? d.getBandOffsets() : new int[numBands];
+
+        final int[] fullRow = { 0, width };
+        for (int b = 0; b < numBands; b++) {
+            final Object s1Data;
+            final Object s2Data;
+            final Object dData;
+            switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                s1Data = s1.getByteDataArray(b);
+                s2Data = s2.getByteDataArray(b);
+                dData = d != null ? d.getByteDataArray(b) : null;
+                break;
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                s1Data = s1.getShortDataArray(b);
+                s2Data = s2.getShortDataArray(b);
+                dData = d != null ? d.getShortDataArray(b) : null;
+                break;
+            default:
+                s1Data = s1.getIntDataArray(b);
+                s2Data = s2.getIntDataArray(b);
+                dData = d != null ? d.getIntDataArray(b) : null;
+                break;
+            }
+
+            int src1LineOffset = src1BandOffsets[b] + y0 * src1LineStride + x0 * src1PixelStride;
+            int src2LineOffset = src2BandOffsets[b] + y0 * src2LineStride + x0 * src2PixelStride;
+            int dstLineOffset = dstBandOffsets[b] + y0 * dstLineStride + x0 * dstPixelStride;
+            // the packed mask has a single band
+            final PackedChangeMask mask = b == 0 ? packedMask : null;
+            for (int h = 0; h < height; h++) {
+                final int[] row = spans == null ? fullRow : spans.getRow(h);
+                if (mask != null) {
+                    mask.moveTo(h);
+                }
+
+                // walk the inside spans, clearing the gaps between them
+                final int codeLineOffset = h * width;
+                int x = 0;
+                for (int k = 0; k < row.length; k += 2) {
+                    final int start = row[k];
+                    final int end = row[k + 1];
+                    if (start > x && dData != null && !accumulate) {
+                        clear(dataType, dData, dstLineOffset + x * dstPixelStride,
+                                dstPixelStride, start - x);
+                    }
+                    if (start > x && codes != null) {
+                        Arrays.fill(codes, codeLineOffset + x, codeLineOffset + start,
+                                noTransition);
+                    }
+                    switch (dataType) {
+                    case DataBuffer.TYPE_BYTE:
+                        byteLoop((byte[]) s1Data, src1LineOffset + start * src1PixelStride,
+                                src1PixelStride, (byte[]) s2Data, src2LineOffset + start
+                                        * src2PixelStride, src2PixelStride, (byte[]) dData,
+                                dstLineOffset + start * dstPixelStride, dstPixelStride, end
+                                        - start, accumulate, table, codes, mask, codeLineOffset + start);
+                        break;
+                    case DataBuffer.TYPE_USHORT:
+                    case DataBuffer.TYPE_SHORT:
+                        shortLoop((short[]) s1Data, src1LineOffset + start * src1PixelStride,
+                                src1PixelStride, (short[]) s2Data, src2LineOffset + start
+                                        * src2PixelStride, src2PixelStride, (short[]) dData,
+                                dstLineOffset + start * dstPixelStride, dstPixelStride, end
+                                        - start, sampleMask, accumulate, table, codes, mask,
+                                codeLineOffset + start);
+                        break;
+                    default:
+                        intLoop((int[]) s1Data, src1LineOffset + start * src1PixelStride,
+                                src1PixelStride, (int[]) s2Data, src2LineOffset + start
+                                        * src2PixelStride, src2PixelStride, (int[]) dData,
+                                dstLineOffset + start * dstPixelStride, dstPixelStride, end
+                                        - start, accumulate, table, codes, mask, codeLineOffset + start);
+                        break;
+                    }
+                    x = end;
+                }
+                if (x < width && dData != null && !accumulate) {
+                    clear(dataType, dData, dstLineOffset + x * dstPixelStride, dstPixelStride,
+                            width - x);
+                }
+                if (x < width && codes != null) {
+                    Arrays.fill(codes, codeLineOffset + x, codeLineOffset + width, noTransition);
+                }
+
+                src1LineOffset += src1LineStride;
+                src2LineOffset += src2LineStride;
+                dstLineOffset += dstLineStride;
+            }
+        }
+    }
+
+    /**
+     * Tells whether two sources hold the same samples over the same rectangle, e.g. a tile of sea or of untouched forest, stopping at the first
+     * difference. Bands backed by the very same data, as when an image is compared with itself, are not even walked.
+     *
+     * @param s1 the reference samples
+     * @param s2 the now samples
+     * @return <code>true</code> if all the samples are the same
+     */
+    static boolean identical(final RasterAccessor s1, final RasterAccessor s2) {
+        final int dataType = s1.getDataType();
+        if (s2.getDataType() != dataType || s2.getNumBands() != s1.getNumBands()) {
+            return false;
+        }
+        final int width = s1.getWidth();
+        final int height = s1.getHeight();
+        final int src1LineStride = s1.getScanlineStride();
+        final int src1PixelStride = s1.getPixelStride();
+        final int src2LineStride = s2.getScanlineStride();
+        final int src2PixelStride = s2.getPixelStride();
+        for (int b = 0; b < s1.getNumBands(); b++) {
+            final Object s1Data;
+            final Object s2Data;
+            switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                s1Data = s1.getByteDataArray(b);
+                s2Data = s2.getByteDataArray(b);
+                break;
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                s1Data = s1.getShortDataArray(b);
+                s2Data = s2.getShortDataArray(b);
+                break;
+            default:
+                s1Data = s1.getIntDataArray(b);
+                s2Data = s2.getIntDataArray(b);
+                break;
+            }
+            int src1Offset = s1.getBandOffset(b);
+            int src2Offset = s2.getBandOffset(b);
+            if (s1Data == s2Data && src1Offset == src2Offset && src1LineStride == src2LineStride
+                    && src1PixelStride == src2PixelStride) {
+                continue;
+            }
+            for (int h = 0; h < height; h++) {
+                int src1PixelOffset = src1Offset;
+                int src2PixelOffset = src2Offset;
+                switch (dataType) {
+                case DataBuffer.TYPE_BYTE: {
+                    final byte[] a = (byte[]) s1Data;
+                    final byte[] c = (byte[]) s2Data;
+                    for (int w = 0; w < width; w++) {
+                        if (a[src1PixelOffset] != c[src2PixelOffset]) {
+                            return false;
+                        }
+                        src1PixelOffset += src1PixelStride;
+                        src2PixelOffset += src2PixelStride;
+                    }
+                    break;
+                }
+                case DataBuffer.TYPE_USHORT:
+                case DataBuffer.TYPE_SHORT: {
+                    final short[] a = (short[]) s1Data;
+                    final short[] c = (short[]) s2Data;
+                    for (int w = 0; w < width; w++) {
+                        if (a[src1PixelOffset] != c[src2PixelOffset]) {
+                            return false;
+                        }
+                        src1PixelOffset += src1PixelStride;
+                        src2PixelOffset += src2PixelStride;
+                    }
+                    break;
+                }
+                default: {
+                    final int[] a = (int[]) s1Data;
+                    final int[] c = (int[]) s2Data;
+                    for (int w = 0; w < width; w++) {
+                        if (a[src1PixelOffset] != c[src2PixelOffset]) {
+                            return false;
+                        }
+                        src1PixelOffset += src1PixelStride;
+                        src2PixelOffset += src2PixelStride;
+                    }
+                    break;
+                }
+                }
+                src1Offset += src1LineStride;
+                src2Offset += src2LineStride;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the transitions of a rectangle whose reference and now samples are identical, see {@link #identical(RasterAccessor, RasterAccessor)}:
+     * only the diagonal of the matrix is hit, so a single source is walked, through a histogram for byte samples and by runs otherwise.
+     *
+     * @param s the samples of both sources
+     * @param spans the inside spans of the ROI over the rectangle, or <code>null</code> if all the pixels have to be counted
+     * @param table the {@link TransitionTable} where to count the transitions
+     */
+    void countUnchanged(final RasterAccessor s, final ROISpans spans, final TransitionTable table) {
+        final int dataType = s.getDataType();
+        final int sampleMask = sampleMask(dataType);
+        final int lineStride = s.getScanlineStride();
+        final int pixelStride = s.getPixelStride();
+        final int width = s.getWidth();
+        final int height = s.getHeight();
+        final int[] fullRow = { 0, width };
+        final long[] histogram = dataType == DataBuffer.TYPE_BYTE ? new long[256] : null;
+        for (int b = 0; b < s.getNumBands(); b++) {
+            int lineOffset = s.getBandOffset(b);
+            for (int h = 0; h < height; h++) {
+                final int[] row = spans == null ? fullRow : spans.getRow(h);
+                for (int k = 0; k < row.length; k += 2) {
+                    int offset = lineOffset + row[k] * pixelStride;
+                    final int length = row[k + 1] - row[k];
+                    switch (dataType) {
+                    case DataBuffer.TYPE_BYTE: {
+                        final byte[] data = s.getByteDataArray(b);
+                        for (int w = 0; w < length; w++, offset += pixelStride) {
+                            histogram[data[offset] & 0xFF]++;
+                        }
+                        break;
+                    }
+                    case DataBuffer.TYPE_USHORT:
+                    case DataBuffer.TYPE_SHORT: {
+                        final short[] data = s.getShortDataArray(b);
+                        int runValue = 0;
+                        int run = 0;
+                        for (int w = 0; w < length; w++, offset += pixelStride) {
+                            final int value = data[offset] & sampleMask;
+                            if (run > 0 && value == runValue) {
+                                run++;
+                            } else {
+                                if (run > 0) {
+                                    countRun(runValue, runValue, run, table, null, null, 0);
+                                }
+                                runValue = value;
+                                run = 1;
+                            }
+                        }
+                        if (run > 0) {
+                            countRun(runValue, runValue, run, table, null, null, 0);
+                        }
+                        break;
+                    }
+                    default: {
+                        final int[] data = s.getIntDataArray(b);
+                        int runValue = 0;
+                        int run = 0;
+                        for (int w = 0; w < length; w++, offset += pixelStride) {
+                            final int value = data[offset];
+                            if (run > 0 && value == runValue) {
+                                run++;
+                            } else {
+                                if (run > 0) {
+                                    countRun(runValue, runValue, run, table, null, null, 0);
+                                }
+                                runValue = value;
+                                run = 1;
+                            }
+                        }
+                        if (run > 0) {
+                            countRun(runValue, runValue, run, table, null, null, 0);
+                        }
+                        break;
+                    }
+                    }
+                }
+                lineOffset += lineStride;
+            }
+        }
+        if (histogram != null) {
+            for (int value = 0; value < histogram.length; value++) {
+                if (histogram[value] > 0) {
+                    final int index = result.indexOf(value);
+                    if (index != ChangeMatrix.NO_CLASS) {
+                        table.add(index, index, histogram[value]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets all the change flags of a destination to 0, which stands for both unchanged pixels and NoData.
+     *
+     * @param d the destination for the change flags
+     */
+    static void clear(final RasterAccessor d) {
+        final int dataType = d.getDataType();
+        final int lineStride = d.getScanlineStride();
+        final int pixelStride = d.getPixelStride();
+        for (int b = 0; b < d.getNumBands(); b++) {
+            final Object dData;
+            switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+                dData = d.getByteDataArray(b);
+                break;
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                dData = d.getShortDataArray(b);
+                break;
+            default:
+                dData = d.getIntDataArray(b);
+                break;
+            }
+            int lineOffset = d.getBandOffset(b);
+            for (int h = 0; h < d.getHeight(); h++) {
+                clear(dataType, dData, lineOffset, pixelStride, d.getWidth());
+                lineOffset += lineStride;
+            }
+        }
+    }
+
+    /**
+     * Sets to 0, which we of course use as NoData, a run of pixels outside the ROI.
+     */
+    private static void clear(final int dataType, final Object dData, int dstOffset,
+            final int dstPixelStride, final int length) {
+        switch (dataType) {
+        case DataBuffer.TYPE_BYTE: {
+            final byte[] d = (byte[]) dData;
+            for (int w = 0; w < length; w++, dstOffset += dstPixelStride) {
+                d[dstOffset] = 0;
+            }
+            break;
+        }
+        case DataBuffer.TYPE_USHORT:
+        case DataBuffer.TYPE_SHORT: {
+            final short[] d = (short[]) dData;
+            for (int w = 0; w < length; w++, dstOffset += dstPixelStride) {
+                d[dstOffset] = 0;
+            }
+            break;
+        }
+        default: {
+            final int[] d = (int[]) dData;
+            for (int w = 0; w < length; w++, dstOffset += dstPixelStride) {
+                d[dstOffset] = 0;
+            }
+            break;
+        }
+        }
+    }
+
+    /**
+     * Counts a run of <code>length</code> identical transitions at once.
+     *
+     * @param codes the array receiving the transition codes, or <code>null</code>
+     * @param mask the {@link PackedChangeMask} receiving the change flags, or <code>null</code>
+     * @param codeOffset the row major position of the first pixel of the run in the rectangle
+     */
+    private void countRun(final int before, final int after, final int length,
+            final TransitionTable table, final int[] codes, final PackedChangeMask mask,
+            final int codeOffset) {
+        int code = noTransition;
+        final int row = result.indexOf(before);
+        if (row != ChangeMatrix.NO_CLASS) {
+            final int col = result.indexOf(after);
+            if (col != ChangeMatrix.NO_CLASS) {
+                table.add(row, col, length);
+                if (codes != null) {
+                    code = col + row * result.getClassesNumber();
+                }
+            }
+        }
+        if (codes != null) {
+            Arrays.fill(codes, codeOffset, codeOffset + length, code);
+        }
+        if (mask != null && before != after) {
+            mask.set(codeOffset, length);
+        }
+    }
+
+    private void intLoop(final int[] s1, int src1PixelOffset, final int src1PixelStride,
+            final int[] s2, int src2PixelOffset, final int src2PixelStride, final int[] d,
+            int dstPixelOffset, final int dstPixelStride, final int length,
+            final boolean accumulate, final TransitionTable table, final int[] codes,
+            final PackedChangeMask mask, final int codeOffset) {
+        // unchanged pixels come in long runs of the same pair, resolve and count each run once
+        int runBefore = 0;
+        int runAfter = 0;
+        int runStart = 0;
+        int run = 0;
+        for (int w = 0; w < length; w++) {
+            final int before = s1[src1PixelOffset];
+            final int after = s2[src2PixelOffset];
+            if (d != null) {
+                final int flag = before == after ? 0 : 1;
+                d[dstPixelOffset] = accumulate ? d[dstPixelOffset] + flag : flag;
+            }
+            if (before == runBefore && after == runAfter) {
+                run++;
+            } else {
+                if (run > 0) {
+                    countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+                }
+                runBefore = before;
+                runAfter = after;
+                runStart = w;
+                run = 1;
+            }
+            src1PixelOffset += src1PixelStride;
+            src2PixelOffset += src2PixelStride;
+            dstPixelOffset += dstPixelStride;
+        }
+        if (run > 0) {
+            countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+        }
+    }
+
+    private void byteLoop(final byte[] s1, int src1PixelOffset, final int src1PixelStride,
+            final byte[] s2, int src2PixelOffset, final int src2PixelStride, final byte[] d,
+            int dstPixelOffset, final int dstPixelStride, final int length,
+            final boolean accumulate, final TransitionTable table, final int[] codes,
+            final PackedChangeMask mask, final int codeOffset) {
+        // unchanged pixels come in long runs of the same pair, resolve and count each run once
+        int runBefore = 0;
+        int runAfter = 0;
+        int runStart = 0;
+        int run = 0;
+        for (int w = 0; w < length; w++) {
+            final int before = s1[src1PixelOffset] & 0xFF;
+            final int after = s2[src2PixelOffset] & 0xFF;
+            if (d != null) {
+                final int flag = before == after ? 0 : 1;
+                d[dstPixelOffset] = (byte) (accumulate ? d[dstPixelOffset] + flag : flag);
+            }
+            if (before == runBefore && after == runAfter) {
+                run++;
+            } else {
+                if (run > 0) {
+                    countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+                }
+                runBefore = before;
+                runAfter = after;
+                runStart = w;
+                run = 1;
+            }
+            src1PixelOffset += src1PixelStride;
+            src2PixelOffset += src2PixelStride;
+            dstPixelOffset += dstPixelStride;
+        }
+        if (run > 0) {
+            countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+        }
+    }
+
+    private void shortLoop(final short[] s1, int src1PixelOffset, final int src1PixelStride,
+            final short[] s2, int src2PixelOffset, final int src2PixelStride, final short[] d,
+            int dstPixelOffset, final int dstPixelStride, final int length,
+            final int sampleMask, final boolean accumulate, final TransitionTable table,
+            final int[] codes, final PackedChangeMask mask, final int codeOffset) {
+        // unchanged pixels come in long runs of the same pair, resolve and count each run once
+        int runBefore = 0;
+        int runAfter = 0;
+        int runStart = 0;
+        int run = 0;
+        for (int w = 0; w < length; w++) {
+            final int before = s1[src1PixelOffset] & sampleMask;
+            final int after = s2[src2PixelOffset] & sampleMask;
+            if (d != null) {
+                final int flag = before == after ? 0 : 1;
+                d[dstPixelOffset] = (short) (accumulate ? d[dstPixelOffset] + flag : flag);
+            }
+            if (before == runBefore && after == runAfter) {
+                run++;
+            } else {
+                if (run > 0) {
+                    countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+                }
+                runBefore = before;
+                runAfter = after;
+                runStart = w;
+                run = 1;
+            }
+            src1PixelOffset += src1PixelStride;
+            src2PixelOffset += src2PixelStride;
+            dstPixelOffset += dstPixelStride;
+        }
+        if (run > 0) {
+            countRun(runBefore, runAfter, run, table, codes, mask, codeOffset + runStart);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.util.Arrays;
+
+/**
+ * A thread-confined table of transition counts, used to accumulate the changes of a single tile before publishing them into the shared
+ * {@link ChangeMatrix} with a single merge.
+ * <p>
+ * Rows and columns are the class indexes resolved by the owning {@link ChangeMatrix}, not the real-world classes. This class is not thread safe.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class TransitionTable {
+
+    /** Number of classes, i.e. rows and columns of the table. */
+    private final int classesNumber;
+
+    /** Flat, row major, counters, <code>null</code> when the table is sparse. */
+    private final long[] counts;
+
+    /** Counters keyed by the flat, row major, cell, <code>null</code> when the table is dense. */
+    private final SparseCounters sparse;
+
+    /** Whether at least one transition has been counted. */
+    private boolean empty = true;
+
+    /**
+     * Constructor
+     *
+     * @param classesNumber the number of rows and columns of the table
+     * @param sparse whether to keep only the cells that are hit, rather than all the <code>classesNumber * classesNumber</code> ones
+     */
+    TransitionTable(final int classesNumber, final boolean sparse) {
+        this.classesNumber = classesNumber;
+        if (sparse) {
+            this.counts = null;
+            this.sparse = new SparseCounters(classesNumber);
+        } else {
+            this.counts = new long[classesNumber * classesNumber];
+            this.sparse = null;
+        }
+    }
+
+    /**
+     * Counts <code>count</code> transitions from the class with index <code>row</code> to the class with index <code>col</code>.
+     */
+    void add(final int row, final int col, final long count) {
+        if (counts != null) {
+            counts[col + row * classesNumber] += count;
+        } else {
+            sparse.add(col + (long) row * classesNumber, count);
+        }
+        empty = false;
+    }
+
+    /**
+     * Counts <code>count</code> transitions for a flat, row major, cell.
+     */
+    void addCell(final long cell, final long count) {
+        if (count == 0) {
+            return;
+        }
+        if (counts != null) {
+            counts[(int) cell] += count;
+        } else {
+            sparse.add(cell, count);
+        }
+        empty = false;
+    }
+
+    /**
+     * Adds all the counters of another table, with the same classes, to this one.
+     */
+    void addAll(final TransitionTable other) {
+        if (other.empty) {
+            return;
+        }
+        if (counts != null && other.counts != null) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            empty = false;
+            return;
+        }
+        final int size = other.size();
+        final long[] cells = new long[size];
+        final long[] values = new long[size];
+        final int copied = other.copyTo(cells, values);
+        for (int k = 0; k < copied; k++) {
+            addCell(cells[k], values[k]);
+        }
+    }
+
+    /**
+     * @return the number of rows and columns of this table
+     */
+    int getClassesNumber() {
+        return classesNumber;
+    }
+
+    /**
+     * @return the number of cells with a non zero counter
+     */
+    int size() {
+        if (counts == null) {
+            return sparse.size();
+        }
+        int size = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies the cells with a non zero counter, as flat row major indexes, and their counters into the provided arrays.
+     *
+     * @param cells the array receiving the cells, at least {@link #size()} long
+     * @param values the array receiving the counters, at least {@link #size()} long
+     * @return the number of copied cells
+     */
+    int copyTo(final long[] cells, final long[] values) {
+        return copyTo(cells, values, 0);
+    }
+
+    /**
+     * Copies the cells with a non zero counter, as flat row major indexes, and their counters into the provided arrays. Sparse tables only
+     * walk the cells that have been hit.
+     *
+     * @param cells the array receiving the cells, at least <code>offset + {@link #size()}</code> long
+     * @param values the array receiving the counters, at least <code>offset + {@link #size()}</code> long
+     * @param offset where to start writing in the arrays
+     * @return the number of copied cells
+     */
+    int copyTo(final long[] cells, final long[] values, final int offset) {
+        if (counts == null) {
+            return sparse.copyTo(cells, values, offset);
+        }
+        int k = offset;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                cells[k] = i;
+                values[k++] = counts[i];
+            }
+        }
+        return k - offset;
+    }
+
+    /**
+     * Sets all the counters back to 0, so that the table can be reused.
+     */
+    void clear() {
+        if (empty) {
+            return;
+        }
+        if (counts != null) {
+            Arrays.fill(counts, 0);
+        } else {
+            sparse.clear();
+        }
+        empty = true;
+    }
+
+    /**
+     * @return <code>true</code> if no transition has been counted
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.image.renderable.ParameterBlock;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.media.jai.OperationDescriptorImpl;
+import javax.media.jai.ROI;
+import javax.media.jai.registry.RenderedRegistryMode;
+
+/**
+ * An {@code OperationDescriptor} for the "ZonalChangeMatrix" operation.
+ * <p>
+ * This operation works like the "ChangeMatrix" one, but takes a third source, the zones image, whose integer samples identify the zone, e.g.
+ * municipality or region, each pixel belongs to. A separate change matrix is computed for each zone, in a single pass over the data, and
+ * collected by a {@link ZonalChangeMatrix}.
+ * <p>
+ * Sources are, in order, the reference image (situation at time T0), the now image (situation at time T1 > T0) and the zones image, all single
+ * banded with integer samples and of the same size. The destination holds the change flags, as for the "ChangeMatrix" operation.
+ * <p>
+ * <b>Summary of parameters:</b>
+ * <table border="1", cellpadding="3">
+ * <tr>
+ * <th>Name</th>
+ * <th>Class</th>
+ * <th>Default</th>
+ * <th>Description</th>
+ * </tr>
+ * <tr>
+ * <td>roi</td>
+ * <td>ROI</td>
+ * <td>null</td>
+ * <td>An optional ROI defining the area to process</td>
+ * </tr>
+ * <tr>
+ * <td>result</td>
+ * <td>ZonalChangeMatrix</td>
+ * <td>null</td>
+ * <td>The {@link ZonalChangeMatrix} object to collect the changes of each zone.</td>
+ * </tr>
+ * </table>
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ZonalChangeMatrixDescriptor extends OperationDescriptorImpl {
+
+    /**
+     * This class is used to capture the changes in classes between two images, separately for each zone.
+     * <p>
+     * The {@link ChangeMatrix} of a zone is created the first time a pixel of that zone is met, all the matrices sharing the same classes.
+     *
+     * @author Simone Giannecchini, GeoSolutions SAS
+     */
+    public static class ZonalChangeMatrix {
+
+        /** Resolves the classes, it is never updated itself. */
+        private final ChangeMatrix template;
+
+        /** The classes in the index order of {@link #template}, so that all the matrices share the same indexes. */
+        private final Set<Integer> classes;
+
+        private final ConcurrentMap<Integer, ChangeMatrix> zones = new ConcurrentHashMap<Integer, ChangeMatrix>();
+
+        private volatile boolean frozen = false;
+
+        /**
+         * Constructor
+         *
+         * @param classes the {@link Set} of {@link Integer} classes to register changes for
+         */
+        public ZonalChangeMatrix(final Set<Integer> classes) {
+            this(classes, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param classes the {@link Set} of {@link Integer} classes to register changes for
+         * @param remapping the remapping from raw values to classes, or <code>null</code> if the raw values are the classes, see
+         *        {@link ChangeMatrix#ChangeMatrix(Set, Map)}
+         */
+        public ZonalChangeMatrix(final Set<Integer> classes, final Map<Integer, Integer> remapping) {
+            this.template = new ChangeMatrix(classes, remapping);
+            this.classes = new LinkedHashSet<Integer>();
+            for (int clazz : template.getClasses()) {
+                this.classes.add(clazz);
+            }
+        }
+
+        /**
+         * Retrieves the {@link ChangeMatrix} of a zone.
+         *
+         * @param zone the zone identifier
+         * @return the {@link ChangeMatrix} of the zone, or <code>null</code> if no pixel of the zone has been processed
+         */
+        public ChangeMatrix getChangeMatrix(final int zone) {
+            return zones.get(zone);
+        }
+
+        /**
+         * @return the zones with at least a processed pixel, as an unmodifiable view
+         */
+        public Set<Integer> getZones() {
+            return Collections.unmodifiableSet(zones.keySet());
+        }
+
+        /**
+         * Retrieves the number of classes we have been asked to register changes for
+         *
+         * @return int, the number of classes we have been asked to register changes for
+         */
+        public int getClassesNumber() {
+            return template.getClassesNumber();
+        }
+
+        /**
+         * This is used to indicate to the underlying code to stop registering values as the computation has been performed already.
+         */
+        public void freeze() {
+            frozen = true;
+            for (ChangeMatrix matrix : zones.values()) {
+                matrix.freeze();
+            }
+        }
+
+        /**
+         * Resolves a real-world class to its index, shared by the matrices of all the zones.
+         */
+        final int indexOf(final int clazz) {
+            return template.indexOf(clazz);
+        }
+
+        /**
+         * @return a {@link TransitionTable} matching the matrices of the zones
+         */
+        TransitionTable createTransitionTable() {
+            return template.createTransitionTable();
+        }
+
+        /**
+         * Retrieves the {@link ChangeMatrix} of a zone, creating it if needed.
+         *
+         * @param zone the zone identifier
+         * @return the {@link ChangeMatrix} of the zone, or <code>null</code> if this object has been frozen and the zone is a new one
+         */
+        ChangeMatrix getOrCreate(final int zone) {
+            ChangeMatrix matrix = zones.get(zone);
+            if (matrix == null && !frozen) {
+                final ChangeMatrix created = new ChangeMatrix(classes);
+                matrix = zones.putIfAbsent(zone, created);
+                if (matrix == null) {
+                    matrix = created;
+                }
+            }
+            return matrix;
+        }
+    }
+
+    private static final long serialVersionUID = -2254185317429962452L;
+
+    public static final int ROI_ARG_INDEX = 0;
+
+    public static final int RESULT_ARG_INDEX = 1;
+
+    public static final String[] PARAM_NAMES = { "roi", "result" };
+
+    private static final Class<?>[] PARAM_CLASSES = { javax.media.jai.ROI.class,
+            ZonalChangeMatrix.class };
+
+    private static final Object[] PARAM_DEFAULTS = { (ROI) null, NO_PARAMETER_DEFAULT };
+
+    /** Constructor. */
+    public ZonalChangeMatrixDescriptor() {
+        super(
+                new String[][] {
+                        { "GlobalName", "ZonalChangeMatrix" },
+                        { "LocalName", "ZonalChangeMatrix" },
+                        { "Vendor", "org.jaitools.media.jai" },
+                        { "Description", "Calculate a change matrix for each zone between two images" },
+                        { "DocURL", "http://www.geotools.org" },
+                        { "Version", "1.0.0" },
+                        {
+                                "arg0Desc",
+                                "roi (default null) - an optional ROI object for source and/or"
+                                        + "destination masking" },
+                        {
+                                "arg1Desc",
+                                "result (ZonalChangeMatrix) -"
+                                        + "the matrices holding the count of change pixels of each zone" } },
+
+                new String[] { RenderedRegistryMode.MODE_NAME }, // supported modes
+
+                3, // number of sources
+
+                PARAM_NAMES, PARAM_CLASSES, PARAM_DEFAULTS,
+
+                null // valid values (none defined)
+        );
+    }
+
+    /**
+     * Validates supplied parameters.
+     *
+     * @param modeName the rendering mode
+     * @param pb the parameter block
+     * @param msg a {@code StringBuffer} to receive error messages
+     * @return {@code true} if parameters are valid; {@code false} otherwise
+     */
+    @Override
+    public boolean validateArguments(String modeName, ParameterBlock pb, StringBuffer msg) {
+        if (!super.validateArguments(modeName, pb, msg)) {
+            return false;
+        }
+
+        final Object o = pb.getObjectParameter(RESULT_ARG_INDEX);
+        if (o instanceof ZonalChangeMatrix) {
+            return true;
+        } else {
+            msg.append("result is null or not of type ZonalChangeMatrix");
+            return false;
+        }
+    }
+}
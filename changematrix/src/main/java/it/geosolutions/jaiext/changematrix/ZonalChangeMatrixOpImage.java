@@ -0,0 +1,289 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+import it.geosolutions.jaiext.changematrix.ZonalChangeMatrixDescriptor.ZonalChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PointOpImage;
+import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
+import javax.media.jai.RasterFormatTag;
+
+/**
+ * An operator to calculate change in pixels between two classified images separately for each zone of a third image, relying on the
+ * {@link ZonalChangeMatrix} element.
+ * <p>
+ * Each tile accumulates one {@link TransitionTable} per zone it intersects and publishes it into the {@link ChangeMatrix} of that zone, so that
+ * all the zones are computed in a single pass over the data.
+ *
+ * @see ZonalChangeMatrixDescriptor Description
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ZonalChangeMatrixOpImage extends PointOpImage {
+
+    private final ROI roi;
+
+    private final ZonalChangeMatrix result;
+
+    /** Source of the identifiers of the images publishing tiles into a {@link ChangeMatrix}. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** Identifies this image when publishing its tiles into the {@link ChangeMatrix} objects. */
+    private final long id = IDS.incrementAndGet();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param reference the reference image
+     * @param now the now image
+     * @param zones the zones image
+     * @param config configurable attributes of the image
+     * @param layout an optional ImageLayout object
+     * @param roi an optional {@code ROI}, already cropped to the bounds of the sources, or {@code null}
+     * @param result a {@link ZonalChangeMatrix} object to compute and hold the results
+     * @see ZonalChangeMatrixDescriptor
+     */
+    @SuppressWarnings("rawtypes")
+    public ZonalChangeMatrixOpImage(final RenderedImage reference, final RenderedImage now,
+            final RenderedImage zones, final Map config, final ImageLayout layout, final ROI roi,
+            final ZonalChangeMatrix result) {
+
+        super(reference, now, zones, layout, config, true);
+
+        this.roi = roi;
+        this.result = result;
+    }
+
+    /**
+     * Computes the change flags for the specified rectangle and registers the changes in the {@link ChangeMatrix} of each zone.
+     *
+     * @param sources Cobbled sources, guaranteed to provide all the source data necessary for computing the rectangle.
+     * @param dest The tile containing the rectangle to be computed.
+     * @param destRect The rectangle within the tile to be computed.
+     */
+    protected void computeRect(final Raster[] sources, final WritableRaster dest,
+            final Rectangle destRect) {
+        // Retrieve format tags.
+        final RasterFormatTag[] formatTags = getFormatTags();
+
+        /* For PointOpImage, srcRect = destRect. */
+        final RasterAccessor s1 = new RasterAccessor(sources[0], destRect, formatTags[0],
+                getSourceImage(0).getColorModel());
+        final RasterAccessor s2 = new RasterAccessor(sources[1], destRect, formatTags[1],
+                getSourceImage(1).getColorModel());
+        final RasterAccessor z = new RasterAccessor(sources[2], destRect, formatTags[2],
+                getSourceImage(2).getColorModel());
+        final RasterAccessor d = new RasterAccessor(dest, destRect, formatTags[3], getColorModel());
+
+        // rasterize the ROI once for the whole rectangle
+        ROISpans spans = null;
+        if (roi != null && !roi.contains(destRect)) {
+            spans = ROISpans.create(roi, destRect);
+        }
+
+        final int width = destRect.width;
+        final int height = destRect.height;
+        final int[] fullRow = { 0, width };
+        final int[] before = new int[width];
+        final int[] after = new int[width];
+        final int[] zone = new int[width];
+        final int[] flags = new int[width];
+        final ZoneTables tables = new ZoneTables(result);
+
+        int src1LineOffset = s1.getBandOffset(0);
+        int src2LineOffset = s2.getBandOffset(0);
+        int zoneLineOffset = z.getBandOffset(0);
+        int dstLineOffset = d.getBandOffset(0);
+        for (int h = 0; h < height; h++) {
+            final int[] row = spans == null ? fullRow : spans.getRow(h);
+
+            // outside the ROI we use 0 as NoData
+            Arrays.fill(flags, 0);
+            for (int k = 0; k < row.length; k += 2) {
+                final int start = row[k];
+                final int length = row[k + 1] - start;
+                read(s1, src1LineOffset + start * s1.getPixelStride(), length, before);
+                read(s2, src2LineOffset + start * s2.getPixelStride(), length, after);
+                read(z, zoneLineOffset + start * z.getPixelStride(), length, zone);
+
+                // unchanged pixels come in long runs of the same zone and pair, count each run once
+                int runZone = 0;
+                int runBefore = 0;
+                int runAfter = 0;
+                int run = 0;
+                for (int w = 0; w < length; w++) {
+                    flags[start + w] = before[w] == after[w] ? 0 : 1;
+                    if (run > 0 && zone[w] == runZone && before[w] == runBefore
+                            && after[w] == runAfter) {
+                        run++;
+                    } else {
+                        if (run > 0) {
+                            tables.count(runZone, runBefore, runAfter, run);
+                        }
+                        runZone = zone[w];
+                        runBefore = before[w];
+                        runAfter = after[w];
+                        run = 1;
+                    }
+                }
+                if (run > 0) {
+                    tables.count(runZone, runBefore, runAfter, run);
+                }
+            }
+            write(d, dstLineOffset, flags);
+
+            src1LineOffset += s1.getScanlineStride();
+            src2LineOffset += s2.getScanlineStride();
+            zoneLineOffset += z.getScanlineStride();
+            dstLineOffset += d.getScanlineStride();
+        }
+
+        // publish once per tile and zone, replacing what a previous computation of the same tile published
+        tables.publish(id, XToTileX(destRect.x), YToTileY(destRect.y));
+
+        d.copyBinaryDataToRaster();
+    }
+
+    /**
+     * Reads <code>length</code> consecutive integer samples of the first band.
+     */
+    private static void read(final RasterAccessor accessor, int offset, final int length,
+            final int[] values) {
+        final int pixelStride = accessor.getPixelStride();
+        switch (accessor.getDataType()) {
+        case DataBuffer.TYPE_BYTE: {
+            final byte[] data = accessor.getByteDataArray(0);
+            for (int w = 0; w < length; w++, offset += pixelStride) {
+                values[w] = data[offset] & 0xFF;
+            }
+            break;
+        }
+        case DataBuffer.TYPE_USHORT: {
+            final short[] data = accessor.getShortDataArray(0);
+            for (int w = 0; w < length; w++, offset += pixelStride) {
+                values[w] = data[offset] & 0xFFFF;
+            }
+            break;
+        }
+        case DataBuffer.TYPE_SHORT: {
+            final short[] data = accessor.getShortDataArray(0);
+            for (int w = 0; w < length; w++, offset += pixelStride) {
+                values[w] = data[offset];
+            }
+            break;
+        }
+        default: {
+            final int[] data = accessor.getIntDataArray(0);
+            for (int w = 0; w < length; w++, offset += pixelStride) {
+                values[w] = data[offset];
+            }
+            break;
+        }
+        }
+    }
+
+    /**
+     * Writes a row of change flags in the first band.
+     */
+    private static void write(final RasterAccessor accessor, int offset, final int[] flags) {
+        final int pixelStride = accessor.getPixelStride();
+        switch (accessor.getDataType()) {
+        case DataBuffer.TYPE_BYTE: {
+            final byte[] data = accessor.getByteDataArray(0);
+            for (int w = 0; w < flags.length; w++, offset += pixelStride) {
+                data[offset] = (byte) flags[w];
+            }
+            break;
+        }
+        case DataBuffer.TYPE_USHORT:
+        case DataBuffer.TYPE_SHORT: {
+            final short[] data = accessor.getShortDataArray(0);
+            for (int w = 0; w < flags.length; w++, offset += pixelStride) {
+                data[offset] = (short) flags[w];
+            }
+            break;
+        }
+        default: {
+            final int[] data = accessor.getIntDataArray(0);
+            for (int w = 0; w < flags.length; w++, offset += pixelStride) {
+                data[offset] = flags[w];
+            }
+            break;
+        }
+        }
+    }
+
+    /**
+     * The {@link TransitionTable} of each zone met in a tile.
+     */
+    private static final class ZoneTables {
+
+        private final ZonalChangeMatrix result;
+
+        private final Map<Integer, TransitionTable> tables = new HashMap<Integer, TransitionTable>();
+
+        /** The last zone looked up, zones come in runs too. */
+        private int lastZone;
+
+        private TransitionTable lastTable;
+
+        ZoneTables(final ZonalChangeMatrix result) {
+            this.result = result;
+        }
+
+        void count(final int zone, final int before, final int after, final int length) {
+            if (lastTable == null || zone != lastZone) {
+                TransitionTable table = tables.get(zone);
+                if (table == null) {
+                    table = result.createTransitionTable();
+                    tables.put(zone, table);
+                }
+                lastZone = zone;
+                lastTable = table;
+            }
+            final int row = result.indexOf(before);
+            if (row != ChangeMatrix.NO_CLASS) {
+                final int col = result.indexOf(after);
+                if (col != ChangeMatrix.NO_CLASS) {
+                    lastTable.add(row, col, length);
+                }
+            }
+        }
+
+        void publish(final long owner, final int tileX, final int tileY) {
+            for (Map.Entry<Integer, TransitionTable> entry : tables.entrySet()) {
+                final ChangeMatrix matrix = result.getOrCreate(entry.getKey());
+                if (matrix != null) {
+                    matrix.merge(owner, tileX, tileY, entry.getValue());
+                }
+            }
+        }
+    }
+}
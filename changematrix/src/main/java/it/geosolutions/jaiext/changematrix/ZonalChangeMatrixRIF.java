@@ -0,0 +1,97 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2011, Open Source Geospatial Foundation (OSGeo)
+ *    (C) 2008-2011 TOPP - www.openplans.org.
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ZonalChangeMatrixDescriptor.ZonalChangeMatrix;
+
+import java.awt.RenderingHints;
+import java.awt.image.DataBuffer;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.renderable.RenderedImageFactory;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.ROI;
+
+import com.sun.media.jai.opimage.RIFUtil;
+
+/**
+ * The image factory for the {@link ZonalChangeMatrixOpImage} operation.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ZonalChangeMatrixRIF implements RenderedImageFactory {
+
+    /** Constructor */
+    public ZonalChangeMatrixRIF() {
+    }
+
+    /**
+     * Create a new instance of {@link ZonalChangeMatrixOpImage} in the rendered layer.
+     *
+     * @param paramBlock specifies the source images and the parameters
+     * @param renderHints mostly useless with this image
+     */
+    public RenderedImage create(ParameterBlock paramBlock, RenderingHints renderHints) {
+
+        final RenderedImage reference = paramBlock.getRenderedSource(0);
+        final RenderedImage now = paramBlock.getRenderedSource(1);
+        final RenderedImage zones = paramBlock.getRenderedSource(2);
+        ChangeMatrixRIF.checkSources(reference, now);
+        checkZones(zones, reference);
+
+        ImageLayout layout = RIFUtil.getImageLayoutHint(renderHints);
+        if (layout == null)
+            layout = new ImageLayout();
+
+        // result
+        final ZonalChangeMatrix result = (ZonalChangeMatrix) paramBlock
+                .getObjectParameter(ZonalChangeMatrixDescriptor.RESULT_ARG_INDEX);
+
+        // checks on ROI
+        ROI roi = (ROI) paramBlock.getObjectParameter(ZonalChangeMatrixDescriptor.ROI_ARG_INDEX);
+        roi = ChangeMatrixRIF.checkROI(roi, reference);
+
+        return new ZonalChangeMatrixOpImage(reference, now, zones, renderHints, layout, roi,
+                result);
+    }
+
+    /**
+     * Checks that the zones image can be used with the reference image: single banded, integer data type and same size.
+     *
+     * @param zones the zones image
+     * @param reference the reference image
+     * @throws IllegalArgumentException in case the zones image cannot be used
+     */
+    static void checkZones(final RenderedImage zones, final RenderedImage reference) {
+        if (zones.getSampleModel().getNumBands() > 1) {
+            throw new IllegalArgumentException(
+                    "Unable to process zones image with more than one band (source[2])");
+        }
+        final int dataType = zones.getSampleModel().getDataType();
+        if (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_INT
+                && dataType != DataBuffer.TYPE_SHORT && dataType != DataBuffer.TYPE_USHORT) {
+            throw new IllegalArgumentException(
+                    "Unable to process zones image (source[2]) as it has a non integer data type");
+        }
+        if (zones.getWidth() != reference.getWidth() || zones.getHeight() != reference.getHeight()) {
+            throw new IllegalArgumentException(
+                    "Unable to process images with different raster dimensions");
+        }
+    }
+}
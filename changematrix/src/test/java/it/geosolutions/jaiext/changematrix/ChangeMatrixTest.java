@@ -3,19 +3,37 @@ package it.geosolutions.jaiext.changematrix;
 import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
 
 import java.awt.Point;
+import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.media.jai.ImageLayout;
 import javax.media.jai.JAI;
 import javax.media.jai.ParameterBlockJAI;
@@ -658,4 +676,639 @@ public class ChangeMatrixTest extends org.junit.Assert {
 
     }
 
+    @Test
+    public void testROIPolygon() throws Exception {
+        final File file0 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final RenderedOp source = JAI.create("ImageRead", file6);
+        final RenderedOp reference = JAI.create("ImageRead", file0);
+
+        // create a non rectangular roi
+        final Rectangle bounds = reference.getBounds();
+        final Polygon triangle = new Polygon();
+        triangle.addPoint(bounds.x + bounds.width / 3, bounds.y);
+        triangle.addPoint(bounds.x + bounds.width, bounds.y + bounds.height / 2);
+        triangle.addPoint(bounds.x, bounds.y + bounds.height);
+        final ROIShape roi = new ROIShape(triangle);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(64).setTileWidth(64);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(source);
+        pbj.setParameter("result", cm);
+        pbj.setParameter("roi", roi);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+        final Raster changes = result.getData();
+        cm.freeze();
+
+        // compute the expected values pixel by pixel
+        final Raster referenceData = reference.getData();
+        final Raster sourceData = source.getData();
+        final long[][] expected = new long[38][38];
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                final int before = referenceData.getSample(x, y, 0);
+                final int after = sourceData.getSample(x, y, 0);
+                if (roi.contains(x, y)) {
+                    if (classes.contains(before) && classes.contains(after)) {
+                        expected[before][after]++;
+                    }
+                    assertEquals(before == after ? 0 : 1, changes.getSample(x, y, 0));
+                } else {
+                    assertEquals(0, changes.getSample(x, y, 0));
+                }
+            }
+        }
+
+        result.dispose();
+        source.dispose();
+        reference.dispose();
+
+        // check values of the change matrix
+        for (Integer before : classes) {
+            for (Integer after : classes) {
+                assertEquals(expected[before][after], cm.retrievePairOccurrences(before, after));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeWithoutDestination() throws Exception {
+        final File file0 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(256).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ImageRead");
+        pbj.setParameter("Input", file6);
+        final RenderedOp source = JAI.create("ImageRead", pbj, hints);
+        pbj.setParameter("Input", file0);
+        final RenderedOp reference = JAI.create("ImageRead", pbj, hints);
+
+        final ExecutorService ex = Executors.newFixedThreadPool(10);
+        try {
+            cm.compute(reference, source, null, ex);
+        } finally {
+            ex.shutdown();
+        }
+
+        source.dispose();
+        reference.dispose();
+
+        // check values of the change matrix, same as the operation
+        assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+        assertEquals(0, cm.retrievePairOccurrences(0, 35));
+        assertEquals(36, cm.retrievePairOccurrences(35, 35));
+        assertEquals(18, cm.retrievePairOccurrences(1, 1));
+        assertEquals(1, cm.retrievePairOccurrences(1, 36));
+        assertEquals(1, cm.retrievePairOccurrences(36, 35));
+        assertEquals(1, cm.retrievePairOccurrences(36, 1));
+        assertEquals(6930, cm.retrievePairOccurrences(36, 36));
+        assertEquals(58, cm.retrievePairOccurrences(36, 37));
+        assertEquals(3, cm.retrievePairOccurrences(37, 0));
+        assertEquals(1, cm.retrievePairOccurrences(37, 35));
+        assertEquals(129, cm.retrievePairOccurrences(37, 36));
+        assertEquals(1720, cm.retrievePairOccurrences(37, 37));
+    }
+
+    @Test
+    public void testProcessor() throws Exception {
+        final File file0 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(32).setTileWidth(32);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ImageRead");
+        pbj.setParameter("Input", file6);
+        final RenderedOp source = JAI.create("ImageRead", pbj, hints);
+        pbj.setParameter("Input", file0);
+        final RenderedOp reference = JAI.create("ImageRead", pbj, hints);
+
+        final ExecutorService ex = Executors.newFixedThreadPool(10);
+        try {
+            final ChangeMatrixProcessor processor = new ChangeMatrixProcessor(reference, source,
+                    null, cm);
+            processor.setMaxInFlightTiles(3);
+            final Future<ChangeMatrix> future = processor.submit(ex);
+            assertSame(cm, future.get());
+            assertTrue(future.isDone());
+            assertFalse(future.isCancelled());
+        } finally {
+            ex.shutdown();
+        }
+
+        source.dispose();
+        reference.dispose();
+
+        // check values of the change matrix, same as the operation
+        assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+        assertEquals(36, cm.retrievePairOccurrences(35, 35));
+        assertEquals(6930, cm.retrievePairOccurrences(36, 36));
+        assertEquals(58, cm.retrievePairOccurrences(36, 37));
+        assertEquals(129, cm.retrievePairOccurrences(37, 36));
+        assertEquals(1720, cm.retrievePairOccurrences(37, 37));
+    }
+
+    @Test
+    public void testBlockedProcessor() throws Exception {
+        final File file0 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(256).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ImageRead");
+        pbj.setParameter("Input", file6);
+        final RenderedOp source = JAI.create("ImageRead", pbj, hints);
+        pbj.setParameter("Input", file0);
+        final RenderedOp reference = JAI.create("ImageRead", pbj, hints);
+
+        // blocks not aligned with the tiles, several levels of reduction
+        final ExecutorService ex = Executors.newFixedThreadPool(10);
+        try {
+            final BlockedChangeMatrixProcessor processor = new BlockedChangeMatrixProcessor(
+                    reference, source, null, cm);
+            processor.setBlockSize(37);
+            processor.setParallelism(5);
+            processor.compute(ex);
+        } finally {
+            ex.shutdown();
+        }
+
+        source.dispose();
+        reference.dispose();
+
+        // check values of the change matrix, same as the operation
+        assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+        assertEquals(36, cm.retrievePairOccurrences(35, 35));
+        assertEquals(6930, cm.retrievePairOccurrences(36, 36));
+        assertEquals(58, cm.retrievePairOccurrences(36, 37));
+        assertEquals(129, cm.retrievePairOccurrences(37, 36));
+        assertEquals(1720, cm.retrievePairOccurrences(37, 37));
+    }
+
+    @Test
+    public void testProcessorCancellation() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(16).setTileWidth(16);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final RenderedOp reference = ConstantDescriptor.create(Float.valueOf(64),
+                Float.valueOf(64), new Byte[] { Byte.valueOf((byte) 0) }, hints);
+        final RenderedOp source = ConstantDescriptor.create(Float.valueOf(64), Float.valueOf(64),
+                new Byte[] { Byte.valueOf((byte) 1) }, hints);
+
+        // hold the workers until the computation has been cancelled
+        final Queue<Runnable> workers = new LinkedList<Runnable>();
+        final Future<ChangeMatrix> future = new ChangeMatrixProcessor(reference, source, null,
+                cm).submit(new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                workers.add(command);
+            }
+        });
+        assertFalse(future.isDone());
+        assertTrue(future.cancel(false));
+        assertTrue(future.isDone());
+        assertTrue(future.isCancelled());
+        for (Runnable worker : workers) {
+            worker.run();
+        }
+        try {
+            future.get();
+            fail("A cancelled computation should not complete");
+        } catch (CancellationException e) {
+            // fine
+        }
+
+        // no tile has been computed
+        assertEquals(0, cm.retrievePairOccurrences(0, 1));
+    }
+
+    @Test
+    public void testManyClasses() throws Exception {
+        // parcel like IDs, way too many classes for a dense matrix
+        final Set<Integer> classes = new HashSet<Integer>();
+        for (int i = 0; i < 10000; i++) {
+            classes.add(100000 + i * 7);
+        }
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+        assertEquals(10000, cm.getClassesNumber());
+
+        final RenderedOp reference = ConstantDescriptor.create(Float.valueOf(800),
+                Float.valueOf(600), new Integer[] { Integer.valueOf(100007) }, null);
+        final RenderedOp now = ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Integer[] { Integer.valueOf(169993) }, null);
+        cm.compute(reference, now, null, null);
+        cm.registerPair(169993, 100000);
+
+        assertEquals(800 * 600, cm.retrievePairOccurrences(100007, 169993));
+        assertEquals(1, cm.retrievePairOccurrences(169993, 100000));
+        assertEquals(0, cm.retrievePairOccurrences(100000, 100007));
+        assertEquals(ChangeMatrix.NO_VALUE, cm.retrievePairOccurrences(100001, 100007));
+    }
+
+    @Test
+    public void testWriteReadMerge() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+
+        // two strips computed separately
+        final ChangeMatrix north = new ChangeMatrix(classes);
+        north.registerPair(0, 0);
+        north.registerPair(0, 0);
+        north.registerPair(36, 37);
+        final ChangeMatrix south = new ChangeMatrix(classes);
+        south.registerPair(0, 0);
+        south.registerPair(37, 1);
+
+        // write both of them to the same stream and read them back
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        north.write(out);
+        south.write(out);
+        final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        final ChangeMatrix northRead = ChangeMatrix.read(in);
+        final ChangeMatrix southRead = ChangeMatrix.read(in);
+        assertEquals(-1, in.read());
+        assertEquals(5, northRead.getClassesNumber());
+        assertEquals(2, northRead.retrievePairOccurrences(0, 0));
+        assertEquals(1, southRead.retrievePairOccurrences(37, 1));
+
+        // combine them, ignoring the classes we are not interested in
+        classes.remove(1);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+        cm.merge(northRead);
+        cm.merge(southRead);
+        assertEquals(3, cm.retrievePairOccurrences(0, 0));
+        assertEquals(1, cm.retrievePairOccurrences(36, 37));
+        assertEquals(0, cm.retrievePairOccurrences(37, 36));
+        assertEquals(ChangeMatrix.NO_VALUE, cm.retrievePairOccurrences(37, 1));
+    }
+
+    @Test
+    public void testReadCorrupted() throws Exception {
+        // a class count close to Integer.MAX_VALUE with no class following, read without
+        // allocating for the announced classes
+        final byte[] huge = { 0x43, 0x4D, 0x58, 0x01, (byte) 0xFE, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, 0x07, 0x00 };
+        try {
+            ChangeMatrix.read(new ByteArrayInputStream(huge));
+            fail("The class count exceeds the stream");
+        } catch (EOFException e) {
+            // expected
+        }
+
+        // a truncated matrix
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(3);
+        classes.add(7);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+        cm.registerPair(3, 7);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cm.write(out);
+        final byte[] data = out.toByteArray();
+        for (int length = 0; length < data.length; length++) {
+            try {
+                ChangeMatrix.read(new ByteArrayInputStream(Arrays.copyOf(data, length)));
+                fail("Truncated at " + length);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals(1, ChangeMatrix.read(new ByteArrayInputStream(data))
+                .retrievePairOccurrences(3, 7));
+    }
+
+    @Test
+    public void testPackedMask() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(64).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final RenderedOp reference = ConstantDescriptor.create(Float.valueOf(800),
+                Float.valueOf(600), new Byte[] { Byte.valueOf((byte) 0) }, null);
+        final RenderedOp now = ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 1) }, null);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.setParameter("result", cm);
+        pbj.setParameter("roi", new ROIShape(new Rectangle(13, 7, 301, 200)));
+        pbj.setParameter("packedMask", Boolean.TRUE);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+
+        // 1 bit per pixel
+        assertTrue(result.getSampleModel() instanceof MultiPixelPackedSampleModel);
+        assertEquals(1, result.getSampleModel().getSampleSize(0));
+        final Raster data = result.getData();
+        for (int y = 0; y < 600; y += 3) {
+            for (int x = 0; x < 800; x++) {
+                final boolean inside = x >= 13 && x < 314 && y >= 7 && y < 207;
+                assertEquals(inside ? 1 : 0, data.getSample(x, y, 0));
+            }
+        }
+        result.dispose();
+        assertEquals(301 * 200, cm.retrievePairOccurrences(0, 1));
+    }
+
+    @Test
+    public void testTransitionCodes() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(2);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final RenderedOp reference = ConstantDescriptor.create(Float.valueOf(800),
+                Float.valueOf(600), new Byte[] { Byte.valueOf((byte) 0) }, null);
+        final RenderedOp now = ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 2) }, null);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.setParameter("result", cm);
+        pbj.setParameter("roi", new ROIShape(new Rectangle(13, 7, 301, 200)));
+        pbj.setParameter("transitionCodes", Boolean.TRUE);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, null);
+
+        // 3 * 3 codes plus NoData fit an ushort
+        assertEquals(DataBuffer.TYPE_USHORT, result.getSampleModel().getDataType());
+        final int code = cm.getTransitionCode(0, 2);
+        assertEquals(2, code);
+        assertEquals(9, cm.getNoTransitionCode());
+        final Raster data = result.getData();
+        for (int y = 0; y < 600; y += 3) {
+            for (int x = 0; x < 800; x++) {
+                final boolean inside = x >= 13 && x < 314 && y >= 7 && y < 207;
+                assertEquals(inside ? code : cm.getNoTransitionCode(), data.getSample(x, y, 0));
+            }
+        }
+        result.dispose();
+        assertEquals(301 * 200, cm.retrievePairOccurrences(0, 2));
+    }
+
+    @Test
+    public void testRemapping() throws Exception {
+        // CORINE like codes, aggregated to their first digit
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(1);
+        classes.add(2);
+        final Map<Integer, Integer> remapping = new HashMap<Integer, Integer>();
+        remapping.put(111, 1);
+        remapping.put(112, 1);
+        remapping.put(211, 2);
+        final ChangeMatrix cm = new ChangeMatrix(classes, remapping);
+
+        final BufferedImage reference = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        final BufferedImage now = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 800; x++) {
+                reference.getRaster().setSample(x, y, 0, x < 400 ? 111 : 112);
+                now.getRaster().setSample(x, y, 0, y < 200 ? 211 : 112);
+            }
+        }
+
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.setParameter("result", cm);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, null);
+        result.getTiles();
+        result.dispose();
+
+        // the matrix is read by class
+        assertEquals(800 * 400, cm.retrievePairOccurrences(1, 1));
+        assertEquals(800 * 200, cm.retrievePairOccurrences(1, 2));
+        assertEquals(0, cm.retrievePairOccurrences(2, 1));
+        assertEquals(ChangeMatrix.NO_VALUE, cm.retrievePairOccurrences(111, 1));
+    }
+
+    @Test
+    public void testIdenticalTiles() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(1);
+        classes.add(2);
+        classes.add(3);
+
+        // the left half changes, the right half does not
+        final BufferedImage reference = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        final BufferedImage now = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 800; x++) {
+                final int clazz = 1 + (x / 7 + y / 5) % 4;
+                reference.getRaster().setSample(x, y, 0, clazz);
+                now.getRaster().setSample(x, y, 0, x < 400 && clazz == 2 ? 3 : clazz);
+            }
+        }
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(100).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final Rectangle area = new Rectangle(13, 7, 701, 500);
+
+        for (boolean packedMask : new boolean[] { false, true }) {
+            final ChangeMatrix cm = new ChangeMatrix(classes);
+            final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+            pbj.addSource(reference);
+            pbj.addSource(now);
+            pbj.setParameter("result", cm);
+            pbj.setParameter("roi", new ROIShape(area));
+            pbj.setParameter("packedMask", Boolean.valueOf(packedMask));
+            final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+
+            final long[][] expected = new long[5][5];
+            final Raster data = result.getData();
+            for (int y = 0; y < 600; y++) {
+                for (int x = 0; x < 800; x++) {
+                    final int before = reference.getRaster().getSample(x, y, 0);
+                    final int after = now.getRaster().getSample(x, y, 0);
+                    final boolean inside = area.contains(x, y);
+                    if (inside) {
+                        expected[before][after]++;
+                    }
+                    assertEquals(inside && before != after ? 1 : 0, data.getSample(x, y, 0));
+                }
+            }
+            result.dispose();
+            for (int before = 1; before <= 3; before++) {
+                for (int after = 1; after <= 3; after++) {
+                    assertEquals(expected[before][after],
+                            cm.retrievePairOccurrences(before, after));
+                }
+            }
+        }
+
+        // an image compared with itself
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(reference);
+        pbj.setParameter("result", cm);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+        result.getTiles();
+        result.dispose();
+        long total = 0;
+        for (int clazz = 1; clazz <= 3; clazz++) {
+            total += cm.retrievePairOccurrences(clazz, clazz);
+        }
+        assertEquals(0, cm.retrievePairOccurrences(2, 3));
+        assertEquals(800 * 600 - total, countClass(reference, 4));
+    }
+
+    private static long countClass(final BufferedImage image, final int clazz) {
+        long count = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                if (image.getRaster().getSample(x, y, 0) == clazz) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testTileRecomputation() throws Exception {
+        final File file0 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 =  new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final RenderedOp source = JAI.create("ImageRead", file6);
+        final RenderedOp reference = JAI.create("ImageRead", file0);
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(256).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(source);
+        pbj.setParameter("result", cm);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+
+        // compute all the tiles twice, evicting them from the cache in between, without freezing
+        result.getTiles();
+        JAI.getDefaultInstance().getTileCache().removeTiles(result.getRendering());
+        result.getTiles();
+
+        result.dispose();
+        source.dispose();
+        reference.dispose();
+
+        // recomputed tiles must not be counted twice
+        assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+        assertEquals(36, cm.retrievePairOccurrences(35, 35));
+        assertEquals(18, cm.retrievePairOccurrences(1, 1));
+        assertEquals(6930, cm.retrievePairOccurrences(36, 36));
+        assertEquals(58, cm.retrievePairOccurrences(36, 37));
+        assertEquals(129, cm.retrievePairOccurrences(37, 36));
+        assertEquals(1720, cm.retrievePairOccurrences(37, 37));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+        final ChangeMatrixStatistics statistics = new ChangeMatrixStatistics();
+        cm.setStatistics(statistics);
+
+        // 4 x 3 tiles, the ROI covering the left half of the image
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(100).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final RenderedOp reference = ConstantDescriptor.create(Float.valueOf(400),
+                Float.valueOf(300), new Byte[] { Byte.valueOf((byte) 0) }, hints);
+        final RenderedOp now = ConstantDescriptor.create(Float.valueOf(400), Float.valueOf(300),
+                new Byte[] { Byte.valueOf((byte) 1) }, hints);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.setParameter("result", cm);
+        pbj.setParameter("roi", new ROIShape(new Rectangle(0, 0, 150, 300)));
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, hints);
+
+        // compute all the tiles twice, evicting them from the cache in between
+        result.getTiles();
+        JAI.getDefaultInstance().getTileCache().removeTiles(result.getRendering());
+        result.getTiles();
+        result.dispose();
+
+        assertEquals(24, statistics.getTilesComputed());
+        assertEquals(2 * 150 * 300, statistics.getPixelsCounted());
+        assertEquals(2 * 250 * 300, statistics.getPixelsMasked());
+        // only the tiles intersecting the ROI publish something, hence get replaced
+        assertEquals(6, statistics.getTilesRecomputed());
+        assertEquals(24, statistics.getMerges());
+        assertTrue(statistics.getNanosPerTile() > 0);
+        assertEquals(150 * 300, cm.retrievePairOccurrences(0, 1));
+
+        // exposed through JMX
+        final ObjectName name = statistics.register("testStatistics");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(Long.valueOf(24), server.getAttribute(name, "TilesComputed"));
+            server.invoke(name, "reset", null, null);
+            assertEquals(0, statistics.getTilesComputed());
+        } finally {
+            statistics.unregister();
+        }
+    }
+
 }
@@ -39,6 +39,7 @@ import javax.imageio.ImageIO;
 import javax.media.jai.ImageLayout;
 import javax.media.jai.JAI;
 import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.PlanarImage;
 //import javax.media.jai.RasterFactory;
 import javax.media.jai.RenderedOp;
 import javax.media.jai.TileCache;
@@ -66,9 +67,10 @@ import com.sun.media.imageioimpl.common.ImageUtil;
 
 /**
  * This test-class is used for testing images in the directory
- * src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded. If
- * the data are not present, the test are not performed and a WARNING is shown,
- * or the user can change the current image directory to test-data. After the
+ * src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded, or in the one
+ * set through the changematrix.data system property. If the data are not present,
+ * a WARNING is shown and synthetic images (see SyntheticClassifiedImage) of
+ * changematrix.synthetic.size pixels per side are used instead. After the
  * addition of the images, the user can change some parameters:
  * DEFAULT_THREAD_NUMBER,which indicates the number of thread retrieving the
  * result image-tiles; DEFAULT_TILE_HEIGHT, the height of every tile of the 2
@@ -155,8 +157,8 @@ public class CudaChangeMatrixTest extends AbstractBenchmark {
             //System.out.println("Saving output images.\n\n");
             try {
                 //ImageIO.write(biImage, "tiff", new File("d:/data/unina/test/row"+tileY+"_col"+tileX+"_"+".tif"));
-            	ImageIO.write(image0, "tiff", new File("/home/giuliano/git/jai-ext/out/0row"+tileY+"_col"+tileX+"_"+".tif"));
-            	ImageIO.write(image1, "tiff", new File("/home/giuliano/git/jai-ext/out/1row"+tileY+"_col"+tileX+"_"+".tif"));
+            	ImageIO.write(image0, "tiff", new File(OUTPUT_PATH, "0row"+tileY+"_col"+tileX+"_"+".tif"));
+            	ImageIO.write(image1, "tiff", new File(OUTPUT_PATH, "1row"+tileY+"_col"+tileX+"_"+".tif"));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -166,11 +168,22 @@ public class CudaChangeMatrixTest extends AbstractBenchmark {
         }
     }
 
-	//private final static String REFERENCE_PATH_FOR_TESTS = "d:/data/unina";
-    private final static String REFERENCE_PATH_FOR_TESTS = "/home/giuliano/work/Projects/LIFE_Project/LUC_gpgpu/rasterize";
-    
+    // -Dchangematrix.data=<directory with clc2000_L3_100m.tif and clc2006_L3_100m.tif>
+    private final static String REFERENCE_PATH_FOR_TESTS = System.getProperty(
+            "changematrix.data",
+            "src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded");
+
+    // size of the synthetic images used when the data are not present
+    private final static int SYNTHETIC_SIZE = Integer.getInteger("changematrix.synthetic.size",
+            50000);
+
     // Create the PTX file by calling the NVCC
-    private final static String PTX_FILE_NAME = "/home/giuliano/work/Projects/LIFE_Project/LUC_gpgpu/gpgpu/changemat.ptx";
+    private final static String PTX_FILE_NAME = System.getProperty("changematrix.ptx",
+            "changemat.ptx");
+
+    // where the workers write their output
+    private final static String OUTPUT_PATH = System.getProperty("changematrix.out",
+            System.getProperty("java.io.tmpdir"));
     
     /* TileDim must be set according to the effective ROI passed to Cuda kernel.
      * The "effective" ROI size can change according to ROI subsetting due to addressed 
@@ -193,9 +206,9 @@ public class CudaChangeMatrixTest extends AbstractBenchmark {
 	private static final int NUM_CYCLES_BENCH = 10;//=3
 	private static final int NUM_CYCLES_WARM = 10;
 
-    private RenderedOp current;
+    private PlanarImage current;
 
-    private RenderedOp reference;
+    private PlanarImage reference;
 
     private final static int DEFAULT_THREAD_NUMBER = 1;
 
@@ -213,12 +226,20 @@ public class CudaChangeMatrixTest extends AbstractBenchmark {
 		final File file6 = new File(REFERENCE_PATH_FOR_TESTS,
 				"clc2006_L3_100m.tif");
 
-		if(!file0.exists()||!file0.canRead()||!file6.exists()||!file6.canRead()){
-		    throw new IllegalArgumentException("Input files are not present!");
-		}
-
                 int tileH = DEFAULT_TILE_HEIGHT;
                 int tileW = DEFAULT_TILE_WIDTH;
+
+		if(!file0.exists()||!file0.canRead()||!file6.exists()||!file6.canRead()){
+		    // same number of classes as the CORINE data, computed lazily
+		    System.out.println("WARNING: input files are not present in "
+		            + REFERENCE_PATH_FOR_TESTS + ", using " + SYNTHETIC_SIZE + "x"
+		            + SYNTHETIC_SIZE + " synthetic images");
+		    reference = SyntheticClassifiedImage.reference(SYNTHETIC_SIZE, SYNTHETIC_SIZE,
+		            tileW, tileH, 44, 20, 0.05, 2000L);
+		    current = SyntheticClassifiedImage.now(SYNTHETIC_SIZE, SYNTHETIC_SIZE, tileW,
+		            tileH, 44, 20, 0.05, 2000L);
+		    return;
+		}
         
                 // Tile dimension settings
                 ImageLayout layout = new ImageLayout();
@@ -299,8 +320,9 @@ public class CudaChangeMatrixTest extends AbstractBenchmark {
         Assert.assertEquals(8190, maximum[0],1e-6);
         
         // write down as tiff
-        // THIS NEEDS TO be adjusted on some platform
-        ImageIO.write(image, "tiff", new File("/home/giuliano/git/jai-ext/out/test.tif"));
+        final File file = File.createTempFile("changematrix", ".tif");
+        file.deleteOnExit();
+        ImageIO.write(image, "tiff", file);
     }
 
     /**
@@ -0,0 +1,74 @@
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+import it.geosolutions.jaiext.changematrix.GriddedChangeMatrixDescriptor.GriddedChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.operator.ConstantDescriptor;
+
+import org.junit.Test;
+
+public class GriddedChangeMatrixTest extends org.junit.Assert {
+
+    /**
+     * No exceptions if the SPI is properly registered
+     */
+    @Test
+    public void testSPI() {
+        new ParameterBlockJAI("GriddedChangeMatrix");
+    }
+
+    @Test
+    public void testGrid() {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final GriddedChangeMatrix gcm = new GriddedChangeMatrix(classes, 100, 100);
+
+        // tiles not aligned with the grid, so that cells cross tiles
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(64).setTileWidth(128);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        final Rectangle area = new Rectangle(13, 7, 301, 200);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("GriddedChangeMatrix");
+        pbj.addSource(ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 0) }, null));
+        pbj.addSource(ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 1) }, null));
+        pbj.setParameter("roi", new ROIShape(area));
+        pbj.setParameter("result", gcm);
+        final RenderedOp result = JAI.create("GriddedChangeMatrix", pbj, hints);
+        result.getTiles();
+        result.dispose();
+        gcm.freeze();
+
+        // 4 columns and 3 rows of cells intersect the ROI
+        assertEquals(12, gcm.getCells().size());
+        long total = 0;
+        for (int cellY = 0; cellY < 6; cellY++) {
+            for (int cellX = 0; cellX < 8; cellX++) {
+                final Rectangle cell = new Rectangle(cellX * 100, cellY * 100, 100, 100);
+                final Rectangle inside = cell.intersection(area);
+                final long expected = inside.isEmpty() ? 0 : inside.width * inside.height;
+                assertEquals(expected, gcm.retrievePairOccurrences(cellX, cellY, 0, 1));
+                assertEquals(0, gcm.retrievePairOccurrences(cellX, cellY, 0, 0));
+                total += expected;
+            }
+        }
+        assertEquals(301 * 200, total);
+        assertEquals(ChangeMatrix.NO_VALUE, gcm.retrievePairOccurrences(0, 0, 0, 5));
+
+        final ChangeMatrix cm = gcm.getChangeMatrix(1, 1);
+        assertEquals(100 * 100, cm.retrievePairOccurrences(0, 1));
+        assertNull(gcm.getChangeMatrix(7, 5));
+    }
+}
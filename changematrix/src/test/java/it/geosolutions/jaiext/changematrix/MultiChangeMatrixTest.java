@@ -0,0 +1,95 @@
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.RenderingHints;
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.operator.ConstantDescriptor;
+
+import org.junit.Test;
+
+public class MultiChangeMatrixTest extends org.junit.Assert {
+
+    private final static String REFERENCE_PATH_FOR_TESTS = "./src/test/resources/it/geosolutions/jaiext/changematrix/test-data/";
+
+    /**
+     * No exceptions if the SPI is properly registered
+     */
+    @Test
+    public void testSPI() {
+        new ParameterBlockJAI("MultiChangeMatrix");
+    }
+
+    @Test
+    public void testChangesCount() {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final ChangeMatrix[] results = { new ChangeMatrix(classes), new ChangeMatrix(classes),
+                new ChangeMatrix(classes) };
+
+        // 0 -> 1 -> 1 -> 0
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("MultiChangeMatrix");
+        for (int value : new int[] { 0, 1, 1, 0 }) {
+            pbj.addSource(ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                    new Byte[] { Byte.valueOf((byte) value) }, null));
+        }
+        pbj.setParameter("results", results);
+        final RenderedOp result = JAI.create("MultiChangeMatrix", pbj, null);
+        final Raster data = result.getData();
+        assertEquals(2, data.getSample(0, 0, 0));
+        assertEquals(2, data.getSample(799, 599, 0));
+        result.dispose();
+
+        assertEquals(800 * 600, results[0].retrievePairOccurrences(0, 1));
+        assertEquals(800 * 600, results[1].retrievePairOccurrences(1, 1));
+        assertEquals(800 * 600, results[2].retrievePairOccurrences(1, 0));
+        assertEquals(0, results[2].retrievePairOccurrences(0, 1));
+    }
+
+    @Test
+    public void testSeries() {
+        final File file0 = new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 = new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ChangeMatrix[] results = { new ChangeMatrix(classes), new ChangeMatrix(classes) };
+
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileHeight(256).setTileWidth(100);
+        final RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+
+        // 2000 -> 2006 -> 2000
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("MultiChangeMatrix");
+        pbj.addSource(JAI.create("ImageRead", file0));
+        pbj.addSource(JAI.create("ImageRead", file6));
+        pbj.addSource(JAI.create("ImageRead", file0));
+        pbj.setParameter("results", results);
+        final RenderedOp result = JAI.create("MultiChangeMatrix", pbj, hints);
+        result.getTiles();
+        result.dispose();
+
+        // same values as the ChangeMatrix operation, then reversed
+        assertEquals(88022, results[0].retrievePairOccurrences(0, 0));
+        assertEquals(6930, results[0].retrievePairOccurrences(36, 36));
+        assertEquals(58, results[0].retrievePairOccurrences(36, 37));
+        assertEquals(129, results[0].retrievePairOccurrences(37, 36));
+        assertEquals(88022, results[1].retrievePairOccurrences(0, 0));
+        assertEquals(6930, results[1].retrievePairOccurrences(36, 36));
+        assertEquals(58, results[1].retrievePairOccurrences(37, 36));
+        assertEquals(129, results[1].retrievePairOccurrences(36, 37));
+    }
+}
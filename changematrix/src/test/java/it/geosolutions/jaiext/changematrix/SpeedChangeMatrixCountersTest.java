@@ -0,0 +1,151 @@
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.jai.JAI;
+import javax.media.jai.RenderedOp;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.carrotsearch.junitbenchmarks.AbstractBenchmark;
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+
+/**
+ * This test-class compares the pixels/sec throughput of the primitive-backed {@link ChangeMatrix} against the original implementation based on
+ * boxed {@link HashMap} lookups and a {@link List} of {@link AtomicLong}, which is reproduced here as {@link LegacyChangeMatrix}. Both are fed
+ * with the pixels of the CORINE images in the test-data directory, using all the 45 CORINE level 3 classes. The throughput of each
+ * implementation is printed at the end of the run.
+ */
+public class SpeedChangeMatrixCountersTest extends AbstractBenchmark {
+
+    private final static String REFERENCE_PATH_FOR_TESTS = "./src/test/resources/it/geosolutions/jaiext/changematrix/test-data/";
+
+    // The first NUM_CYCLES_WARM cycles are not considered because they simply
+    // allows the Java Hotspot to compile the code.
+    private static final int NUM_CYCLES_BENCH = 10;
+
+    private static final int NUM_CYCLES_WARM = 5;
+
+    private static final Set<Integer> CLASSES = new HashSet<Integer>();
+
+    private static int[] referenceSamples;
+
+    private static int[] nowSamples;
+
+    private static long legacyTime;
+
+    private static long legacyPixels;
+
+    private static long primitiveTime;
+
+    private static long primitivePixels;
+
+    @BeforeClass
+    public static void startUp() {
+        for (int i = 0; i < 45; i++) {
+            CLASSES.add(i);
+        }
+
+        final RenderedOp reference = JAI.create("ImageRead", new File(REFERENCE_PATH_FOR_TESTS,
+                "clc2000_L3_100m_small.tif"));
+        final RenderedOp now = JAI.create("ImageRead", new File(REFERENCE_PATH_FOR_TESTS,
+                "clc2006_L3_100m_small.tif"));
+        final Raster referenceData = reference.getData();
+        final Raster nowData = now.getData();
+        referenceSamples = referenceData.getSamples(referenceData.getMinX(),
+                referenceData.getMinY(), referenceData.getWidth(), referenceData.getHeight(), 0,
+                (int[]) null);
+        nowSamples = nowData.getSamples(nowData.getMinX(), nowData.getMinY(), nowData.getWidth(),
+                nowData.getHeight(), 0, (int[]) null);
+        reference.dispose();
+        now.dispose();
+    }
+
+    @AfterClass
+    public static void end() {
+        System.out.println("Legacy ChangeMatrix    (pixels/sec): "
+                + (legacyPixels * 1E9 / Math.max(1, legacyTime)));
+        System.out.println("Primitive ChangeMatrix (pixels/sec): "
+                + (primitivePixels * 1E9 / Math.max(1, primitiveTime)));
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = NUM_CYCLES_BENCH, warmupRounds = NUM_CYCLES_WARM)
+    public void testLegacy() {
+        final LegacyChangeMatrix cm = new LegacyChangeMatrix(CLASSES);
+        final long init = System.nanoTime();
+        for (int i = 0; i < referenceSamples.length; i++) {
+            cm.registerPair(referenceSamples[i], nowSamples[i]);
+        }
+        legacyTime += System.nanoTime() - init;
+        legacyPixels += referenceSamples.length;
+        Assert.assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = NUM_CYCLES_BENCH, warmupRounds = NUM_CYCLES_WARM)
+    public void testPrimitive() {
+        final ChangeMatrix cm = new ChangeMatrix(CLASSES);
+        final long init = System.nanoTime();
+        for (int i = 0; i < referenceSamples.length; i++) {
+            cm.registerPair(referenceSamples[i], nowSamples[i]);
+        }
+        primitiveTime += System.nanoTime() - init;
+        primitivePixels += referenceSamples.length;
+        Assert.assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+    }
+
+    /**
+     * The original {@link ChangeMatrix} implementation, kept as a baseline for the comparison.
+     */
+    private static class LegacyChangeMatrix {
+
+        private final Map<Integer, Integer> classesMappings = new HashMap<Integer, Integer>();
+
+        private final List<AtomicLong> matrix;
+
+        private final int classesNumber;
+
+        LegacyChangeMatrix(Set<Integer> classes) {
+            classesNumber = classes.size();
+            matrix = new ArrayList<AtomicLong>(classesNumber * classesNumber);
+            for (int i = classesNumber * classesNumber - 1; i >= 0; i--) {
+                matrix.add(new AtomicLong(0));
+            }
+            int k = 0;
+            for (Integer clazz : classes) {
+                classesMappings.put(clazz, k++);
+            }
+        }
+
+        void registerPair(int reference, int now) {
+            Integer row = classesMappings.get(reference);
+            Integer col = classesMappings.get(now);
+            if (row != null && col != null) {
+                matrix.get(col + row * classesNumber).incrementAndGet();
+            }
+        }
+
+        long retrievePairOccurrences(int reference, int now) {
+            Integer row = classesMappings.get(reference);
+            Integer col = classesMappings.get(now);
+            if (row != null && col != null) {
+                return matrix.get(col + row * classesNumber).get();
+            }
+            return ChangeMatrix.NO_VALUE;
+        }
+    }
+}
@@ -38,6 +38,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -72,9 +73,10 @@ import com.sun.media.imageioimpl.common.ImageUtil;
 
 /**
  * This test-class is used for testing images in the directory
- * src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded. If
- * the data are not present, the test are not performed and a WARNING is shown,
- * or the user can change the source image directory to test-data. After the
+ * src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded, or in the one
+ * set through the changematrix.data system property. If the data are not present,
+ * a WARNING is shown and synthetic images (see SyntheticClassifiedImage) of
+ * changematrix.synthetic.size pixels per side are used instead. After the
  * addition of the images, the user can change some parameters:
  * DEFAULT_THREAD_NUMBER,which indicates the number of thread retrieving the
  * result image-tiles; DEFAULT_TILE_HEIGHT, the height of every tile of the 2
@@ -90,8 +92,14 @@ import com.sun.media.imageioimpl.common.ImageUtil;
  */
 public class SpeedChangeMatrixTest extends AbstractBenchmark {
 
-	//private final static String REFERENCE_PATH_FOR_TESTS = "d:/data/unina";
-	private final static String REFERENCE_PATH_FOR_TESTS = "/home/giuliano/work/Projects/LIFE_Project/LUC_gpgpu/rasterize";
+	// -Dchangematrix.data=<directory with clc2000_L3_100m.tif and clc2006_L3_100m.tif>
+	private final static String REFERENCE_PATH_FOR_TESTS = System.getProperty(
+	        "changematrix.data",
+	        "src/test/resources/it/geosolutions/jaiext/changematrix/test-data-expanded");
+
+	// size of the synthetic images used when the data are not present
+	private final static int SYNTHETIC_SIZE = Integer.getInteger("changematrix.synthetic.size",
+	        50000);
 
 	private final static int DEFAULT_THREAD_NUMBER = 24;
     /* TileDim must be set according to the effective ROI passed to Cuda kernel.
@@ -122,7 +130,12 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
     static ExecutorService ex = Executors.newFixedThreadPool(DEFAULT_THREAD_NUMBER);
 
 	// Create the PTX file by calling the NVCC
-	private final static String PTX_FILE_NAME = "/home/giuliano/work/Projects/LIFE_Project/LUC_gpgpu/gpgpu/changemat.ptx";
+	private final static String PTX_FILE_NAME = System.getProperty("changematrix.ptx",
+	        "changemat.ptx");
+
+	// where the CUDA workers write their output, if asked to
+	private final static String OUTPUT_PATH = System.getProperty("changematrix.out",
+	        System.getProperty("java.io.tmpdir"));
 
 	private static double sum=0;
 	private static int i=0;
@@ -151,12 +164,20 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
 		final File file6 = new File(REFERENCE_PATH_FOR_TESTS,
 				"clc2006_L3_100m.tif");
 
-		if(!file0.exists()||!file0.canRead()||!file6.exists()||!file6.canRead()){
-		    throw new IllegalArgumentException("Input files are not present!");
-		}
-
                 int tileH = DEFAULT_TILE_HEIGHT;
                 int tileW = DEFAULT_TILE_WIDTH;
+
+		if(!file0.exists()||!file0.canRead()||!file6.exists()||!file6.canRead()){
+		    // same number of classes as the CORINE data, computed lazily
+		    System.out.println("WARNING: input files are not present in "
+		            + REFERENCE_PATH_FOR_TESTS + ", using " + SYNTHETIC_SIZE + "x"
+		            + SYNTHETIC_SIZE + " synthetic images");
+		    initializationSetup.setReference(SyntheticClassifiedImage.reference(SYNTHETIC_SIZE,
+		            SYNTHETIC_SIZE, tileW, tileH, 44, 20, 0.05, 2000L));
+		    initializationSetup.setSource(SyntheticClassifiedImage.now(SYNTHETIC_SIZE,
+		            SYNTHETIC_SIZE, tileW, tileH, 44, 20, 0.05, 2000L));
+		    return;
+		}
         
                 // Tile dimension settings
                 ImageLayout layout = new ImageLayout();
@@ -200,8 +221,8 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
 	public void testJAI() throws InterruptedException {
 		
 		long init=System.nanoTime();
-            RenderedOp reference = (RenderedOp) initializationSetup.getReference();
-            RenderedOp source = (RenderedOp) initializationSetup.getSource();
+            RenderedImage reference = initializationSetup.getReference();
+            RenderedImage source = initializationSetup.getSource();
     
             RenderingHints hints = initializationSetup.getRenderingHints();
     
@@ -256,21 +277,61 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
             result.dispose();
 	}
 
+	@Test
+	@Ignore
+	@BenchmarkOptions(benchmarkRounds = NUM_CYCLES_BENCH, warmupRounds = NUM_CYCLES_WARM)
+	public void testProcessor() throws InterruptedException {
+		
+		long init=System.nanoTime();
+            RenderedImage reference = initializationSetup.getReference();
+            RenderedImage source = initializationSetup.getSource();
+    
+            // ChangeMatrix creation
+            final Set<Integer> classes = new HashSet<Integer>();
+            for(int i=0;i<45;i++){
+                classes.add(i);
+            }
+    
+            final ChangeMatrix cm = new ChangeMatrix(classes);
+    
+            // compute all the tiles, at most one per thread at the same time
+            final ChangeMatrixProcessor processor = new ChangeMatrixProcessor(reference, source,
+                    null, cm);
+            processor.setMaxInFlightTiles(DEFAULT_THREAD_NUMBER);
+            try {
+                processor.submit(ex).get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            cm.freeze(); // stop changing the computations! If we did not do
+                         // this new
+                         // values would be accumulated as the file was
+                         // written
+    
+            sum+=(System.nanoTime()-init);
+            
+            System.out.println((System.nanoTime()-init)/1E6);
+            
+            // cache flushing
+            JAI.getDefaultInstance().getTileCache().removeTiles(reference);
+            JAI.getDefaultInstance().getTileCache().removeTiles(source);
+	}
+
 	@Test
 //	@Ignore
 	@BenchmarkOptions(benchmarkRounds = NUM_CYCLES_BENCH, warmupRounds = NUM_CYCLES_WARM)
 	public void testCUDA() throws Exception {
 		
 		long init=System.nanoTime();
-        RenderedOp reference = (RenderedOp) initializationSetup.getReference();
-        RenderedOp source = (RenderedOp) initializationSetup.getSource();
+        RenderedImage reference = initializationSetup.getReference();
+        RenderedImage source = initializationSetup.getSource();
             
 	    // prepare tiles layout for input images
 	    final int numTileX=reference.getNumXTiles();
 	    final int numTileY=reference.getNumYTiles();
 	    final int minTileX=reference.getMinTileX();
 	    final int minTileY=reference.getMinTileY();
-	    System.out.println("dimensions: "+reference.getBounds());
+	    System.out.println("dimensions: "+reference.getWidth()+"x"+reference.getHeight());
 	    System.out.println("tileW: "+reference.getTileWidth()+" tileH: "+reference.getTileHeight());
 	    
 	    
@@ -587,16 +648,16 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
 	        
 	        private final CountDownLatch latch;
 
-			private RenderedOp reference;
+			private RenderedImage reference;
 
-			private RenderedOp current;
+			private RenderedImage current;
 	
 	        /**
 	         * @param tileX
 	         * @param tileY
 	         * @param latch
 	         */
-	        public CUDAWorker(int tileX, int tileY, CountDownLatch latch, RenderedOp reference, RenderedOp current) {
+	        public CUDAWorker(int tileX, int tileY, CountDownLatch latch, RenderedImage reference, RenderedImage current) {
 	            this.tileX = tileX;
 	            this.tileY = tileY;
 	            this.latch = latch;
@@ -644,8 +705,8 @@ public class SpeedChangeMatrixTest extends AbstractBenchmark {
 		            //System.out.println("Saving output images.\n\n");
 		            try {
 		                //ImageIO.write(biImage, "tiff", new File("d:/data/unina/test/row"+tileY+"_col"+tileX+"_"+".tif"));
-		            	ImageIO.write(image0, "tiff", new File("/home/giuliano/git/jai-ext/out/0row"+tileY+"_col"+tileX+"_"+".tif"));
-		            	ImageIO.write(image1, "tiff", new File("/home/giuliano/git/jai-ext/out/1row"+tileY+"_col"+tileX+"_"+".tif"));
+		            	ImageIO.write(image0, "tiff", new File(OUTPUT_PATH, "0row"+tileY+"_col"+tileX+"_"+".tif"));
+		            	ImageIO.write(image1, "tiff", new File(OUTPUT_PATH, "1row"+tileY+"_col"+tileX+"_"+".tif"));
 		            } catch (IOException e) {
 		                throw new RuntimeException(e);
 		            }
@@ -0,0 +1,188 @@
+package it.geosolutions.jaiext.changematrix;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.SourcelessOpImage;
+
+/**
+ * A deterministic, lazily computed, classified image for the change matrix tests and benchmarks, so that they can run at production-like sizes
+ * (e.g. 50000 x 50000) without shipping any data.
+ * <p>
+ * The image is a mosaic of patches, like a land cover map: a grid of <code>patchSize</code> cells is laid over the image, each cell holding a
+ * seed point at a pseudo random position and with a pseudo random class, and each pixel takes the class of the nearest seed point. The larger
+ * the patches, the stronger the spatial autocorrelation. The "now" image shares the patches of the "reference" one, a <code>changeRate</code>
+ * fraction of them having changed class.
+ * <p>
+ * Every pixel is a pure function of the seed and of its position, so tiles can be computed in any order, on any machine, and the same
+ * parameters always produce the same image. Classes go from 0 to <code>classes - 1</code>, stored as bytes when they fit, as ushort otherwise.
+ */
+public class SyntheticClassifiedImage extends SourcelessOpImage {
+
+    private final int classes;
+
+    private final int patchSize;
+
+    private final double changeRate;
+
+    private final long seed;
+
+    private final boolean now;
+
+    /**
+     * Creates the reference image of a synthetic pair.
+     *
+     * @param width the image width
+     * @param height the image height
+     * @param tileWidth the width of the tiles
+     * @param tileHeight the height of the tiles
+     * @param classes the number of classes, at most 65536
+     * @param patchSize the mean size of the patches, in pixels, 1 for no spatial autocorrelation at all
+     * @param changeRate the fraction of the patches changing class in the now image, between 0 and 1
+     * @param seed the seed of the pair
+     * @return the reference image
+     */
+    public static SyntheticClassifiedImage reference(final int width, final int height,
+            final int tileWidth, final int tileHeight, final int classes, final int patchSize,
+            final double changeRate, final long seed) {
+        return new SyntheticClassifiedImage(width, height, tileWidth, tileHeight, classes,
+                patchSize, changeRate, seed, false);
+    }
+
+    /**
+     * Creates the now image of a synthetic pair, see {@link #reference(int, int, int, int, int, int, double, long)} for the parameters.
+     *
+     * @return the now image
+     */
+    public static SyntheticClassifiedImage now(final int width, final int height,
+            final int tileWidth, final int tileHeight, final int classes, final int patchSize,
+            final double changeRate, final long seed) {
+        return new SyntheticClassifiedImage(width, height, tileWidth, tileHeight, classes,
+                patchSize, changeRate, seed, true);
+    }
+
+    private SyntheticClassifiedImage(final int width, final int height, final int tileWidth,
+            final int tileHeight, final int classes, final int patchSize,
+            final double changeRate, final long seed, final boolean now) {
+        super(layout(tileWidth, tileHeight, classes), null, sampleModel(tileWidth, tileHeight,
+                classes), 0, 0, width, height);
+        if (patchSize <= 0) {
+            throw new IllegalArgumentException("The patch size must be positive");
+        }
+        if (changeRate < 0 || changeRate > 1) {
+            throw new IllegalArgumentException("The change rate must be between 0 and 1");
+        }
+        this.classes = classes;
+        this.patchSize = patchSize;
+        this.changeRate = changeRate;
+        this.seed = seed;
+        this.now = now;
+    }
+
+    private static SampleModel sampleModel(final int tileWidth, final int tileHeight,
+            final int classes) {
+        if (classes <= 0 || classes > 65536) {
+            throw new IllegalArgumentException("The number of classes must be between 1 and 65536");
+        }
+        final int dataType = classes <= 256 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT;
+        return new PixelInterleavedSampleModel(dataType, tileWidth, tileHeight, 1, tileWidth,
+                new int[] { 0 });
+    }
+
+    private static ImageLayout layout(final int tileWidth, final int tileHeight,
+            final int classes) {
+        final SampleModel sampleModel = sampleModel(tileWidth, tileHeight, classes);
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileGridXOffset(0).setTileGridYOffset(0);
+        layout.setTileWidth(tileWidth).setTileHeight(tileHeight);
+        layout.setSampleModel(sampleModel);
+        layout.setColorModel(PlanarImage.createColorModel(sampleModel));
+        return layout;
+    }
+
+    @Override
+    protected void computeRect(final PlanarImage[] sources, final WritableRaster dest,
+            final Rectangle destRect) {
+        // the seed points of the cells around the rectangle, computed once
+        final int firstCellX = destRect.x / patchSize - 1;
+        final int firstCellY = destRect.y / patchSize - 1;
+        final int cellsX = (destRect.x + destRect.width - 1) / patchSize - firstCellX + 2;
+        final int cellsY = (destRect.y + destRect.height - 1) / patchSize - firstCellY + 2;
+        final int[] pointX = new int[cellsX * cellsY];
+        final int[] pointY = new int[pointX.length];
+        final int[] pointClass = new int[pointX.length];
+        for (int j = 0; j < cellsY; j++) {
+            for (int i = 0; i < cellsX; i++) {
+                final int k = i + j * cellsX;
+                final int cellX = firstCellX + i;
+                final int cellY = firstCellY + j;
+                final long position = mix(seed, cellX, cellY, 0);
+                pointX[k] = cellX * patchSize + (int) (((position & 0xFFFF) * patchSize) >>> 16);
+                pointY[k] = cellY * patchSize
+                        + (int) ((((position >>> 16) & 0xFFFF) * patchSize) >>> 16);
+                pointClass[k] = classOf(cellX, cellY);
+            }
+        }
+
+        // each pixel takes the class of the nearest seed point
+        final int[] row = new int[destRect.width];
+        for (int y = destRect.y; y < destRect.y + destRect.height; y++) {
+            final int j = y / patchSize - firstCellY;
+            for (int x = destRect.x; x < destRect.x + destRect.width; x++) {
+                final int i = x / patchSize - firstCellX;
+                long nearest = Long.MAX_VALUE;
+                int clazz = 0;
+                for (int dj = -1; dj <= 1; dj++) {
+                    for (int di = -1; di <= 1; di++) {
+                        final int k = i + di + (j + dj) * cellsX;
+                        final long dx = pointX[k] - x;
+                        final long dy = pointY[k] - y;
+                        final long distance = dx * dx + dy * dy;
+                        if (distance < nearest) {
+                            nearest = distance;
+                            clazz = pointClass[k];
+                        }
+                    }
+                }
+                row[x - destRect.x] = clazz;
+            }
+            dest.setSamples(destRect.x, y, destRect.width, 1, 0, row);
+        }
+    }
+
+    /**
+     * The class of the patch of a cell, in this image.
+     */
+    private int classOf(final int cellX, final int cellY) {
+        final int reference = (int) ((mix(seed, cellX, cellY, 1) >>> 1) % classes);
+        if (!now || classes == 1) {
+            return reference;
+        }
+        final long change = mix(seed, cellX, cellY, 2);
+        if ((change >>> 11) * 0x1.0p-53 >= changeRate) {
+            return reference;
+        }
+        // any other class
+        final int shift = 1 + (int) ((mix(seed, cellX, cellY, 3) >>> 1) % (classes - 1));
+        return (reference + shift) % classes;
+    }
+
+    /**
+     * Mixes the seed, a cell and a salt into 64 well distributed bits (SplitMix64 finalizer).
+     */
+    private static long mix(final long seed, final int cellX, final int cellY, final int salt) {
+        long z = seed + 0x9E3779B97F4A7C15L * (((long) cellX << 32) ^ (cellY & 0xFFFFFFFFL))
+                + 0xBF58476D1CE4E5B9L * salt;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        // a second round, cells and salts being highly correlated inputs
+        z = (z + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        return z ^ (z >>> 29);
+    }
+}
@@ -0,0 +1,78 @@
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
+
+import org.junit.Test;
+
+public class SyntheticClassifiedImageTest extends org.junit.Assert {
+
+    @Test
+    public void testDeterministic() {
+        final SyntheticClassifiedImage a = SyntheticClassifiedImage.reference(1000, 800, 256,
+                256, 44, 20, 0.1, 42L);
+        final SyntheticClassifiedImage b = SyntheticClassifiedImage.reference(1000, 800, 128,
+                100, 44, 20, 0.1, 42L);
+        final SyntheticClassifiedImage c = SyntheticClassifiedImage.reference(1000, 800, 256,
+                256, 44, 20, 0.1, 43L);
+
+        // same pixels whatever the tiling, different ones with another seed
+        final Rectangle area = new Rectangle(100, 200, 600, 400);
+        final Raster ra = a.getData(area);
+        final Raster rb = b.getData(area);
+        final Raster rc = c.getData(area);
+        final Set<Integer> classes = new HashSet<Integer>();
+        int different = 0;
+        for (int y = area.y; y < area.y + area.height; y++) {
+            for (int x = area.x; x < area.x + area.width; x++) {
+                assertEquals(ra.getSample(x, y, 0), rb.getSample(x, y, 0));
+                if (ra.getSample(x, y, 0) != rc.getSample(x, y, 0)) {
+                    different++;
+                }
+                classes.add(ra.getSample(x, y, 0));
+            }
+        }
+        assertTrue(different > 0);
+        assertEquals(44, classes.size());
+    }
+
+    @Test
+    public void testChangeRate() {
+        final Set<Integer> classes = new HashSet<Integer>();
+        for (int i = 0; i < 44; i++) {
+            classes.add(i);
+        }
+        final ChangeMatrix cm = new ChangeMatrix(classes);
+
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ChangeMatrix");
+        pbj.addSource(SyntheticClassifiedImage.reference(2000, 2000, 512, 512, 44, 10, 0.2, 7L));
+        pbj.addSource(SyntheticClassifiedImage.now(2000, 2000, 512, 512, 44, 10, 0.2, 7L));
+        pbj.setParameter("result", cm);
+        final RenderedOp result = JAI.create("ChangeMatrix", pbj, null);
+        result.getTiles();
+        result.dispose();
+
+        // about a fifth of the patches, hence of the pixels, changed
+        long unchanged = 0;
+        long total = 0;
+        for (int before = 0; before < 44; before++) {
+            for (int after = 0; after < 44; after++) {
+                final long count = cm.retrievePairOccurrences(before, after);
+                total += count;
+                if (before == after) {
+                    unchanged += count;
+                }
+            }
+        }
+        assertEquals(2000 * 2000, total);
+        assertEquals(0.2, (total - unchanged) / (double) total, 0.02);
+    }
+}
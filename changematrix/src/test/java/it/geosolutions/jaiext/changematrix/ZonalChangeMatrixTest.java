@@ -0,0 +1,101 @@
+package it.geosolutions.jaiext.changematrix;
+
+import it.geosolutions.jaiext.changematrix.ChangeMatrixDescriptor.ChangeMatrix;
+import it.geosolutions.jaiext.changematrix.ZonalChangeMatrixDescriptor.ZonalChangeMatrix;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.operator.ConstantDescriptor;
+
+import org.junit.Test;
+
+public class ZonalChangeMatrixTest extends org.junit.Assert {
+
+    private final static String REFERENCE_PATH_FOR_TESTS = "./src/test/resources/it/geosolutions/jaiext/changematrix/test-data/";
+
+    /**
+     * No exceptions if the SPI is properly registered
+     */
+    @Test
+    public void testSPI() {
+        new ParameterBlockJAI("ZonalChangeMatrix");
+    }
+
+    @Test
+    public void testZones() {
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        final ZonalChangeMatrix zcm = new ZonalChangeMatrix(classes);
+
+        // two zones, 7 on the left and 9 on the right
+        final BufferedImage zones = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        final WritableRaster raster = zones.getRaster();
+        for (int y = 0; y < 600; y++) {
+            for (int x = 0; x < 800; x++) {
+                raster.setSample(x, y, 0, x < 300 ? 7 : 9);
+            }
+        }
+
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ZonalChangeMatrix");
+        pbj.addSource(ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 0) }, null));
+        pbj.addSource(ConstantDescriptor.create(Float.valueOf(800), Float.valueOf(600),
+                new Byte[] { Byte.valueOf((byte) 1) }, null));
+        pbj.addSource(zones);
+        pbj.setParameter("result", zcm);
+        final RenderedOp result = JAI.create("ZonalChangeMatrix", pbj, null);
+        result.getTiles();
+        result.dispose();
+        zcm.freeze();
+
+        assertEquals(2, zcm.getZones().size());
+        assertNull(zcm.getChangeMatrix(8));
+        final ChangeMatrix left = zcm.getChangeMatrix(7);
+        assertEquals(300 * 600, left.retrievePairOccurrences(0, 1));
+        assertEquals(0, left.retrievePairOccurrences(0, 0));
+        final ChangeMatrix right = zcm.getChangeMatrix(9);
+        assertEquals(500 * 600, right.retrievePairOccurrences(0, 1));
+    }
+
+    @Test
+    public void testSingleZone() {
+        final File file0 = new File(REFERENCE_PATH_FOR_TESTS, "clc2000_L3_100m_small.tif");
+        final File file6 = new File(REFERENCE_PATH_FOR_TESTS, "clc2006_L3_100m_small.tif");
+
+        final Set<Integer> classes = new HashSet<Integer>();
+        classes.add(0);
+        classes.add(1);
+        classes.add(35);
+        classes.add(36);
+        classes.add(37);
+        final ZonalChangeMatrix zcm = new ZonalChangeMatrix(classes);
+
+        final RenderedOp reference = JAI.create("ImageRead", file0);
+        final RenderedOp now = JAI.create("ImageRead", file6);
+        final ParameterBlockJAI pbj = new ParameterBlockJAI("ZonalChangeMatrix");
+        pbj.addSource(reference);
+        pbj.addSource(now);
+        pbj.addSource(ConstantDescriptor.create(Float.valueOf(reference.getWidth()),
+                Float.valueOf(reference.getHeight()), new Integer[] { Integer.valueOf(1000) },
+                null));
+        pbj.setParameter("result", zcm);
+        final RenderedOp result = JAI.create("ZonalChangeMatrix", pbj, null);
+        result.getTiles();
+        result.dispose();
+
+        // same values as the ChangeMatrix operation
+        final ChangeMatrix cm = zcm.getChangeMatrix(1000);
+        assertEquals(88022, cm.retrievePairOccurrences(0, 0));
+        assertEquals(6930, cm.retrievePairOccurrences(36, 36));
+        assertEquals(58, cm.retrievePairOccurrences(36, 37));
+        assertEquals(1720, cm.retrievePairOccurrences(37, 37));
+    }
+}
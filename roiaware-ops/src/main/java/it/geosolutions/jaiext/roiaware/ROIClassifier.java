@@ -0,0 +1,104 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.media.jai.ROI;
+
+/**
+ * Classifies the source areas read to compute a tile as fully inside, fully outside or partially covered by a {@link ROI}.
+ * <p>
+ * Tiles whose source area is fully inside the ROI can be computed by the loops ignoring the ROI, tiles whose source area is fully
+ * outside can be filled with the background without reading the source, only the remaining ones need to check the ROI pixel by pixel.
+ * The classification of an area is cached, as the same tile, hence the same area, is usually computed again once evicted from the tile
+ * cache, and some ROIs, e.g. the ones backed by an image, need to scan their pixels to answer.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ROIClassifier {
+
+    /**
+     * The coverage of an area by the ROI.
+     */
+    public enum Coverage {
+        /** All the pixels of the area are inside the ROI. */
+        INSIDE,
+        /** No pixel of the area is inside the ROI. */
+        OUTSIDE,
+        /** Some pixels of the area are inside the ROI, some are not. */
+        PARTIAL
+    }
+
+    /** Maximum number of areas whose classification is kept, the cache is cleared when exceeded. */
+    static final int MAX_CACHED = 16384;
+
+    private final ROI roi;
+
+    private final Rectangle roiBounds;
+
+    private final ConcurrentMap<Rectangle, Coverage> cache = new ConcurrentHashMap<Rectangle, Coverage>();
+
+    /**
+     * Constructor.
+     *
+     * @param roi the {@link ROI} to classify the areas against
+     */
+    public ROIClassifier(final ROI roi) {
+        if (roi == null) {
+            throw new IllegalArgumentException("The provided ROI is null");
+        }
+        this.roi = roi;
+        this.roiBounds = roi.getBounds();
+    }
+
+    /**
+     * Classifies an area.
+     *
+     * @param area the area, in ROI coordinates
+     * @return the coverage of the area by the ROI
+     */
+    public Coverage classify(final Rectangle area) {
+        if (area.isEmpty() || !roiBounds.intersects(area)) {
+            return Coverage.OUTSIDE;
+        }
+        Coverage coverage = cache.get(area);
+        if (coverage == null) {
+            if (roi.contains(area)) {
+                coverage = Coverage.INSIDE;
+            } else if (roi.intersects(area)) {
+                coverage = Coverage.PARTIAL;
+            } else {
+                coverage = Coverage.OUTSIDE;
+            }
+            if (cache.size() >= MAX_CACHED) {
+                cache.clear();
+            }
+            // copy the key, rectangles are mutable
+            cache.put(new Rectangle(area), coverage);
+        }
+        return coverage;
+    }
+
+    /**
+     * @return the {@link ROI} the areas are classified against
+     */
+    public ROI getROI() {
+        return roi;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import it.geosolutions.jaiext.iterator.RandomIterFactory;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.SourcelessOpImage;
+import javax.media.jai.iterator.RandomIter;
+
+/**
+ * A byte image holding 1 inside a {@link ROI} and 0 outside of it, computed tile by tile on demand.
+ * <p>
+ * The image covers the bounds of the ROI grown by the padding of an {@link Interpolation}, the padding samples being 0, so that
+ * interpolation kernels can look at the neighbours of any pixel of the ROI bounds without checking. Tiles are only rasterized when requested and are
+ * kept in the tile cache of the image, which evicts them as for any other {@link javax.media.jai.OpImage}: building an operation on a
+ * large ROI no longer allocates a full resolution mask, only the tiles under the source area touched by the computed destination tiles
+ * are ever materialized.
+ * <p>
+ * The returned iterators are not thread safe, each computation should get its own, see {@link #getIterator()}.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public class ROIMaskOpImage extends SourcelessOpImage {
+
+    /** Default size of the side of the tiles of the mask. */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /** Black and white palette, the mask samples being 0 or 1. */
+    private static final IndexColorModel COLOR_MODEL = new IndexColorModel(8, 2, new byte[] { 0,
+            (byte) 0xFF }, new byte[] { 0, (byte) 0xFF }, new byte[] { 0, (byte) 0xFF });
+
+    private final ROI roi;
+
+    /** The shape of the ROI, <code>null</code> if the ROI is not an {@link ROIShape}. */
+    private final Shape shape;
+
+    /** The bounds of the ROI, without padding. */
+    private final Rectangle roiBounds;
+
+    /**
+     * Builds the mask of a {@link ROI}.
+     *
+     * @param roi the {@link ROI} to rasterize
+     * @param interp the {@link Interpolation} whose padding is added around the ROI bounds, or <code>null</code> for no padding
+     * @param configuration the configuration of the operation using the mask, e.g. to select its tile cache, or <code>null</code>
+     */
+    public ROIMaskOpImage(final ROI roi, final Interpolation interp, final Map<?, ?> configuration) {
+        this(roi, interp == null ? 0 : interp.getLeftPadding(), interp == null ? 0 : interp
+                .getRightPadding(), interp == null ? 0 : interp.getTopPadding(), interp == null ? 0
+                : interp.getBottomPadding(), configuration);
+    }
+
+    /**
+     * Builds the mask of a {@link ROI}.
+     *
+     * @param roi the {@link ROI} to rasterize
+     * @param lpad the padding on the left of the ROI bounds
+     * @param rpad the padding on the right of the ROI bounds
+     * @param tpad the padding on the top of the ROI bounds
+     * @param bpad the padding on the bottom of the ROI bounds
+     * @param configuration the configuration of the operation using the mask, e.g. to select its tile cache, or <code>null</code>
+     */
+    public ROIMaskOpImage(final ROI roi, final int lpad, final int rpad, final int tpad,
+            final int bpad, final Map<?, ?> configuration) {
+        this(roi, new Rectangle(roi.getBounds().x - lpad, roi.getBounds().y - tpad, roi
+                .getBounds().width + lpad + rpad, roi.getBounds().height + tpad + bpad),
+                configuration);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private ROIMaskOpImage(final ROI roi, final Rectangle bounds, final Map<?, ?> configuration) {
+        super(layout(bounds), (Map) configuration, RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, tileSize(bounds.width), tileSize(bounds.height), 1),
+                bounds.x, bounds.y, bounds.width, bounds.height);
+        this.roi = roi;
+        this.shape = roi instanceof ROIShape ? roi.getAsShape() : null;
+        this.roiBounds = roi.getBounds();
+    }
+
+    private static int tileSize(final int size) {
+        return Math.max(1, Math.min(size, DEFAULT_TILE_SIZE));
+    }
+
+    private static ImageLayout layout(final Rectangle bounds) {
+        final ImageLayout layout = new ImageLayout();
+        layout.setTileGridXOffset(bounds.x);
+        layout.setTileGridYOffset(bounds.y);
+        layout.setTileWidth(tileSize(bounds.width));
+        layout.setTileHeight(tileSize(bounds.height));
+        layout.setColorModel(COLOR_MODEL);
+        return layout;
+    }
+
+    /**
+     * @return the {@link ROI} this mask has been built for
+     */
+    public ROI getROI() {
+        return roi;
+    }
+
+    /**
+     * Creates an iterator over the whole mask. Only the tiles the iterator actually reads are computed.
+     *
+     * @return a {@link RandomIter} over the mask
+     */
+    public RandomIter getIterator() {
+        return RandomIterFactory.create(this, null);
+    }
+
+    /**
+     * Creates an iterator over the mask, restricted to the provided area. Only the tiles the iterator actually reads are computed.
+     *
+     * @param area the area the iterator will read, in ROI coordinates
+     * @return a {@link RandomIter} over the intersection of the area with the mask
+     */
+    public RandomIter getIterator(final Rectangle area) {
+        return RandomIterFactory.create(this, area.intersection(getBounds()));
+    }
+
+    /**
+     * Indexes the inside spans of the mask over the provided area. Only the tiles under the area are computed, and they are read in place
+     * from the tile cache rather than copied.
+     *
+     * @param area the area to index, in ROI coordinates
+     * @return the {@link ROISpanIndex} of the intersection of the area with the mask
+     */
+    public ROISpanIndex getSpanIndex(final Rectangle area) {
+        final Rectangle rect = area.intersection(getBounds());
+        if (rect.isEmpty()) {
+            return new ROISpanIndex(new Rectangle(area.x, area.y, 0, 0), new int[0][]);
+        }
+        final int maxX = rect.x + rect.width;
+        final int maxY = rect.y + rect.height;
+        final int minTileX = XToTileX(rect.x);
+        final int maxTileX = XToTileX(maxX - 1);
+        final int[][] rows = new int[rect.height][];
+        final Raster[] tiles = new Raster[maxTileX - minTileX + 1];
+        int[] spans = new int[8];
+        for (int tileY = YToTileY(rect.y); tileY <= YToTileY(maxY - 1); tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                tiles[tileX - minTileX] = getTile(tileX, tileY);
+            }
+            final int y0 = Math.max(rect.y, tileYToY(tileY));
+            final int y1 = Math.min(maxY, tileYToY(tileY) + getTileHeight());
+            for (int y = y0; y < y1; y++) {
+                // a span may go on across the tile boundaries, hence the start is kept between tiles
+                int size = 0;
+                int start = -1;
+                for (int i = 0; i < tiles.length; i++) {
+                    final Raster tile = tiles[i];
+                    final ComponentSampleModel sm = (ComponentSampleModel) tile.getSampleModel();
+                    final DataBufferByte buffer = (DataBufferByte) tile.getDataBuffer();
+                    final byte[] data = buffer.getData();
+                    final int pixelStride = sm.getPixelStride();
+                    final int x0 = Math.max(rect.x, tile.getMinX());
+                    final int x1 = Math.min(maxX, tile.getMinX() + tile.getWidth());
+                    int offset = buffer.getOffset() + sm.getBandOffsets()[0]
+                            + (y - tile.getSampleModelTranslateY()) * sm.getScanlineStride()
+                            + (x0 - tile.getSampleModelTranslateX()) * pixelStride;
+                    for (int x = x0; x < x1; x++, offset += pixelStride) {
+                        if (data[offset] != 0) {
+                            if (start < 0) {
+                                start = x;
+                            }
+                        } else if (start >= 0) {
+                            if (size + 2 > spans.length) {
+                                spans = Arrays.copyOf(spans, spans.length * 2);
+                            }
+                            spans[size++] = start;
+                            spans[size++] = x;
+                            start = -1;
+                        }
+                    }
+                }
+                if (start >= 0) {
+                    if (size + 2 > spans.length) {
+                        spans = Arrays.copyOf(spans, spans.length * 2);
+                    }
+                    spans[size++] = start;
+                    spans[size++] = maxX;
+                }
+                rows[y - rect.y] = Arrays.copyOf(spans, size);
+            }
+        }
+        return new ROISpanIndex(rect, rows);
+    }
+
+    @Override
+    protected void computeRect(final PlanarImage[] sources, final WritableRaster dest,
+            final Rectangle destRect) {
+        final byte[] data = ((DataBufferByte) dest.getDataBuffer()).getData();
+        Arrays.fill(data, (byte) 0);
+
+        final Rectangle inside = destRect.intersection(roiBounds);
+        if (inside.isEmpty()) {
+            return;
+        }
+        if (shape != null) {
+            // rasterize the shape over the tile the same way ROIShape.getAsImage() does
+            final WritableRaster child = dest.createWritableChild(destRect.x, destRect.y,
+                    destRect.width, destRect.height, 0, 0, null);
+            final BufferedImage image = new BufferedImage(COLOR_MODEL, child, false, null);
+            final Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_OFF);
+                graphics.translate(-destRect.x, -destRect.y);
+                graphics.setColor(Color.WHITE);
+                graphics.fill(shape);
+            } finally {
+                graphics.dispose();
+            }
+        } else {
+            // the ROI image is itself tiled, only the tiles under this one are computed
+            final Raster roiData = roi.getAsImage().getData(inside);
+            dest.setRect(roiData);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * The inside spans of a ROI mask over an area, one sorted list of disjoint <code>[start, end)</code> column intervals per row.
+ * <p>
+ * ROIs are usually made of a few polygons, whose rows are long runs of inside pixels. The interpolation loops use the spans to find the
+ * runs of pixels whose whole neighbourhood is inside the ROI, which are computed as if there was no ROI, checking the single pixels only
+ * close to the ROI boundary. Pixels outside of the indexed area are outside of the ROI. Columns and rows are absolute.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+public final class ROISpanIndex {
+
+    /** Spans for a row with no inside pixels. */
+    private static final int[] EMPTY_ROW = new int[0];
+
+    private final Rectangle bounds;
+
+    /** Per row spans, as <code>start0, end0, start1, end1, ...</code> */
+    private final int[][] rows;
+
+    ROISpanIndex(final Rectangle bounds, final int[][] rows) {
+        this.bounds = bounds;
+        this.rows = rows;
+    }
+
+    /**
+     * Indexes a mask holding non zero samples inside the ROI, e.g. some data of a {@link ROIMaskOpImage}.
+     *
+     * @param mask the mask raster, only its first band is read
+     * @return the {@link ROISpanIndex} of the mask over its bounds
+     */
+    public static ROISpanIndex create(final Raster mask) {
+        final Rectangle bounds = mask.getBounds();
+        final int[][] rows = new int[bounds.height][];
+        final int[] line = new int[bounds.width];
+        int[] spans = new int[8];
+        for (int y = 0; y < bounds.height; y++) {
+            mask.getSamples(bounds.x, bounds.y + y, bounds.width, 1, 0, line);
+            int size = 0;
+            int x = 0;
+            while (x < bounds.width) {
+                // skip the outside pixels, then collect the inside ones
+                while (x < bounds.width && line[x] == 0) {
+                    x++;
+                }
+                if (x == bounds.width) {
+                    break;
+                }
+                final int start = x;
+                while (x < bounds.width && line[x] != 0) {
+                    x++;
+                }
+                if (size + 2 > spans.length) {
+                    spans = Arrays.copyOf(spans, spans.length * 2);
+                }
+                spans[size++] = bounds.x + start;
+                spans[size++] = bounds.x + x;
+            }
+            rows[y] = size == 0 ? EMPTY_ROW : Arrays.copyOf(spans, size);
+        }
+        return new ROISpanIndex(bounds, rows);
+    }
+
+    /**
+     * @return the indexed area
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Retrieves the inside spans of a row.
+     *
+     * @param y the row
+     * @return the spans as <code>start0, end0, start1, end1, ...</code>, sorted and disjoint. The returned array must not be modified.
+     */
+    public int[] getRow(final int y) {
+        if (y < bounds.y || y >= bounds.y + bounds.height) {
+            return EMPTY_ROW;
+        }
+        return rows[y - bounds.y];
+    }
+
+    /**
+     * Retrieves the inside spans intersecting a row segment, clipped to it.
+     *
+     * @param y the row
+     * @param x0 the first column of the segment
+     * @param x1 the column after the last one of the segment
+     * @param spans the array receiving the spans as <code>start0, end0, start1, end1, ...</code>, which must be large enough
+     * @return the number of values written into the array, twice the number of spans
+     */
+    public int getSpans(final int y, final int x0, final int x1, final int[] spans) {
+        if (x1 <= x0) {
+            return 0;
+        }
+        final int[] row = getRow(y);
+        int k = 0;
+        for (int i = find(row, x0); i < row.length && row[i] < x1; i += 2) {
+            spans[k++] = Math.max(row[i], x0);
+            spans[k++] = Math.min(row[i + 1], x1);
+        }
+        return k;
+    }
+
+    /**
+     * Tells whether a pixel is inside the ROI.
+     *
+     * @param x the column of the pixel
+     * @param y the row of the pixel
+     * @return <code>true</code> if the pixel is inside the ROI
+     */
+    public boolean contains(final int x, final int y) {
+        final int[] row = getRow(y);
+        final int i = find(row, x);
+        return i < row.length && row[i] <= x;
+    }
+
+    /**
+     * Retrieves the end of the run of columns, starting at the provided one, which are inside the ROI on all the provided rows, e.g. the
+     * pixels whose whole interpolation neighbourhood is inside the ROI.
+     *
+     * @param x the first column of the run
+     * @param y the first row
+     * @param height the number of rows
+     * @return the column after the last one of the run, <code>x</code> if the first column is not inside the ROI on all the rows
+     */
+    public int getRunEnd(final int x, final int y, final int height) {
+        int end = Integer.MAX_VALUE;
+        for (int h = 0; h < height && end > x; h++) {
+            final int[] row = getRow(y + h);
+            final int i = find(row, x);
+            if (i == row.length || row[i] > x) {
+                return x;
+            }
+            end = Math.min(end, row[i + 1]);
+        }
+        return end;
+    }
+
+    /**
+     * Finds the index of the first span of a row ending after a column.
+     */
+    private static int find(final int[] row, final int x) {
+        // binary search on the span ends, stored at the odd positions
+        int low = 0;
+        int high = row.length / 2 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (row[2 * mid + 1] <= x) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return 2 * low;
+    }
+}
@@ -10,6 +10,8 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.affine;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
@@ -56,6 +58,12 @@ final class AffineBilinearOpImage extends AffineOpImage {
               backgroundValues);
     }
 
+    @Override
+    protected boolean isROIAware() {
+        // only the byte loops check the roi
+        return hasROI && sampleModel.getDataType() == DataBuffer.TYPE_BYTE;
+    }
+
     /**
      * Performs an affine transform on a specified rectangle. The sources are
      * cobbled.
@@ -160,6 +168,7 @@ final class AffineBilinearOpImage extends AffineOpImage {
                           int srcRectX,
                           int srcRectY,
                           RasterAccessor dst) {
+        final ROISpanIndex roiSpans = getROISpans(src);
 
         float src_rect_x1 = src.getX();
         float src_rect_y1 = src.getY();
@@ -199,7 +208,7 @@ final class AffineBilinearOpImage extends AffineOpImage {
 	    backgroundByte[i] = (byte)backgroundValues[i];
 
         // SG old loop with no ROI
-        if(hasROI){
+        if(roiSpans!=null){
             for (int y = dst_min_y; y < dst_max_y; y++)  {
     
                 dstPixelOffset = dstOffset;
@@ -375,10 +384,16 @@ final class AffineBilinearOpImage extends AffineOpImage {
                             }       
                     } else {
                         // WITHIN ROI BOUNDS
-                        final int w00=roiIter.getSample(x0, y0, 0);
-                        final int w01=roiIter.getSample(x0+1, y0, 0);
-                        final int w10=roiIter.getSample(x0, y0+1, 0);
-                        final int w11=roiIter.getSample(x0+1, y0+1, 0);
+                        final int w00, w01, w10, w11;
+                        if (roiSpans.getRunEnd(x0, y0, 2) > x0 + 1) {
+                            // the four neighbours are inside the roi
+                            w00 = w01 = w10 = w11 = 1;
+                        } else {
+                            w00 = roiSpans.contains(x0, y0) ? 1 : 0;
+                            w01 = roiSpans.contains(x0 + 1, y0) ? 1 : 0;
+                            w10 = roiSpans.contains(x0, y0 + 1) ? 1 : 0;
+                            w11 = roiSpans.contains(x0 + 1, y0 + 1) ? 1 : 0;
+                        }
                         if(w00==0&&w01==0&&w10==0&&w11==0){
                             if (setBackground) {
                                 for (int k=0; k < dst_num_bands; k++)
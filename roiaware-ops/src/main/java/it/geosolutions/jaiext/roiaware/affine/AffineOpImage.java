@@ -10,7 +10,10 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.affine;
-import it.geosolutions.jaiext.iterator.RandomIterFactory;
+import it.geosolutions.jaiext.roiaware.ROIClassifier;
+import it.geosolutions.jaiext.roiaware.ROIClassifier.Coverage;
+import it.geosolutions.jaiext.roiaware.ROIMaskOpImage;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
 
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -28,7 +31,7 @@ import javax.media.jai.Interpolation;
 import javax.media.jai.InterpolationNearest;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.ROI;
-import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.RasterAccessor;
 import javax.media.jai.util.ImagingException;
 import javax.media.jai.util.ImagingListener;
 
@@ -103,9 +106,11 @@ class AffineOpImage extends GeometricOpImage {
 
     protected final ROI srcROI;
 
-    protected final PlanarImage srcROIImage;
+    /** The mask of the source ROI, rasterized a tile at a time as the source areas are read. */
+    protected final ROIMaskOpImage srcROIImage;
 
-    protected final RandomIter roiIter;
+    /** Classifies the source areas of the tiles against the source ROI. */
+    protected final ROIClassifier roiClassifier;
 
     protected final Rectangle roiBounds;
 
@@ -418,24 +423,16 @@ class AffineOpImage extends GeometricOpImage {
         if (property instanceof ROI) {
 
             srcROI = (ROI)property;
-            srcROIImage=srcROI.getAsImage();
-            
-            // FIXME can we use smaller bounds here?
-            final Rectangle rect= new Rectangle(
-                    srcROIImage.getMinX()-lpad,
-                    srcROIImage.getMinY()-tpad,
-                    srcROIImage.getWidth()+lpad+rpad,
-                    srcROIImage.getHeight()+tpad+bpad);
-            Raster data = srcROIImage.getExtendedData(rect, BorderExtender.createInstance(BorderExtender.BORDER_ZERO));
-            roiIter= RandomIterFactory.create(data, data.getBounds());
-            roiBounds=srcROIImage.getBounds();
+            srcROIImage=new ROIMaskOpImage(srcROI, lpad, rpad, tpad, bpad, config);
+            roiClassifier=new ROIClassifier(srcROI);
+            roiBounds=srcROI.getBounds();
             hasROI=true;
             
         } else {
             srcROI=null;
             srcROIImage=null;
+            roiClassifier=null;
             roiBounds=null;
-            roiIter=null;
             hasROI=false;
         }        
     }
@@ -621,7 +618,8 @@ class AffineOpImage extends GeometricOpImage {
             srcRect = srcRect.intersection(padimg);
         }
 
-        if (!(srcRect.width > 0 && srcRect.height > 0)) {
+        if (!(srcRect.width > 0 && srcRect.height > 0)
+                || (isROIAware() && roiClassifier.classify(srcRect) == Coverage.OUTSIDE)) {
 	    if (setBackground)
 	        ImageUtil.fillBackground(dest, destRect1, backgroundValues);
 
@@ -655,11 +653,39 @@ class AffineOpImage extends GeometricOpImage {
         return dest;
     }
 
+    /**
+     * Tells whether the loops of this operation check the source ROI, so that tiles whose source area is fully outside of it can be skipped
+     * altogether. Subclasses honouring the ROI must override it.
+     *
+     * @return <code>true</code> if the computed tiles depend on the source ROI, <code>false</code> otherwise
+     */
+    protected boolean isROIAware() {
+        return false;
+    }
+
+    /**
+     * Indexes the inside spans of the ROI mask over the area of a source raster.
+     *
+     * @param src the accessor of the source raster being read
+     * @return the {@link ROISpanIndex} of the ROI over the area, or <code>null</code> if there is no ROI or the area is fully inside it, so
+     *         that the ROI does not need to be checked
+     */
+    protected ROISpanIndex getROISpans(RasterAccessor src) {
+        if (!hasROI) {
+            return null;
+        }
+        final Rectangle area = new Rectangle(src.getX(), src.getY(), src.getWidth(),
+                src.getHeight());
+        if (roiClassifier.classify(area) == Coverage.INSIDE) {
+            return null;
+        }
+        return srcROIImage.getSpanIndex(area);
+    }
+
     @Override
     public synchronized void dispose() {
         if(srcROIImage != null){
             srcROIImage.dispose();
-            roiIter.done();
         }
         super.dispose();
     }
@@ -10,6 +10,8 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.affine;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
 import java.awt.Rectangle;
 import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
@@ -103,6 +105,12 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
 	
     }
     
+    @Override
+    protected boolean isROIAware() {
+        // only the byte loops check the roi
+        return hasROI && sampleModel.getDataType() == DataBuffer.TYPE_BYTE;
+    }
+
     /**
      * Performs scale operation on a specified rectangle. The sources are
      * cobbled.
@@ -580,6 +588,7 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
     private void byteLoop(RasterAccessor src, Rectangle dstRect,
 			  RasterAccessor dst, int xpos[], int ypos[],
 			  int xfracvalues[], int yfracvalues[]) {
+        final ROISpanIndex roiSpans = getROISpans(src);
 	
         int srcPixelStride = src.getPixelStride();
 	int srcScanlineStride = src.getScanlineStride();
@@ -618,7 +627,7 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
 
 	// Precalculate the y positions and store them in an array.
 	// SG old loop with no ROI
-	if(!hasROI){
+	if(roiSpans==null){
         	// Putting band loop outside
         	for (int k = 0; k < dnumBands; k++)  {
                     byte dstData[] = dstDataArrays[k];
@@ -674,6 +683,8 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
                     int yfrac = yfracvalues[j];
                     int posylow = ypos[j] + bandOffset;
                     int posyhigh = posylow + srcScanlineStride;
+                    // current run of source pixels whose four neighbours are inside the roi
+                    int runStart = 0, runEnd = 0;
     
                     for (int i = 0; i < dwidth; i++) {
                         int xfrac = xfracvalues[i];
@@ -684,12 +695,26 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
                         // SG mapping source rect
                         int x0=src.getX()+xpos[i]/srcPixelStride;
                         int y0=src.getY()+ypos[j]/srcScanlineStride;
-                        if(roiBounds.contains(x0, y0)){
+                        if (x0 < runStart || x0 + 1 >= runEnd) {
+                            runStart = x0;
+                            runEnd = roiSpans.getRunEnd(x0, y0, 2);
+                        }
+                        if (x0 + 1 < runEnd) {
+                            // SG the four surrounding pixels are inside the roi
+                            int s00 = srcData[posxlow + posylow] & 0xff;
+                            int s01 = srcData[posxhigh + posylow] & 0xff;
+                            int s10 = srcData[posxlow + posyhigh] & 0xff;
+                            int s11 = srcData[posxhigh + posyhigh] & 0xff;
+                            int s0 = (s01 - s00) * xfrac + (s00 << subsampleBits);
+                            int s1 = (s11 - s10) * xfrac + (s10 << subsampleBits);
+                            int s = ((s1 - s0) * yfrac + (s0 << subsampleBits) + round2) >> shift2;
+                            dstData[dstPixelOffset] = (byte)(s&0xff);
+                        } else if(roiBounds.contains(x0, y0)){
                             
-                            final int w00=roiIter.getSample(x0, y0, 0);
-                            final int w01=roiIter.getSample(x0+1, y0, 0);
-                            final int w10=roiIter.getSample(x0, y0+1, 0);
-                            final int w11=roiIter.getSample(x0+1, y0+1, 0);
+                            final int w00=(roiSpans.contains(x0, y0) ? 1 : 0);
+                            final int w01=(roiSpans.contains(x0+1, y0) ? 1 : 0);
+                            final int w10=(roiSpans.contains(x0, y0+1) ? 1 : 0);
+                            final int w11=(roiSpans.contains(x0+1, y0+1) ? 1 : 0);
                             
                             if(!(w00==0&&w01==0&&w10==0&&w11==0)){
                             
@@ -724,6 +749,7 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
     private void byteLoop(RasterAccessor src, Rectangle dstRect,
 			  RasterAccessor dst, int xpos[], int ypos[],
         int[] xfracvalues, int[] yfracvalues, RasterAccessor roi, int[] yposRoi) {
+        final ROISpanIndex roiSpans = getROISpans(src);
 	
       int srcPixelStride = src.getPixelStride();
 	int srcScanlineStride = src.getScanlineStride();
@@ -763,7 +789,7 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
 
 	// Precalculate the y positions and store them in an array.
 	// SG old loop with no ROI
-	if(!hasROI){
+	if(roiSpans==null){
       	// Putting band loop outside
       	for (int k = 0; k < dnumBands; k++)  {
                   byte dstData[] = dstDataArrays[k];
@@ -874,6 +900,8 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
                   int yfrac = yfracvalues[j];
                   int posylow = ypos[j] + bandOffset;
                   int posyhigh = posylow + srcScanlineStride;
+                  // current run of source pixels whose four neighbours are inside the roi
+                  int runStart = 0, runEnd = 0;
   
                   for (int i = 0; i < dwidth; i++) {
                       int xfrac = xfracvalues[i];
@@ -884,12 +912,26 @@ final class ScaleBilinearOpImage extends ScaleOpImage {
                       // SG mapping source rect
                       int x0=src.getX()+xpos[i]/srcPixelStride;
                       int y0=src.getY()+ypos[j]/srcScanlineStride;
-                      if(roiBounds.contains(x0, y0)){
+                      if (x0 < runStart || x0 + 1 >= runEnd) {
+                          runStart = x0;
+                          runEnd = roiSpans.getRunEnd(x0, y0, 2);
+                      }
+                      if (x0 + 1 < runEnd) {
+                          // SG the four surrounding pixels are inside the roi
+                          int s00 = srcData[posxlow + posylow] & 0xff;
+                          int s01 = srcData[posxhigh + posylow] & 0xff;
+                          int s10 = srcData[posxlow + posyhigh] & 0xff;
+                          int s11 = srcData[posxhigh + posyhigh] & 0xff;
+                          int s0 = (s01 - s00) * xfrac + (s00 << subsampleBits);
+                          int s1 = (s11 - s10) * xfrac + (s10 << subsampleBits);
+                          int s = ((s1 - s0) * yfrac + (s0 << subsampleBits) + round2) >> shift2;
+                          dstData[dstPixelOffset] = (byte)(s&0xff);
+                      } else if(roiBounds.contains(x0, y0)){
                           
-                          final int w00=roiIter.getSample(x0, y0, 0);
-                          final int w01=roiIter.getSample(x0+1, y0, 0);
-                          final int w10=roiIter.getSample(x0, y0+1, 0);
-                          final int w11=roiIter.getSample(x0+1, y0+1, 0);
+                          final int w00=(roiSpans.contains(x0, y0) ? 1 : 0);
+                          final int w01=(roiSpans.contains(x0+1, y0) ? 1 : 0);
+                          final int w10=(roiSpans.contains(x0, y0+1) ? 1 : 0);
+                          final int w11=(roiSpans.contains(x0+1, y0+1) ? 1 : 0);
                           
                           if(!(w00==0&&w01==0&&w10==0&&w11==0)){
                           
@@ -10,6 +10,8 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.affine;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
 import java.awt.Rectangle;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
@@ -98,6 +100,12 @@ final class ScaleNearestOpImage extends ScaleOpImage {
 	}
     }
 
+    @Override
+    protected boolean isROIAware() {
+        // only the byte loops check the roi
+        return hasROI && sampleModel.getDataType() == DataBuffer.TYPE_BYTE;
+    }
+
     /**
      * Performs a scale operation on a specified rectangle. The sources are
      * cobbled.
@@ -286,6 +294,7 @@ final class ScaleNearestOpImage extends ScaleOpImage {
 
     private void byteLoop(RasterAccessor src, Rectangle dstRect,
 			  RasterAccessor dst, int xvalues[], int yvalues[]) {
+        final ROISpanIndex roiSpans = getROISpans(src);
         
     	int srcPixelStride = src.getPixelStride();
     	int srcScanlineStride = src.getScanlineStride();
@@ -310,7 +319,7 @@ final class ScaleNearestOpImage extends ScaleOpImage {
 
 	int dstScanlineOffset;
 	// For each band
-	if (!hasROI){
+	if (roiSpans==null){
 		for (int k = 0; k < dnumBands; k++) {
 		    byte dstData[] = dstDataArrays[k];
 		    byte srcData[] = srcDataArrays[k];
@@ -341,19 +350,23 @@ final class ScaleNearestOpImage extends ScaleOpImage {
                 dstPixelOffset = dstScanlineOffset;
                 int posylow = yvalues[j] + bandOffset;
 
+                // SG mapping source row
+                int y0 = src.getY() + yvalues[j]/srcScanlineStride;
+                // current run of source pixels inside the roi
+                int runStart = 0, runEnd = 0;
+
                 for (int i = 0; i < dwidth; i++) {
                     int posxlow = xvalues[i];
 
                     // SG mapping source rect
                     int x0 = src.getX() + xvalues[i]/srcPixelStride;
-                    int y0 = src.getY() + yvalues[j]/srcScanlineStride;
-                    if (roiBounds.contains(x0, y0)){
-                    	final int wx= roiIter.getSample(x0, y0, 0)& 0xFF;	
-                    	final boolean insideROI=wx==1;
-                    	if (insideROI) {
-                    		dstData[dstPixelOffset] = srcData[posxlow + posylow];
-                    	}
-                    }    
+                    if (x0 < runStart || x0 >= runEnd) {
+                        runStart = x0;
+                        runEnd = roiSpans.getRunEnd(x0, y0, 1);
+                    }
+                    if (x0 < runEnd) {
+                        dstData[dstPixelOffset] = srcData[posxlow + posylow];
+                    }
                     dstPixelOffset += dstPixelStride;
                 }
                 dstScanlineOffset += dstScanlineStride;
@@ -560,6 +573,7 @@ final class ScaleNearestOpImage extends ScaleOpImage {
     private void byteLoop(RasterAccessor src, Rectangle dstRect,
         RasterAccessor dst, int[] xvalues, int[] yvalues,
         RasterAccessor roi, int[] yvaluesRoi) {
+        final ROISpanIndex roiSpans = getROISpans(src);
       
   	int srcPixelStride = src.getPixelStride();
   	int srcScanlineStride = src.getScanlineStride();
@@ -584,7 +598,7 @@ final class ScaleNearestOpImage extends ScaleOpImage {
 
 	int dstScanlineOffset;
 	// For each band
-	if (!hasROI){
+	if (roiSpans==null){
 		for (int k = 0; k < dnumBands; k++) {
 		    byte dstData[] = dstDataArrays[k];
 		    byte srcData[] = srcDataArrays[k];
@@ -642,22 +656,24 @@ final class ScaleNearestOpImage extends ScaleOpImage {
               dstPixelOffset = dstScanlineOffset;
               int posylow = yvalues[j] + bandOffset;
 
+              // SG mapping source row
+              int y0=src.getY()+yvalues[j]/srcScanlineStride;
+              // current run of source pixels inside the roi
+              int runStart = 0, runEnd = 0;
+
               for (int i = 0; i < dwidth; i++) {
                   int posxlow = xvalues[i];
 
 
                   // SG mapping source rect
                   int x0=src.getX()+xvalues[i]/srcPixelStride;
-                  int y0=src.getY()+yvalues[j]/srcScanlineStride;
-                  if(!roiBounds.contains(x0, y0)){
-                  	
-                  } else {
-                  	final int wx= roiIter.getSample(x0, y0, 0)& 0xFF;	
-                  	final boolean insideROI=wx==1;
-                  	if (insideROI) {
-                  		dstData[dstPixelOffset] = srcData[posxlow + posylow];
-                  	}
-                  }    
+                  if (x0 < runStart || x0 >= runEnd) {
+                      runStart = x0;
+                      runEnd = roiSpans.getRunEnd(x0, y0, 1);
+                  }
+                  if (x0 < runEnd) {
+                      dstData[dstPixelOffset] = srcData[posxlow + posylow];
+                  }
                   dstPixelOffset += dstPixelStride;
               }
               dstScanlineOffset += dstScanlineStride;
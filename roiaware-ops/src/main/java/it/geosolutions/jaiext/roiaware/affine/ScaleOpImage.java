@@ -11,7 +11,10 @@
  */
 package it.geosolutions.jaiext.roiaware.affine;
 
-import it.geosolutions.jaiext.iterator.RandomIterFactory;
+import it.geosolutions.jaiext.roiaware.ROIClassifier;
+import it.geosolutions.jaiext.roiaware.ROIClassifier.Coverage;
+import it.geosolutions.jaiext.roiaware.ROIMaskOpImage;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
 
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -33,8 +36,8 @@ import javax.media.jai.JAI;
 import javax.media.jai.OpImage;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
 import javax.media.jai.WarpOpImage;
-import javax.media.jai.iterator.RandomIter;
 
 import com.sun.media.jai.util.ImageUtil;
 import com.sun.media.jai.util.Rational;
@@ -159,9 +162,11 @@ public abstract class ScaleOpImage extends GeometricOpImage {
 
     protected final ROI srcROI;
 
-    protected final PlanarImage srcROIImage;
+    /** The mask of the source ROI, rasterized a tile at a time as the source areas are read. */
+    protected final ROIMaskOpImage srcROIImage;
 
-    protected final RandomIter roiIter;
+    /** Classifies the source areas of the tiles against the source ROI. */
+    protected final ROIClassifier roiClassifier;
 
     protected final boolean hasROI;
 
@@ -649,26 +654,18 @@ public abstract class ScaleOpImage extends GeometricOpImage {
         if (property instanceof ROI) {
 
             srcROI = (ROI)property;
-            srcROIImage=srcROI.getAsImage();
-            
-            // FIXME can we use smaller bounds here?
-            final Rectangle rect= new Rectangle(
-                    srcROIImage.getMinX()-lpad,
-                    srcROIImage.getMinY()-tpad,
-                    srcROIImage.getWidth()+lpad+rpad,
-                    srcROIImage.getHeight()+tpad+bpad);
-            Raster data = srcROIImage.getExtendedData(rect, BorderExtender.createInstance(BorderExtender.BORDER_ZERO));
-            roiIter= RandomIterFactory.create(data, data.getBounds());
+            srcROIImage=new ROIMaskOpImage(srcROI, lpad, rpad, tpad, bpad, configuration);
+            roiClassifier=new ROIClassifier(srcROI);
             hasROI=true;
-            roiBounds=srcROIImage.getBounds();
+            roiBounds=srcROI.getBounds();
             this.useRoiAccessor = useRoiAccessor;
             
         } else {
             srcROI=null;
             srcROIImage=null;
+            roiClassifier=null;
             roiBounds=null;
             hasROI=false;
-            roiIter=null;
         }
     }
 
@@ -1095,6 +1092,12 @@ public abstract class ScaleOpImage extends GeometricOpImage {
 
         // Get the source rectangle required to compute the destRect
         Rectangle srcRect = mapDestRect(destRect, 0);
+
+        // SG nothing to compute if the source area is fully outside the roi
+        if (isROIAware() && roiClassifier.classify(srcRect) == Coverage.OUTSIDE) {
+            return dest;
+        }
+
         Raster[] sources = new Raster[1];
         Raster[] rois = new Raster[1];
 
@@ -1484,11 +1487,39 @@ public abstract class ScaleOpImage extends GeometricOpImage {
 	return dest;
     }
 
+    /**
+     * Tells whether the loops of this operation check the source ROI, so that tiles whose source area is fully outside of it can be skipped
+     * altogether. Subclasses honouring the ROI must override it.
+     *
+     * @return <code>true</code> if the computed tiles depend on the source ROI, <code>false</code> otherwise
+     */
+    protected boolean isROIAware() {
+        return false;
+    }
+
+    /**
+     * Indexes the inside spans of the ROI mask over the area of a source raster.
+     *
+     * @param src the accessor of the source raster being read
+     * @return the {@link ROISpanIndex} of the ROI over the area, or <code>null</code> if there is no ROI or the area is fully inside it, so
+     *         that the ROI does not need to be checked
+     */
+    protected ROISpanIndex getROISpans(RasterAccessor src) {
+        if (!hasROI) {
+            return null;
+        }
+        final Rectangle area = new Rectangle(src.getX(), src.getY(), src.getWidth(),
+                src.getHeight());
+        if (roiClassifier.classify(area) == Coverage.INSIDE) {
+            return null;
+        }
+        return srcROIImage.getSpanIndex(area);
+    }
+
     @Override
     public synchronized void dispose() {
         if(srcROIImage!=null){
             srcROIImage.dispose();
-            roiIter.done();
         }
         super.dispose();
     }
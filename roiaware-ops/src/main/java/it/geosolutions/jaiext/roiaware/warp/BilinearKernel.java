@@ -0,0 +1,99 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware.warp;
+
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
+/**
+ * The fixed point bilinear kernel of the byte and ushort loops of {@link ROIAwareWarpBilinearOpImage}, the fractional positions being
+ * expressed in {@link #one} units.
+ *
+ * @author Simone Giannecchini, GeoSolutions SAS
+ */
+final class BilinearKernel {
+
+    /**
+     * Maximum number of bits of the fixed point subsample positions, so that a 16 bits sample times its horizontal and vertical
+     * weights fits in 32 bits.
+     */
+    static final int MAX_SUBSAMPLE_BITS = 8;
+
+    /** The number of bits of the fixed point subsample positions. */
+    final int subsampleBits;
+
+    /** Number of subsampling positions */
+    final int one;
+
+    /** Subsampling related variables */
+    private final int shift2, round2;
+
+    /**
+     * Constructor
+     *
+     * @param subsampleBits the number of bits of the subsample positions of the interpolation, clamped to
+     *        <code>[1, MAX_SUBSAMPLE_BITS]</code>
+     */
+    BilinearKernel(final int subsampleBits) {
+        this.subsampleBits = Math.max(1, Math.min(MAX_SUBSAMPLE_BITS, subsampleBits));
+        this.one = 1 << this.subsampleBits;
+        this.shift2 = 2 * this.subsampleBits;
+        this.round2 = 1 << (shift2 - 1);
+    }
+
+    /**
+     * Interpolates four samples of up to 16 bits in fixed point, the fractional
+     * positions being expressed in <code>one</code> units.
+     */
+    int interpolate(final int s00, final int s01, final int s10, final int s11,
+            final int xfrac, final int yfrac) {
+        final int s0 = (s01 - s00) * xfrac + (s00 << subsampleBits);
+        final int s1 = (s11 - s10) * xfrac + (s10 << subsampleBits);
+        // with 16 bits samples the sum may overflow an int, not 32 bits, hence the unsigned shift
+        return ((s1 - s0) * yfrac + (s0 << subsampleBits) + round2) >>> shift2;
+    }
+
+    /**
+     * Computes the fixed point bilinear weights of the four neighbours of a
+     * position, the weights of the neighbours outside the roi being 0.
+     *
+     * @param weights receives the weights, in the s00, s01, s10, s11 order
+     * @return the sum of the weights, 0 if no neighbour the position depends on
+     *         is inside the roi
+     */
+    int getWeights(final ROISpanIndex roiSpans, final int xint, final int yint,
+            final int xfrac, final int yfrac, final int[] weights) {
+        final int xfrac0 = one - xfrac;
+        final int yfrac0 = one - yfrac;
+        weights[0] = roiSpans.contains(xint, yint) ? xfrac0 * yfrac0 : 0;
+        weights[1] = roiSpans.contains(xint+1, yint) ? xfrac * yfrac0 : 0;
+        weights[2] = roiSpans.contains(xint, yint+1) ? xfrac0 * yfrac : 0;
+        weights[3] = roiSpans.contains(xint+1, yint+1) ? xfrac * yfrac : 0;
+        return weights[0] + weights[1] + weights[2] + weights[3];
+    }
+
+    /**
+     * Interpolates four samples of up to 16 bits with the weights computed by
+     * {@link #getWeights}, normalized by their sum so that the neighbours outside
+     * the roi do not contribute. When all the neighbours are inside the roi the
+     * result is the same as the unweighted kernel.
+     */
+    static int interpolate(final int s00, final int s01, final int s10, final int s11,
+            final int[] weights, final int weightSum) {
+        final long s = (long)s00 * weights[0] + (long)s01 * weights[1] +
+            (long)s10 * weights[2] + (long)s11 * weights[3];
+        return (int)((s + (weightSum >> 1)) / weightSum);
+    }
+}
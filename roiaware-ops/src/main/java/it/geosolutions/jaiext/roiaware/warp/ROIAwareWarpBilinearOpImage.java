@@ -10,10 +10,13 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.warp;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
 import java.awt.Rectangle;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.util.Map;
@@ -47,6 +50,12 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
     /** Color table representing source's IndexColorModel. */
     private byte[][] ctable = null;
 
+    /** The fixed point kernel of the byte and ushort loops. */
+    private final BilinearKernel kernel;
+
+    /** Number of subsampling positions */
+    private final int one;
+
     /**
      * Constructs a ROIAwareWarpBilinearOpImage.
      *
@@ -67,13 +76,17 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
         super(source,
               layout,
               config,
-              false,
+              true,
               extender,
               interp,
               warp,
               backgroundValues,
               sourceROI);
 
+        kernel = new BilinearKernel(Math.min(interp.getSubsampleBitsH(),
+                interp.getSubsampleBitsV()));
+        one = kernel.one;
+
         /*
          * If the source has IndexColorModel, get the RGB color table.
          * Note, in this case, the source should have an integral data type.
@@ -126,6 +139,51 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
         }
     }
 
+    /**
+     * Warps a rectangle reading the cobbled source footprint of the tile. A source
+     * with an <code>IndexColorModel</code> is expanded to its RGB components by the
+     * source <code>RasterAccessor</code>, as requested by the format tags, so that
+     * the loops never need the color table.
+     */
+    protected void computeRect(final Raster[] sources,
+                               final WritableRaster dest,
+                               final Rectangle destRect) {
+        // Retrieve format tags.
+        final RasterFormatTag[] formatTags = getFormatTags();
+
+        final Raster source = sources[0];
+        final RasterAccessor s = new RasterAccessor(source, source.getBounds(),
+                                              formatTags[0], getSourceImage(0).getColorModel());
+        final RasterAccessor d = new RasterAccessor(dest, destRect,
+                                              formatTags[1], getColorModel());
+
+        switch (d.getDataType()) {
+        case DataBuffer.TYPE_BYTE:
+            computeRectByte(s, d);
+            break;
+        case DataBuffer.TYPE_USHORT:
+            computeRectUShort(s, d);
+            break;
+        case DataBuffer.TYPE_SHORT:
+            computeRectShort(s, d);
+            break;
+        case DataBuffer.TYPE_INT:
+            computeRectInt(s, d);
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            computeRectFloat(s, d);
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            computeRectDouble(s, d);
+            break;
+        }
+
+        if (d.isDataCopy()) {
+            d.clampDataArrays();
+            d.copyDataToRaster();
+        }
+    }
+
     private void computeRectByte(final PlanarImage src, final RasterAccessor dst) {
         RandomIter iterSource;
         if(extender != null) {
@@ -134,6 +192,8 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
         } else {
             iterSource = RandomIterFactory.create(src, src.getBounds());
         }
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
         final int minX = src.getMinX();
         final int maxX = src.getMaxX() -
             (extender != null ? 0 : 1); // Right padding
@@ -152,6 +212,9 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
 
         final float[] warpData = new float[2 * dstWidth];
 
+        // fixed point weights of the neighbours, see BilinearKernel.getWeights
+        final int[] weights = new int[4];
+
         int lineOffset = 0;
 
 	final byte[] backgroundByte = new byte[dstBands];
@@ -172,8 +235,8 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
 
                     final int xint = floor(sx);
                     final int yint = floor(sy);
-                    final float xfrac = sx - xint;
-                    final float yfrac = sy - yint;
+                    final int xfrac = (int)((sx - xint) * one);
+                    final int yfrac = (int)((sy - yint) * one);
 
                     if (xint < minX || xint >= maxX ||
                         yint < minY || yint >= maxY) {
@@ -186,7 +249,7 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                         }
                     } else {
                         
-                        if(!hasROI){
+                        if(roiSpans==null){
                             //
                             // NO ROI
                             // 
@@ -196,11 +259,7 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                                 int s10 = iterSource.getSample(xint, yint+1, b) & 0xFF;
                                 int s11 = iterSource.getSample(xint+1, yint+1, b) & 0xFF;
 
-                                float s0 = (s01 - s00) * xfrac + s00;
-                                float s1 = (s11 - s10) * xfrac + s10;
-                                float s = (s1 - s0) * yfrac + s0;
-
-                                data[b][pixelOffset+bandOffsets[b]] = (byte)s;
+                                data[b][pixelOffset+bandOffsets[b]] = (byte)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
                             }
                         }else{
                             //
@@ -213,47 +272,33 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                                 
                             } else {                        
                                 // checks with roi
-                                final int w00 = iterRoi.getSample(xint, yint, 0) ;
-                                final int w01 = iterRoi.getSample(xint+1, yint, 0) ;
-                                final int w10 = iterRoi.getSample(xint, yint+1, 0) ;
-                                final int w11 = iterRoi.getSample(xint+1, yint+1, 0) ;
-                                if(w00==0&&w01==0&&w10==0&&w11==0){ // SG should not happen
-                                    for (int b = 0; b < dstBands; b++){
-                                        data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
-                                    }
-                                } else {
-                                                        
+                                if (roiSpans.getRunEnd(xint, yint, 2) > xint + 1) {
+                                    // the four neighbours are inside the roi
                                     for (int b = 0; b < dstBands; b++) {
                                         final int s00 = iterSource.getSample(xint, yint, b) & 0xFF;
                                         final int s01 = iterSource.getSample(xint+1, yint, b) & 0xFF;
                                         final int s10 = iterSource.getSample(xint, yint+1, b) & 0xFF;
                                         final int s11 = iterSource.getSample(xint+1, yint+1, b) & 0xFF;
-                                        
-                                        // upper value
-                                        final float s0;
-                                        if(w00==0&&w01==0)
-                                            s0=Float.NaN;
-                                        else
-                                            s0= (s01*w01*(w00==0?1/xfrac:1) - s00*w00*(w01==0?0:1)) * (xfrac) + s00*w00;
-                                                
-                                        // lower value
-                                        final float s1;
-                                        if(w10==0&&w11==0)
-                                            s1=Float.NaN;
-                                        else
-                                            s1= (s11*w11*(w10==0?1/xfrac:1) - s10*w10*(w11==0?0:1)) * (xfrac) + s10*w10;
-                                        
-            
-                                        final float s;
-                                        if(Float.isNaN(s0))
-                                            s=s1;
-                                        else
-                                            if(Float.isNaN(s1))
-                                                s=s0;
-                                            else
-                                                s = (s1 - s0) * yfrac + s0;
-            
-                                        data[b][pixelOffset+bandOffsets[b]] = (byte)s;    
+
+
+                                        data[b][pixelOffset+bandOffsets[b]] = (byte)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                                    }
+                                } else {
+                                    final int weightSum = kernel.getWeights(roiSpans, xint, yint, xfrac, yfrac, weights);
+                                    if (weightSum == 0) {
+                                        for (int b = 0; b < dstBands; b++){
+                                            data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
+                                        }
+                                    } else {
+                                        for (int b = 0; b < dstBands; b++) {
+                                            final int s00 = iterSource.getSample(xint, yint, b) & 0xFF;
+                                            final int s01 = iterSource.getSample(xint+1, yint, b) & 0xFF;
+                                            final int s10 = iterSource.getSample(xint, yint+1, b) & 0xFF;
+                                            final int s11 = iterSource.getSample(xint+1, yint+1, b) & 0xFF;
+
+
+                                            data[b][pixelOffset+bandOffsets[b]] = (byte)BilinearKernel.interpolate(s00, s01, s10, s11, weights, weightSum);
+                                        }
                                     }
                                 }
                             }
@@ -278,8 +323,8 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
 
                     final int xint = floor(sx);
                     final int yint = floor(sy);
-                    final float xfrac = sx - xint;
-                    final float yfrac = sy - yint;
+                    final int xfrac = (int)((sx - xint) * one);
+                    final int yfrac = (int)((sy - yint) * one);
 
                     if (xint < minX || xint >= maxX ||
                         yint < minY || yint >= maxY) {
@@ -293,7 +338,7 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                         //
                         // ROI
                         //
-                        if(!roiBounds.contains(xint,yint)){
+                        if(roiBounds!=null&&!roiBounds.contains(xint,yint)){
                             if (setBackground) {
                                 for (int b = 0; b < dstBands; b++){
                                     data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
@@ -301,48 +346,35 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                             }
                         } else {    
                             // checks with roi
-                            final int w00 = iterRoi.getSample(xint, yint, 0) ;
-                            final int w01 = iterRoi.getSample(xint+1, yint, 0) ;
-                            final int w10 = iterRoi.getSample(xint, yint+1, 0) ;
-                            final int w11 = iterRoi.getSample(xint+1, yint+1, 0) ;
-                            if(w00==0&&w01==0&&w10==0&&w11==0){
-                                for (int b = 0; b < dstBands; b++){
-                                    data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
-                                }
-                            } else {
-                            
+                            if (roiSpans == null || roiSpans.getRunEnd(xint, yint, 2) > xint + 1) {
+                                // the four neighbours are inside the roi
                                 for (int b = 0; b < dstBands; b++) {
                                     final byte[] t = ctable[b];
-                                    
                                     final int s00 = t[iterSource.getSample(xint, yint, 0) & 0xFF] & 0xFF;
                                     final int s01 = t[iterSource.getSample(xint+1, yint, 0) & 0xFF] & 0xFF;
                                     final int s10 = t[iterSource.getSample(xint, yint+1, 0) & 0xFF] & 0xFF;
                                     final int s11 = t[iterSource.getSample(xint+1, yint+1, 0) & 0xFF] & 0xFF;
-        
-                                    // upper value
-                                    final float s0;
-                                    if(w00==0&&w01==0)
-                                        s0=Float.NaN;
-                                    else
-                                        s0= (s01*w01*(w00==0?1/xfrac:1) - s00*w00*(w01==0?0:1)) * (xfrac) + s00*w00;
-                                            
-                                    // lower value
-                                    final float s1;
-                                    if(w10==0&&w11==0)
-                                        s1=Float.NaN;
-                                    else
-                                        s1= (s11*w11*(w10==0?1/xfrac:1) - s10*w10*(w11==0?0:1)) * (xfrac) + s10*w10;
-                                    
-    
-                                    final float s;
-                                    if(Float.isNaN(s0))
-                                        s=s1;
-                                    else
-                                        if(Float.isNaN(s1))
-                                            s=s0;
-                                        else
-                                            s = (s1 - s0) * yfrac + s0;
-                                    data[b][pixelOffset+bandOffsets[b]] = (byte)s;  
+
+
+                                    data[b][pixelOffset+bandOffsets[b]] = (byte)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                                }
+                            } else {
+                                final int weightSum = kernel.getWeights(roiSpans, xint, yint, xfrac, yfrac, weights);
+                                if (weightSum == 0) {
+                                    for (int b = 0; b < dstBands; b++){
+                                        data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
+                                    }
+                                } else {
+                                    for (int b = 0; b < dstBands; b++) {
+                                        final byte[] t = ctable[b];
+                                        final int s00 = t[iterSource.getSample(xint, yint, 0) & 0xFF] & 0xFF;
+                                        final int s01 = t[iterSource.getSample(xint+1, yint, 0) & 0xFF] & 0xFF;
+                                        final int s10 = t[iterSource.getSample(xint, yint+1, 0) & 0xFF] & 0xFF;
+                                        final int s11 = t[iterSource.getSample(xint+1, yint+1, 0) & 0xFF] & 0xFF;
+
+
+                                        data[b][pixelOffset+bandOffsets[b]] = (byte)BilinearKernel.interpolate(s00, s01, s10, s11, weights, weightSum);
+                                    }
                                 }
                             }
                         }
@@ -366,6 +398,8 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
         } else {
             iter = RandomIterFactory.create(src, src.getBounds());
         }
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
 
         final int minX = src.getMinX();
         final int maxX = src.getMaxX() -
@@ -385,6 +419,9 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
 
         final float[] warpData = new float[2 * dstWidth];
 
+        // fixed point weights of the neighbours, see BilinearKernel.getWeights
+        final int[] weights = new int[4];
+
         int lineOffset = 0;
 
 	final short[] backgroundUShort = new short[dstBands];
@@ -404,8 +441,8 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
 
                 final int xint = floor(sx);
                 final int yint = floor(sy);
-                final float xfrac = sx - xint;
-                final float yfrac = sy - yint;
+                final int xfrac = (int)((sx - xint) * one);
+                final int yfrac = (int)((sy - yint) * one);
 
                 if (xint < minX || xint >= maxX ||
                     yint < minY || yint >= maxY) {
@@ -417,17 +454,33 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
                         }
                     }
                 } else {
-                    for (int b = 0; b < dstBands; b++) {
-                        final int s00 = iter.getSample(xint, yint, b) & 0xFFFF;
-                        final int s01 = iter.getSample(xint+1, yint, b) & 0xFFFF;
-                        final int s10 = iter.getSample(xint, yint+1, b) & 0xFFFF;
-                        final int s11 = iter.getSample(xint+1, yint+1, b) & 0xFFFF;
+                    if (roiSpans == null || roiSpans.getRunEnd(xint, yint, 2) > xint + 1) {
+                        // no roi to check, or the four neighbours are inside it
+                        for (int b = 0; b < dstBands; b++) {
+                            final int s00 = iter.getSample(xint, yint, b) & 0xFFFF;
+                            final int s01 = iter.getSample(xint+1, yint, b) & 0xFFFF;
+                            final int s10 = iter.getSample(xint, yint+1, b) & 0xFFFF;
+                            final int s11 = iter.getSample(xint+1, yint+1, b) & 0xFFFF;
 
-                        final float s0 = (s01 - s00) * xfrac + s00;
-                        final float s1 = (s11 - s10) * xfrac + s10;
-                        final float s = (s1 - s0) * yfrac + s0;
+                            data[b][pixelOffset+bandOffsets[b]] = (short)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                        }
+                    } else {
+                        final int weightSum = roiBounds.contains(xint, yint) ?
+                            kernel.getWeights(roiSpans, xint, yint, xfrac, yfrac, weights) : 0;
+                        if (weightSum == 0) {
+                            for (int b = 0; b < dstBands; b++){
+                                data[b][pixelOffset+bandOffsets[b]]=backgroundUShort[b];
+                            }
+                        } else {
+                            for (int b = 0; b < dstBands; b++) {
+                                final int s00 = iter.getSample(xint, yint, b) & 0xFFFF;
+                                final int s01 = iter.getSample(xint+1, yint, b) & 0xFFFF;
+                                final int s10 = iter.getSample(xint, yint+1, b) & 0xFFFF;
+                                final int s11 = iter.getSample(xint+1, yint+1, b) & 0xFFFF;
 
-                        data[b][pixelOffset+bandOffsets[b]] = (short)s;
+                                data[b][pixelOffset+bandOffsets[b]] = (short)BilinearKernel.interpolate(s00, s01, s10, s11, weights, weightSum);
+                            }
+                        }
                     }
                 }
 
@@ -765,6 +818,571 @@ final class ROIAwareWarpBilinearOpImage extends ROIAwareWarpOpImage {
         iter.done();
     }
 
+    private void computeRectByte(final RasterAccessor src, final RasterAccessor dst) {
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final byte[][] srcData = src.getByteDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final byte[][] data = dst.getByteDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        // fixed point weights of the neighbours, see BilinearKernel.getWeights
+        final int[] weights = new int[4];
+
+        int lineOffset = 0;
+
+        final byte[] backgroundByte = new byte[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundByte[i] = (byte)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final int xfrac = (int)((sx - xint) * one);
+                final int yfrac = (int)((sy - yint) * one);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundByte[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    if (roiSpans == null) {
+                        //
+                        // NO ROI
+                        //
+                        for (int b = 0; b < dstBands; b++) {
+                            final int o = srcBandOffsets[b];
+                            final int s00 = srcData[b][p00+o] & 0xFF;
+                            final int s01 = srcData[b][p01+o] & 0xFF;
+                            final int s10 = srcData[b][p10+o] & 0xFF;
+                            final int s11 = srcData[b][p11+o] & 0xFF;
+
+                            data[b][pixelOffset+bandOffsets[b]] = (byte)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                        }
+                    } else {
+                        //
+                        // ROI
+                        //
+                        if (!roiBounds.contains(xint, yint)) {
+                            for (int b = 0; b < dstBands; b++){
+                                data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
+                            }
+                        } else {
+                            // checks with roi
+                            if (roiSpans.getRunEnd(xint, yint, 2) > xint + 1) {
+                                // the four neighbours are inside the roi
+                                for (int b = 0; b < dstBands; b++) {
+                                    final int o = srcBandOffsets[b];
+                                    final int s00 = srcData[b][p00+o] & 0xFF;
+                                    final int s01 = srcData[b][p01+o] & 0xFF;
+                                    final int s10 = srcData[b][p10+o] & 0xFF;
+                                    final int s11 = srcData[b][p11+o] & 0xFF;
+
+
+                                    data[b][pixelOffset+bandOffsets[b]] = (byte)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                                }
+                            } else {
+                                final int weightSum = kernel.getWeights(roiSpans, xint, yint, xfrac, yfrac, weights);
+                                if (weightSum == 0) {
+                                    for (int b = 0; b < dstBands; b++){
+                                        data[b][pixelOffset+bandOffsets[b]]=backgroundByte[b];
+                                    }
+                                } else {
+                                    for (int b = 0; b < dstBands; b++) {
+                                        final int o = srcBandOffsets[b];
+                                        final int s00 = srcData[b][p00+o] & 0xFF;
+                                        final int s01 = srcData[b][p01+o] & 0xFF;
+                                        final int s10 = srcData[b][p10+o] & 0xFF;
+                                        final int s11 = srcData[b][p11+o] & 0xFF;
+
+
+                                        data[b][pixelOffset+bandOffsets[b]] = (byte)BilinearKernel.interpolate(s00, s01, s10, s11, weights, weightSum);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectUShort(final RasterAccessor src, final RasterAccessor dst) {
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final short[][] srcData = src.getShortDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final short[][] data = dst.getShortDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        // fixed point weights of the neighbours, see BilinearKernel.getWeights
+        final int[] weights = new int[4];
+
+        int lineOffset = 0;
+
+        final short[] backgroundUShort = new short[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundUShort[i] = (short)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final int xfrac = (int)((sx - xint) * one);
+                final int yfrac = (int)((sy - yint) * one);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundUShort[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    if (roiSpans == null || roiSpans.getRunEnd(xint, yint, 2) > xint + 1) {
+                        // no roi to check, or the four neighbours are inside it
+                        for (int b = 0; b < dstBands; b++) {
+                            final int o = srcBandOffsets[b];
+                            final int s00 = srcData[b][p00+o] & 0xFFFF;
+                            final int s01 = srcData[b][p01+o] & 0xFFFF;
+                            final int s10 = srcData[b][p10+o] & 0xFFFF;
+                            final int s11 = srcData[b][p11+o] & 0xFFFF;
+
+                            data[b][pixelOffset+bandOffsets[b]] = (short)kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac);
+                        }
+                    } else {
+                        final int weightSum = roiBounds.contains(xint, yint) ?
+                            kernel.getWeights(roiSpans, xint, yint, xfrac, yfrac, weights) : 0;
+                        if (weightSum == 0) {
+                            for (int b = 0; b < dstBands; b++){
+                                data[b][pixelOffset+bandOffsets[b]]=backgroundUShort[b];
+                            }
+                        } else {
+                            for (int b = 0; b < dstBands; b++) {
+                                final int o = srcBandOffsets[b];
+                                final int s00 = srcData[b][p00+o] & 0xFFFF;
+                                final int s01 = srcData[b][p01+o] & 0xFFFF;
+                                final int s10 = srcData[b][p10+o] & 0xFFFF;
+                                final int s11 = srcData[b][p11+o] & 0xFFFF;
+
+                                data[b][pixelOffset+bandOffsets[b]] = (short)BilinearKernel.interpolate(s00, s01, s10, s11, weights, weightSum);
+                            }
+                        }
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectShort(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final short[][] srcData = src.getShortDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final short[][] data = dst.getShortDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final short[] backgroundShort = new short[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundShort[i] = (short)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final float xfrac = sx - xint;
+                final float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundShort[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        final int o = srcBandOffsets[b];
+                        final int s00 = srcData[b][p00+o];
+                        final int s01 = srcData[b][p01+o];
+                        final int s10 = srcData[b][p10+o];
+                        final int s11 = srcData[b][p11+o];
+
+                        final float s0 = (s01 - s00) * xfrac + s00;
+                        final float s1 = (s11 - s10) * xfrac + s10;
+                        final float s = (s1 - s0) * yfrac + s0;
+
+                        data[b][pixelOffset+bandOffsets[b]] = (short)s;
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectInt(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final int[][] srcData = src.getIntDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final int[][] data = dst.getIntDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final int[] backgroundInt = new int[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundInt[i] = (int)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final float xfrac = sx - xint;
+                final float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundInt[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        final int o = srcBandOffsets[b];
+                        final int s00 = srcData[b][p00+o];
+                        final int s01 = srcData[b][p01+o];
+                        final int s10 = srcData[b][p10+o];
+                        final int s11 = srcData[b][p11+o];
+
+                        final float s0 = (s01 - s00) * xfrac + s00;
+                        final float s1 = (s11 - s10) * xfrac + s10;
+                        final float s = (s1 - s0) * yfrac + s0;
+
+                        data[b][pixelOffset+bandOffsets[b]] = (int)s;
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectFloat(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final float[][] srcData = src.getFloatDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final float[][] data = dst.getFloatDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final float[] backgroundFloat = new float[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundFloat[i] = (float)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final float xfrac = sx - xint;
+                final float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundFloat[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        final int o = srcBandOffsets[b];
+                        final float s00 = srcData[b][p00+o];
+                        final float s01 = srcData[b][p01+o];
+                        final float s10 = srcData[b][p10+o];
+                        final float s11 = srcData[b][p11+o];
+
+                        final float s0 = (s01 - s00) * xfrac + s00;
+                        final float s1 = (s11 - s10) * xfrac + s10;
+                        final float s = (s1 - s0) * yfrac + s0;
+
+                        data[b][pixelOffset+bandOffsets[b]] = s;
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectDouble(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final double[][] srcData = src.getDoubleDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final double[][] data = dst.getDoubleDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                final float sx = warpData[count++];
+                final float sy = warpData[count++];
+
+                final int xint = floor(sx);
+                final int yint = floor(sy);
+                final float xfrac = sx - xint;
+                final float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundValues[b];
+                        }
+                    }
+                } else {
+                    // offsets of the four neighbours
+                    final int p00 = (yint - srcY) * srcLineStride + (xint - srcX) * srcPixelStride;
+                    final int p01 = p00 + srcPixelStride;
+                    final int p10 = p00 + srcLineStride;
+                    final int p11 = p10 + srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        final int o = srcBandOffsets[b];
+                        final double s00 = srcData[b][p00+o];
+                        final double s01 = srcData[b][p01+o];
+                        final double s10 = srcData[b][p10+o];
+                        final double s11 = srcData[b][p11+o];
+
+                        final double s0 = (s01 - s00) * xfrac + s00;
+                        final double s1 = (s11 - s10) * xfrac + s10;
+                        final double s = (s1 - s0) * yfrac + s0;
+
+                        data[b][pixelOffset+bandOffsets[b]] = s;
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
     /** Returns the "floor" value of a float. */
     private static final int floor(final float f) {
         return f >= 0 ? (int)f : (int)f - 1;
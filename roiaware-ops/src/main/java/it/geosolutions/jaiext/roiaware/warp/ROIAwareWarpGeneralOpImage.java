@@ -14,6 +14,7 @@ import java.awt.Rectangle;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.util.Map;
@@ -69,7 +70,7 @@ final class ROIAwareWarpGeneralOpImage extends ROIAwareWarpOpImage {
         super(source,
               layout,
               config,
-              false,
+              true,
               extender,
               interp,
               warp,
@@ -128,6 +129,51 @@ final class ROIAwareWarpGeneralOpImage extends ROIAwareWarpOpImage {
         }
     }
 
+    /**
+     * Warps a rectangle reading the cobbled source footprint of the tile. A source
+     * with an <code>IndexColorModel</code> is expanded to its RGB components by the
+     * source <code>RasterAccessor</code>, as requested by the format tags, so that
+     * the loops never need the color table.
+     */
+    protected void computeRect(Raster[] sources,
+                               WritableRaster dest,
+                               Rectangle destRect) {
+        // Retrieve format tags.
+        RasterFormatTag[] formatTags = getFormatTags();
+
+        Raster source = sources[0];
+        RasterAccessor s = new RasterAccessor(source, source.getBounds(),
+                               formatTags[0], getSourceImage(0).getColorModel());
+        RasterAccessor d = new RasterAccessor(dest, destRect,
+                               formatTags[1], getColorModel());
+
+        switch (d.getDataType()) {
+        case DataBuffer.TYPE_BYTE:
+            computeRectByte(s, d);
+            break;
+        case DataBuffer.TYPE_USHORT:
+            computeRectUShort(s, d);
+            break;
+        case DataBuffer.TYPE_SHORT:
+            computeRectShort(s, d);
+            break;
+        case DataBuffer.TYPE_INT:
+            computeRectInt(s, d);
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            computeRectFloat(s, d);
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            computeRectDouble(s, d);
+            break;
+        }
+
+        if (d.isDataCopy()) {
+            d.clampDataArrays();
+            d.copyDataToRaster();
+        }
+    }
+
     private void computeRectByte(PlanarImage src, RasterAccessor dst) {
         int lpad, rpad, tpad, bpad;
         if(interp != null) {
@@ -807,6 +853,594 @@ final class ROIAwareWarpGeneralOpImage extends ROIAwareWarpOpImage {
         iter.done();
     }
 
+    private void computeRectByte(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        byte[][] srcData = src.getByteDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        byte[][] data = dst.getByteDataArrays();
+
+        int precH = 1 << interp.getSubsampleBitsH();
+        int precV = 1 << interp.getSubsampleBitsV();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        int[][] samples = new int[kheight][kwidth];
+
+        int lineOffset = 0;
+
+        byte[] backgroundByte = new byte[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundByte[i] = (byte)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                int xfrac = (int)((sx - xint) * precH);
+                int yfrac = (int)((sy - yint) * precV);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundByte[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        byte[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset] & 0xFF;
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            ImageUtil.clampByte(
+                            interp.interpolate(samples, xfrac, yfrac));
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectUShort(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        short[][] srcData = src.getShortDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        short[][] data = dst.getShortDataArrays();
+
+        int precH = 1 << interp.getSubsampleBitsH();
+        int precV = 1 << interp.getSubsampleBitsV();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        int[][] samples = new int[kheight][kwidth];
+
+        int lineOffset = 0;
+
+        short[] backgroundUShort = new short[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundUShort[i] = (short)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                int xfrac = (int)((sx - xint) * precH);
+                int yfrac = (int)((sy - yint) * precV);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundUShort[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        short[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset] & 0xFFFF;
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            ImageUtil.clampUShort(
+                            interp.interpolate(samples, xfrac, yfrac));
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectShort(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        short[][] srcData = src.getShortDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        short[][] data = dst.getShortDataArrays();
+
+        int precH = 1 << interp.getSubsampleBitsH();
+        int precV = 1 << interp.getSubsampleBitsV();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        int[][] samples = new int[kheight][kwidth];
+
+        int lineOffset = 0;
+
+        short[] backgroundShort = new short[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundShort[i] = (short)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                int xfrac = (int)((sx - xint) * precH);
+                int yfrac = (int)((sy - yint) * precV);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundShort[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        short[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset];
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            ImageUtil.clampShort(
+                            interp.interpolate(samples, xfrac, yfrac));
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectInt(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        int[][] srcData = src.getIntDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        int[][] data = dst.getIntDataArrays();
+
+        int precH = 1 << interp.getSubsampleBitsH();
+        int precV = 1 << interp.getSubsampleBitsV();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        int[][] samples = new int[kheight][kwidth];
+
+        int lineOffset = 0;
+
+        int[] backgroundInt = new int[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundInt[i] = (int)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                int xfrac = (int)((sx - xint) * precH);
+                int yfrac = (int)((sy - yint) * precV);
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundInt[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        int[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset];
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            interp.interpolate(samples, xfrac, yfrac);
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectFloat(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        float[][] srcData = src.getFloatDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        float[][] data = dst.getFloatDataArrays();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        float[][] samples = new float[kheight][kwidth];
+
+        int lineOffset = 0;
+
+        float[] backgroundFloat = new float[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundFloat[i] = (float)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                float xfrac = sx - xint;
+                float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundFloat[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        float[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset];
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            interp.interpolate(samples, xfrac, yfrac);
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectDouble(RasterAccessor src, RasterAccessor dst) {
+        int lpad, tpad;
+        if(interp != null) {
+            lpad = interp.getLeftPadding();
+            tpad = interp.getTopPadding();
+        } else {
+            lpad = tpad = 0;
+        }
+
+        Rectangle bounds = getCobbledBounds(src);
+        int minX = bounds.x;
+        int maxX = bounds.x + bounds.width;
+        int minY = bounds.y;
+        int maxY = bounds.y + bounds.height;
+
+        int srcX = src.getX();
+        int srcY = src.getY();
+        int srcLineStride = src.getScanlineStride();
+        int srcPixelStride = src.getPixelStride();
+        int[] srcBandOffsets = src.getBandOffsets();
+        double[][] srcData = src.getDoubleDataArrays();
+
+        int kwidth = interp.getWidth();
+        int kheight = interp.getHeight();
+
+        int dstWidth = dst.getWidth();
+        int dstHeight = dst.getHeight();
+        int dstBands = dst.getNumBands();
+
+        int lineStride = dst.getScanlineStride();
+        int pixelStride = dst.getPixelStride();
+        int[] bandOffsets = dst.getBandOffsets();
+        double[][] data = dst.getDoubleDataArrays();
+
+        float[] warpData = new float[2 * dstWidth];
+
+        double[][] samples = new double[kheight][kwidth];
+
+        int lineOffset = 0;
+
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1, warpData);
+
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                float sx = warpData[count++];
+                float sy = warpData[count++];
+
+                int xint = floor(sx);
+                int yint = floor(sy);
+                float xfrac = sx - xint;
+                float yfrac = sy - yint;
+
+                if (xint < minX || xint >= maxX ||
+                    yint < minY || yint >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundValues[b];
+                        }
+                    }
+                } else {
+                    // offset of the top left pixel of the kernel
+                    int srcPixelOffset = (yint - tpad - srcY) * srcLineStride +
+                        (xint - lpad - srcX) * srcPixelStride;
+
+                    for (int b = 0; b < dstBands; b++) {
+                        double[] srcBand = srcData[b];
+                        int srcLineOffset = srcPixelOffset + srcBandOffsets[b];
+                        for (int j = 0; j < kheight; j++) {
+                            int srcOffset = srcLineOffset;
+                            for (int i = 0; i < kwidth; i++) {
+                                samples[j][i] = srcBand[srcOffset];
+                                srcOffset += srcPixelStride;
+                            }
+                            srcLineOffset += srcLineStride;
+                        }
+
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            interp.interpolate(samples, xfrac, yfrac);
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
     /** Returns the "floor" value of a float. */
     private static final int floor(float f) {
         return f >= 0 ? (int)f : (int)f - 1;
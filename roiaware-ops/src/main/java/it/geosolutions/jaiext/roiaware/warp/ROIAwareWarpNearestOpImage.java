@@ -10,10 +10,13 @@
  * $State: Exp $
  */
 package it.geosolutions.jaiext.roiaware.warp;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
 import java.awt.Rectangle;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.util.Map;
@@ -66,7 +69,7 @@ final class ROIAwareWarpNearestOpImage extends ROIAwareWarpOpImage {
         super(source,
               layout,
               config,
-              false,
+              true,
               null,   // extender
               interp,
               warp,
@@ -124,8 +127,51 @@ final class ROIAwareWarpNearestOpImage extends ROIAwareWarpOpImage {
         }
     }
 
+    /**
+     * Warps a rectangle reading the cobbled source footprint of the tile. Nearest
+     * neighbour only copies samples, so unsigned and signed shorts share their loop.
+     */
+    protected void computeRect(final Raster[] sources,
+                               final WritableRaster dest,
+                               final Rectangle destRect) {
+        // Retrieve format tags.
+        final RasterFormatTag[] formatTags = getFormatTags();
+
+        final Raster source = sources[0];
+        final RasterAccessor s = new RasterAccessor(source, source.getBounds(),
+                                              formatTags[0], getSourceImage(0).getColorModel());
+        final RasterAccessor d = new RasterAccessor(dest, destRect,
+                                              formatTags[1], getColorModel());
+
+        switch (d.getDataType()) {
+        case DataBuffer.TYPE_BYTE:
+            computeRectByte(s, d);
+            break;
+        case DataBuffer.TYPE_USHORT:
+        case DataBuffer.TYPE_SHORT:
+            computeRectShort(s, d);
+            break;
+        case DataBuffer.TYPE_INT:
+            computeRectInt(s, d);
+            break;
+        case DataBuffer.TYPE_FLOAT:
+            computeRectFloat(s, d);
+            break;
+        case DataBuffer.TYPE_DOUBLE:
+            computeRectDouble(s, d);
+            break;
+        }
+
+        if (d.isDataCopy()) {
+            d.clampDataArrays();
+            d.copyDataToRaster();
+        }
+    }
+
     private void computeRectByte(final PlanarImage src, final RasterAccessor dst) {
         final RandomIter iter = RandomIterFactory.create(src, src.getBounds());
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
 
         final int minX = src.getMinX();
         final int maxX = src.getMaxX();
@@ -175,7 +221,7 @@ final class ROIAwareWarpNearestOpImage extends ROIAwareWarpOpImage {
                         }
                     }
                 } else {
-                    if(hasROI){
+                    if(roiSpans!=null){
                         // SG if we falls outside the roi we use the background value
                         if(!roiBounds.contains(sx,sy)){
                             /* Fill with a background color. */
@@ -187,8 +233,7 @@ final class ROIAwareWarpNearestOpImage extends ROIAwareWarpOpImage {
                             }
                         } else {
                             // SG if we falls outside the roi we use the background value
-                            final int wx= iterRoi.getSample(sx, sy, 0)& 0xFF;
-                            final boolean insideROI=wx==1;
+                            final boolean insideROI=roiSpans.contains(sx, sy);
                             for (int b = 0; b < dstBands; b++) {
                                 data[b][pixelOffset+bandOffsets[b]] =insideROI?
                                     (byte)(iter.getSample(sx, sy, b) & 0xFF):backgroundByte[b];
@@ -519,6 +564,326 @@ final class ROIAwareWarpNearestOpImage extends ROIAwareWarpOpImage {
         iter.done();
     }
 
+    private void computeRectByte(final RasterAccessor src, final RasterAccessor dst) {
+        final ROISpanIndex roiSpans = getROISpans(new Rectangle(dst.getX(), dst.getY(),
+                dst.getWidth(), dst.getHeight()));
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final byte[][] srcData = src.getByteDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final byte[][] data = dst.getByteDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final byte[] backgroundByte = new byte[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundByte[i] = (byte)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                // see computeRectByte(PlanarImage, RasterAccessor) for the rounding
+                final int sx = round(warpData[count++]);
+                final int sy = round(warpData[count++]);
+
+                if (sx < minX || sx >= maxX || sy < minY || sy >= maxY ||
+                    (roiSpans != null && !roiSpans.contains(sx, sy))) {
+                    /* Fill with a background color, outside the roi too. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundByte[b];
+                        }
+                    }
+                } else {
+                    final int srcPixelOffset = (sy - srcY) * srcLineStride + (sx - srcX) * srcPixelStride;
+                    for (int b = 0; b < dstBands; b++) {
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            srcData[b][srcPixelOffset+srcBandOffsets[b]];
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectShort(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final short[][] srcData = src.getShortDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final short[][] data = dst.getShortDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final short[] backgroundShort = new short[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundShort[i] = (short)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                // see computeRectShort(PlanarImage, RasterAccessor) for the rounding
+                final int sx = round(warpData[count++]);
+                final int sy = round(warpData[count++]);
+
+                if (sx < minX || sx >= maxX || sy < minY || sy >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundShort[b];
+                        }
+                    }
+                } else {
+                    final int srcPixelOffset = (sy - srcY) * srcLineStride + (sx - srcX) * srcPixelStride;
+                    for (int b = 0; b < dstBands; b++) {
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            srcData[b][srcPixelOffset+srcBandOffsets[b]];
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectInt(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final int[][] srcData = src.getIntDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final int[][] data = dst.getIntDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final int[] backgroundInt = new int[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundInt[i] = (int)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                // see computeRectInt(PlanarImage, RasterAccessor) for the rounding
+                final int sx = round(warpData[count++]);
+                final int sy = round(warpData[count++]);
+
+                if (sx < minX || sx >= maxX || sy < minY || sy >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundInt[b];
+                        }
+                    }
+                } else {
+                    final int srcPixelOffset = (sy - srcY) * srcLineStride + (sx - srcX) * srcPixelStride;
+                    for (int b = 0; b < dstBands; b++) {
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            srcData[b][srcPixelOffset+srcBandOffsets[b]];
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectFloat(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final float[][] srcData = src.getFloatDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final float[][] data = dst.getFloatDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+        final float[] backgroundFloat = new float[dstBands];
+        for (int i = 0; i < dstBands; i++)
+            backgroundFloat[i] = (float)backgroundValues[i];
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                // see computeRectFloat(PlanarImage, RasterAccessor) for the rounding
+                final int sx = round(warpData[count++]);
+                final int sy = round(warpData[count++]);
+
+                if (sx < minX || sx >= maxX || sy < minY || sy >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundFloat[b];
+                        }
+                    }
+                } else {
+                    final int srcPixelOffset = (sy - srcY) * srcLineStride + (sx - srcX) * srcPixelStride;
+                    for (int b = 0; b < dstBands; b++) {
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            srcData[b][srcPixelOffset+srcBandOffsets[b]];
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
+    private void computeRectDouble(final RasterAccessor src, final RasterAccessor dst) {
+        final Rectangle bounds = getCobbledBounds(src);
+        final int minX = bounds.x;
+        final int maxX = bounds.x + bounds.width;
+        final int minY = bounds.y;
+        final int maxY = bounds.y + bounds.height;
+
+        final int srcX = src.getX();
+        final int srcY = src.getY();
+        final int srcLineStride = src.getScanlineStride();
+        final int srcPixelStride = src.getPixelStride();
+        final int[] srcBandOffsets = src.getBandOffsets();
+        final double[][] srcData = src.getDoubleDataArrays();
+
+        final int dstWidth = dst.getWidth();
+        final int dstHeight = dst.getHeight();
+        final int dstBands = dst.getNumBands();
+
+        final int lineStride = dst.getScanlineStride();
+        final int pixelStride = dst.getPixelStride();
+        final int[] bandOffsets = dst.getBandOffsets();
+        final double[][] data = dst.getDoubleDataArrays();
+
+        final float[] warpData = new float[2 * dstWidth];
+
+        int lineOffset = 0;
+
+
+        for (int h = 0; h < dstHeight; h++) {
+            int pixelOffset = lineOffset;
+            lineOffset += lineStride;
+
+            warp.warpRect(dst.getX(), dst.getY()+h, dstWidth, 1,
+                          warpData);
+            int count = 0;
+            for (int w = 0; w < dstWidth; w++) {
+                // see computeRectDouble(PlanarImage, RasterAccessor) for the rounding
+                final int sx = round(warpData[count++]);
+                final int sy = round(warpData[count++]);
+
+                if (sx < minX || sx >= maxX || sy < minY || sy >= maxY) {
+                    /* Fill with a background color. */
+                    if (setBackground) {
+                        for (int b = 0; b < dstBands; b++) {
+                            data[b][pixelOffset+bandOffsets[b]] =
+                                backgroundValues[b];
+                        }
+                    }
+                } else {
+                    final int srcPixelOffset = (sy - srcY) * srcLineStride + (sx - srcX) * srcPixelStride;
+                    for (int b = 0; b < dstBands; b++) {
+                        data[b][pixelOffset+bandOffsets[b]] =
+                            srcData[b][srcPixelOffset+srcBandOffsets[b]];
+                    }
+                }
+
+                pixelOffset += pixelStride;
+            }
+        }
+    }
+
     /** Returns the "round" value of a float. */
     private static final int round(final float f) {
         return f >= 0 ? (int)(f + 0.5F) : (int)(f - 0.5F);
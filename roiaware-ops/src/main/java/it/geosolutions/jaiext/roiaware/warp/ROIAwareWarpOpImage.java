@@ -15,12 +15,17 @@
  */
 package it.geosolutions.jaiext.roiaware.warp;
 
-import it.geosolutions.jaiext.iterator.RandomIterFactory;
+import it.geosolutions.jaiext.roiaware.ROIClassifier;
+import it.geosolutions.jaiext.roiaware.ROIClassifier.Coverage;
+import it.geosolutions.jaiext.roiaware.ROIMaskOpImage;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.util.Map;
 
@@ -29,9 +34,9 @@ import javax.media.jai.ImageLayout;
 import javax.media.jai.Interpolation;
 import javax.media.jai.PlanarImage;
 import javax.media.jai.ROI;
+import javax.media.jai.RasterAccessor;
 import javax.media.jai.Warp;
 import javax.media.jai.WarpOpImage;
-import javax.media.jai.iterator.RandomIter;
 
 import com.sun.media.jai.util.ImageUtil;
 /**
@@ -45,22 +50,35 @@ public abstract class ROIAwareWarpOpImage extends WarpOpImage {
     /** {@link BorderExtender} instance for extending roi.*/
     protected final static BorderExtender ZERO_EXTENDER = BorderExtender.createInstance(BorderExtender.BORDER_ZERO);
 
+    /**
+     * Maximum size in bytes of the source footprint of a tile for the footprint to be cobbled, larger footprints are read through
+     * iterators.
+     */
+    protected final static long MAX_COBBLED_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * Maximum size in bytes of the cobbled source footprints of this image, {@link #MAX_COBBLED_BYTES} unless changed, e.g. set to 0 by
+     * the tests to force the iterator path.
+     */
+    long maxCobbledBytes = MAX_COBBLED_BYTES;
+
     @Override
     public synchronized void dispose() {
 
         // dispose roiImage if present
         if(roiImage!=null){ 
             roiImage.dispose();
-            iterRoi.done();
         }
         super.dispose();
     }
 
     protected final ROI roi;
     
-    protected final PlanarImage roiImage;
+    /** The mask of the ROI, rasterized a tile at a time as the source areas are read. */
+    protected final ROIMaskOpImage roiImage;
 
-    protected final RandomIter iterRoi;
+    /** Classifies the source areas of the tiles against the ROI. */
+    protected final ROIClassifier roiClassifier;
 
     protected final boolean hasROI;
 
@@ -81,26 +99,74 @@ public abstract class ROIAwareWarpOpImage extends WarpOpImage {
         this.roi = roi;   
         hasROI = roi!=null;
         if (hasROI) {
-            roiImage = roi.getAsImage();
-            int l = interp == null ? 0 : interp.getLeftPadding();
-            int r = interp == null ? 0 : interp.getRightPadding();
-            int t = interp == null ? 0 : interp.getTopPadding();
-            int b = interp == null ? 0 : interp.getBottomPadding();
-            final Rectangle rect = new Rectangle(
-                    roiImage.getMinX()-l,
-                    roiImage.getMinY()-t,
-                    roiImage.getWidth()+l+r,
-                    roiImage.getHeight()+t+b);
-            final Raster data = roiImage.getExtendedData(rect,ZERO_EXTENDER);
-            
-            iterRoi = RandomIterFactory.create(data,data.getBounds()) ;   
-            roiBounds = roiImage.getBounds();
+            roiImage = new ROIMaskOpImage(roi, interp, configuration);
+            roiClassifier = new ROIClassifier(roi);
+            roiBounds = roi.getBounds();
         } else {
             roiImage = null;
-            iterRoi = null;
+            roiClassifier = null;
             roiBounds = null;
         }
     }
+
+    /**
+     * Indexes the inside spans of the ROI mask over the source area needed by a destination rectangle.
+     *
+     * @param destRect the destination rectangle being computed
+     * @return the {@link ROISpanIndex} of the ROI over the source area, or <code>null</code> if there is no ROI or the source area of the
+     *         rectangle is fully inside it, so that the ROI does not need to be checked
+     */
+    protected ROISpanIndex getROISpans(final Rectangle destRect) {
+        if (!hasROI) {
+            return null;
+        }
+        final Rectangle srcRect = mapDestRect(destRect, 0);
+        if (srcRect == null) {
+            return roiImage.getSpanIndex(roiImage.getBounds());
+        }
+        if (roiClassifier.classify(srcRect) == Coverage.INSIDE) {
+            return null;
+        }
+        // mapDestRect already includes the interpolation padding, i.e. the neighbours read by the kernels
+        return roiImage.getSpanIndex(srcRect);
+    }
+    
+    /**
+     * Computes the source positions the interpolation kernel can be applied at when reading a cobbled source, i.e. the positions whose
+     * whole kernel falls inside the cobbled raster and which are inside the source bounds, shrunk by the padding unless there is an
+     * extender.
+     *
+     * @param src the {@link RasterAccessor} of the cobbled source
+     * @return the valid kernel positions, empty if there is none
+     */
+    protected Rectangle getCobbledBounds(final RasterAccessor src) {
+        final int lpad, rpad, tpad, bpad;
+        if (interp != null) {
+            lpad = interp.getLeftPadding();
+            rpad = interp.getRightPadding();
+            tpad = interp.getTopPadding();
+            bpad = interp.getBottomPadding();
+        } else {
+            lpad = rpad = tpad = bpad = 0;
+        }
+
+        final PlanarImage source = getSourceImage(0);
+        int minX = source.getMinX();
+        int maxX = source.getMaxX();
+        int minY = source.getMinY();
+        int maxY = source.getMaxY();
+        if (extender == null) {
+            minX += lpad;
+            maxX -= rpad;
+            minY += tpad;
+            maxY -= bpad;
+        }
+        minX = Math.max(minX, src.getX() + lpad);
+        maxX = Math.min(maxX, src.getX() + src.getWidth() - rpad);
+        minY = Math.max(minY, src.getY() + tpad);
+        maxY = Math.min(maxY, src.getY() + src.getHeight() - bpad);
+        return new Rectangle(minX, minY, Math.max(0, maxX - minX), Math.max(0, maxY - minY));
+    }
     
     /**
      * Computes a tile.  A new <code>WritableRaster</code> is created to
@@ -114,7 +180,8 @@ public abstract class ROIAwareWarpOpImage extends WarpOpImage {
      * If <code>cobbleSources</code> is <code>true</code>, cobbling is
      * performed on the source for areas that intersect multiple tiles,
      * and <code>computeRect(Raster[], WritableRaster, Rectangle)</code>
-     * is called to perform the actual computation.  Otherwise,
+     * is called to perform the actual computation, unless the source
+     * area needed by the tile is larger than <code>MAX_COBBLED_BYTES</code>.  Otherwise,
      * <code>computeRect(PlanarImage[], WritableRaster, Rectangle)</code>
      * is called to perform the actual computation.
      *
@@ -154,7 +221,7 @@ public abstract class ROIAwareWarpOpImage extends WarpOpImage {
        }
 
        // are we outside the roi
-       if(roi!=null&&!roi.intersects(srcRect)){
+       if(hasROI&&roiClassifier.classify(srcRect)==Coverage.OUTSIDE){
            if (setBackground) {
                ImageUtil.fillBackground(dest, destRect, backgroundValues);
            }
@@ -163,11 +230,32 @@ public abstract class ROIAwareWarpOpImage extends WarpOpImage {
        
        
        // This image only has one source.
-       if (cobbleSources) {
-           // FIXME 
-           throw new UnsupportedOperationException();
+       final SampleModel sm = source.getSampleModel();
+       final long cobbledBytes = (long) srcRect.width * srcRect.height * sm.getNumBands()
+               * DataBuffer.getDataTypeSize(sm.getDataType()) / 8;
+       if (cobbleSources && cobbledBytes <= maxCobbledBytes) {
+           // cobble the source footprint of the tile, the loops then read its arrays directly
+           final Raster[] rasterSources = new Raster[1];
+           final boolean assembled;
+           if (extender != null) {
+               rasterSources[0] = source.getExtendedData(srcRect, extender);
+               // the extended data is a child of a cached source tile when the area lies
+               // inside the source bounds and a single tile
+               assembled = !source.getBounds().contains(srcRect)
+                       || source.overlapsMultipleTiles(srcRect);
+           } else {
+               final Rectangle dataRect = srcRect.intersection(source.getBounds());
+               rasterSources[0] = source.getData(dataRect);
+               assembled = source.overlapsMultipleTiles(dataRect);
+           }
+           computeRect(rasterSources, dest, destRect);
 
+           // recycle the source raster only if it has been assembled for this tile
+           if (assembled) {
+               recycleTile(rasterSources[0]);
+           }
        } else {
+           // footprints too large to be copied, e.g. strong downsampling, are read in place
            final PlanarImage[] srcs = { source };
            computeRect(srcs, dest, destRect);
        }
@@ -0,0 +1,115 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import static org.junit.Assert.assertEquals;
+import it.geosolutions.jaiext.roiaware.ROIClassifier.Coverage;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.SampleModel;
+
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
+import org.junit.Test;
+
+public class ROIClassifierTest {
+
+    /**
+     * A diamond inscribed in <code>[0, 100) x [0, 100)</code>.
+     */
+    private static ROI createPolygonROI() {
+        return new ROIShape(new Polygon(new int[] { 50, 100, 50, 0 }, new int[] { 0, 50, 100, 50 },
+                4));
+    }
+
+    /**
+     * The square <code>[20, 80) x [20, 80)</code> with a hole in <code>[45, 55) x [45, 55)</code>, over a 32x32 tiled image.
+     */
+    private static ROI createImageROI() {
+        final SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, 32, 32, 1);
+        final TiledImage image = new TiledImage(0, 0, 100, 100, 0, 0, sm, null);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 100; x++) {
+                final boolean inside = x >= 20 && x < 80 && y >= 20 && y < 80
+                        && !(x >= 45 && x < 55 && y >= 45 && y < 55);
+                image.setSample(x, y, 0, inside ? 255 : 0);
+            }
+        }
+        return new ROI(image);
+    }
+
+    @Test
+    public void testPolygonROI() {
+        final ROIClassifier classifier = new ROIClassifier(createPolygonROI());
+        assertEquals(Coverage.INSIDE, classifier.classify(new Rectangle(40, 40, 20, 20)));
+        assertEquals(Coverage.PARTIAL, classifier.classify(new Rectangle(80, 40, 30, 20)));
+        assertEquals(Coverage.PARTIAL, classifier.classify(new Rectangle(-10, -10, 120, 120)));
+        // inside the bounds of the ROI, outside of the polygon
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(0, 0, 10, 10)));
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(90, 90, 10, 10)));
+        // outside of the bounds and empty
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(200, 200, 10, 10)));
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(50, 50, 0, 0)));
+    }
+
+    @Test
+    public void testImageROI() {
+        final ROIClassifier classifier = new ROIClassifier(createImageROI());
+        assertEquals(Coverage.INSIDE, classifier.classify(new Rectangle(25, 25, 10, 10)));
+        // across the tiles of the ROI image
+        assertEquals(Coverage.INSIDE, classifier.classify(new Rectangle(20, 60, 60, 20)));
+        assertEquals(Coverage.PARTIAL, classifier.classify(new Rectangle(10, 10, 20, 20)));
+        assertEquals(Coverage.PARTIAL, classifier.classify(new Rectangle(40, 40, 10, 10)));
+        // in the hole and around the square
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(46, 46, 5, 5)));
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(0, 0, 15, 15)));
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(0, 85, 100, 15)));
+        // outside of the bounds and empty
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(-50, -50, 10, 10)));
+        assertEquals(Coverage.OUTSIDE, classifier.classify(new Rectangle(30, 30, 0, 5)));
+    }
+
+    @Test
+    public void testCache() {
+        final ROIClassifier classifier = new ROIClassifier(createPolygonROI());
+        final Rectangle area = new Rectangle(40, 40, 20, 20);
+        assertEquals(Coverage.INSIDE, classifier.classify(area));
+        assertEquals(Coverage.INSIDE, classifier.classify(area));
+
+        // the cached classification does not follow the changes of the provided rectangle
+        area.setBounds(0, 0, 10, 10);
+        assertEquals(Coverage.OUTSIDE, classifier.classify(area));
+        assertEquals(Coverage.INSIDE, classifier.classify(new Rectangle(40, 40, 20, 20)));
+
+        // still right once the cache has been cleared
+        for (int i = 0; i <= ROIClassifier.MAX_CACHED; i++) {
+            classifier.classify(new Rectangle(40 + i % 10, 40, 1 + i / 10, 1));
+        }
+        assertEquals(Coverage.INSIDE, classifier.classify(new Rectangle(40, 40, 20, 20)));
+        assertEquals(Coverage.PARTIAL, classifier.classify(new Rectangle(80, 40, 30, 20)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullROI() {
+        new ROIClassifier(null);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+import javax.media.jai.Interpolation;
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+
+import org.junit.Test;
+
+public class ROIMaskOpImageTest {
+
+    /**
+     * A polygon with non integer vertices, large enough to span several tiles of the mask.
+     */
+    private static ROI createPolygonROI() {
+        final Path2D.Double polygon = new Path2D.Double();
+        polygon.moveTo(10.3, 20.7);
+        polygon.lineTo(1100.6, 40.2);
+        polygon.lineTo(600.5, 300.5);
+        polygon.lineTo(900.5, 700.4);
+        polygon.lineTo(50.25, 650.75);
+        polygon.closePath();
+        return new ROIShape(polygon);
+    }
+
+    @Test
+    public void testRasterization() {
+        final ROI roi = createPolygonROI();
+        final ROIMaskOpImage mask = new ROIMaskOpImage(roi, null, null);
+        assertEquals(roi.getBounds(), mask.getBounds());
+
+        final Raster expected = roi.getAsImage().getData();
+        final Raster actual = mask.getData();
+        final Rectangle bounds = mask.getBounds();
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                final int inside = expected.getBounds().contains(x, y)
+                        && expected.getSample(x, y, 0) != 0 ? 1 : 0;
+                assertEquals("Pixel " + x + "," + y, inside, actual.getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testPadding() {
+        final ROI roi = createPolygonROI();
+        final Interpolation interp = Interpolation.getInstance(Interpolation.INTERP_BICUBIC);
+        final ROIMaskOpImage mask = new ROIMaskOpImage(roi, interp, null);
+        final Rectangle roiBounds = roi.getBounds();
+        final Rectangle bounds = mask.getBounds();
+        assertEquals(roiBounds.x - interp.getLeftPadding(), bounds.x);
+        assertEquals(roiBounds.y - interp.getTopPadding(), bounds.y);
+        assertEquals(roiBounds.width + interp.getLeftPadding() + interp.getRightPadding(),
+                bounds.width);
+        assertEquals(roiBounds.height + interp.getTopPadding() + interp.getBottomPadding(),
+                bounds.height);
+
+        final Raster data = mask.getData();
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (!roiBounds.contains(x, y)) {
+                    assertEquals("Pixel " + x + "," + y, 0, data.getSample(x, y, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSpanIndex() {
+        final ROIMaskOpImage mask = new ROIMaskOpImage(createPolygonROI(), null, null);
+        final Raster data = mask.getData();
+        final Rectangle bounds = mask.getBounds();
+
+        // the whole mask, across the tile boundaries, and an area straddling its bounds
+        final Rectangle[] areas = {
+                bounds,
+                new Rectangle(ROIMaskOpImage.DEFAULT_TILE_SIZE - 7, 30, 20, 400),
+                new Rectangle(bounds.x - 50, bounds.y - 50, 300, 300) };
+        for (Rectangle area : areas) {
+            final ROISpanIndex index = mask.getSpanIndex(area);
+            final Rectangle rect = area.intersection(bounds);
+            assertEquals(rect, index.getBounds());
+
+            // same spans as indexing a copy of the area
+            final ROISpanIndex copy = ROISpanIndex.create(data.createChild(rect.x, rect.y,
+                    rect.width, rect.height, rect.x, rect.y, null));
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                assertTrue("Row " + y, Arrays.equals(copy.getRow(y), index.getRow(y)));
+            }
+            for (int y = area.y - 1; y <= area.y + area.height; y++) {
+                for (int x = area.x - 1; x <= area.x + area.width; x++) {
+                    final boolean inside = area.contains(x, y) && bounds.contains(x, y)
+                            && data.getSample(x, y, 0) != 0;
+                    assertEquals("Pixel " + x + "," + y, inside, index.contains(x, y));
+                }
+            }
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                final int[] row = index.getRow(y);
+                for (int k = 2; k < row.length; k += 2) {
+                    // spans are merged across the tile boundaries
+                    assertTrue(row[k] > row[k - 1]);
+                }
+            }
+        }
+
+        final ROISpanIndex outside = mask.getSpanIndex(new Rectangle(bounds.x - 100,
+                bounds.y - 100, 50, 50));
+        assertFalse(outside.contains(bounds.x - 80, bounds.y - 80));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ROISpanIndexTest {
+
+    private static final int MIN_X = 10;
+
+    private static final int MIN_Y = 20;
+
+    /**
+     * A hand made mask, '#' being inside the ROI, placed at {@link #MIN_X}, {@link #MIN_Y}.
+     */
+    private static final String[] MASK = {
+            "..........", // empty row
+            "##########", // full row
+            "#...##...#", // spans touching the bounds
+            ".#.#.#.#.#", // adjacent single pixel spans
+            "...####...", // a single span
+            "..........", // empty row
+    };
+
+    private static ROISpanIndex createIndex() {
+        final WritableRaster mask = Raster.createBandedRaster(DataBuffer.TYPE_BYTE,
+                MASK[0].length(), MASK.length, 1, new Point(MIN_X, MIN_Y));
+        for (int y = 0; y < MASK.length; y++) {
+            for (int x = 0; x < MASK[y].length(); x++) {
+                // any non zero sample is inside
+                mask.setSample(MIN_X + x, MIN_Y + y, 0, MASK[y].charAt(x) == '#' ? 1 + x : 0);
+            }
+        }
+        return ROISpanIndex.create(mask);
+    }
+
+    private static void assertRow(final int[] expected, final int[] actual) {
+        assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+    }
+
+    @Test
+    public void testRows() {
+        final ROISpanIndex index = createIndex();
+        assertEquals(new Rectangle(MIN_X, MIN_Y, 10, 6), index.getBounds());
+        assertRow(new int[0], index.getRow(MIN_Y));
+        assertRow(new int[] { 10, 20 }, index.getRow(MIN_Y + 1));
+        assertRow(new int[] { 10, 11, 14, 16, 19, 20 }, index.getRow(MIN_Y + 2));
+        assertRow(new int[] { 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 }, index.getRow(MIN_Y + 3));
+        assertRow(new int[] { 13, 17 }, index.getRow(MIN_Y + 4));
+        assertRow(new int[0], index.getRow(MIN_Y + 5));
+
+        // rows outside the bounds
+        assertRow(new int[0], index.getRow(MIN_Y - 1));
+        assertRow(new int[0], index.getRow(MIN_Y + 6));
+        assertRow(new int[0], index.getRow(Integer.MIN_VALUE));
+        assertRow(new int[0], index.getRow(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testContains() {
+        final ROISpanIndex index = createIndex();
+        for (int y = MIN_Y - 2; y < MIN_Y + MASK.length + 2; y++) {
+            for (int x = MIN_X - 2; x < MIN_X + MASK[0].length() + 2; x++) {
+                final boolean inside = y >= MIN_Y && y < MIN_Y + MASK.length && x >= MIN_X
+                        && x < MIN_X + MASK[0].length()
+                        && MASK[y - MIN_Y].charAt(x - MIN_X) == '#';
+                assertEquals("Pixel " + x + "," + y, inside, index.contains(x, y));
+            }
+        }
+
+        // exactly at the span starts and ends, the latter being excluded
+        final int y = MIN_Y + 2;
+        assertTrue(index.contains(14, y));
+        assertTrue(index.contains(15, y));
+        assertFalse(index.contains(16, y));
+        assertTrue(index.contains(10, y));
+        assertFalse(index.contains(11, y));
+        assertTrue(index.contains(19, y));
+        assertFalse(index.contains(20, y));
+    }
+
+    @Test
+    public void testSpans() {
+        final ROISpanIndex index = createIndex();
+        final int[] spans = new int[16];
+
+        // the whole row
+        int size = index.getSpans(MIN_Y + 2, 0, 100, spans);
+        assertRow(new int[] { 10, 11, 14, 16, 19, 20 }, Arrays.copyOf(spans, size));
+
+        // segments starting and ending exactly at the span bounds
+        size = index.getSpans(MIN_Y + 2, 14, 16, spans);
+        assertRow(new int[] { 14, 16 }, Arrays.copyOf(spans, size));
+        size = index.getSpans(MIN_Y + 2, 11, 14, spans);
+        assertEquals(0, size);
+        size = index.getSpans(MIN_Y + 2, 16, 19, spans);
+        assertEquals(0, size);
+        size = index.getSpans(MIN_Y + 2, 10, 20, spans);
+        assertRow(new int[] { 10, 11, 14, 16, 19, 20 }, Arrays.copyOf(spans, size));
+
+        // clipped to the segment
+        size = index.getSpans(MIN_Y + 2, 15, 20, spans);
+        assertRow(new int[] { 15, 16, 19, 20 }, Arrays.copyOf(spans, size));
+        size = index.getSpans(MIN_Y + 4, 14, 15, spans);
+        assertRow(new int[] { 14, 15 }, Arrays.copyOf(spans, size));
+
+        // adjacent spans are kept apart
+        size = index.getSpans(MIN_Y + 3, 12, 16, spans);
+        assertRow(new int[] { 13, 14, 15, 16 }, Arrays.copyOf(spans, size));
+
+        // empty segments, empty rows and rows outside the bounds
+        assertEquals(0, index.getSpans(MIN_Y + 1, 15, 15, spans));
+        assertEquals(0, index.getSpans(MIN_Y + 1, 16, 15, spans));
+        assertEquals(0, index.getSpans(MIN_Y, 0, 100, spans));
+        assertEquals(0, index.getSpans(MIN_Y - 1, 0, 100, spans));
+        assertEquals(0, index.getSpans(MIN_Y + 6, 0, 100, spans));
+    }
+
+    @Test
+    public void testRunEnd() {
+        final ROISpanIndex index = createIndex();
+
+        // a single row
+        assertEquals(20, index.getRunEnd(10, MIN_Y + 1, 1));
+        assertEquals(20, index.getRunEnd(19, MIN_Y + 1, 1));
+        assertEquals(16, index.getRunEnd(14, MIN_Y + 2, 1));
+        assertEquals(16, index.getRunEnd(15, MIN_Y + 2, 1));
+
+        // not inside, at a span end
+        assertEquals(16, index.getRunEnd(16, MIN_Y + 2, 1));
+        assertEquals(20, index.getRunEnd(20, MIN_Y + 1, 1));
+
+        // the shortest run over the rows
+        assertEquals(16, index.getRunEnd(14, MIN_Y + 1, 2));
+        assertEquals(16, index.getRunEnd(15, MIN_Y + 1, 4));
+        assertEquals(16, index.getRunEnd(15, MIN_Y + 3, 1));
+        assertEquals(14, index.getRunEnd(14, MIN_Y + 3, 1));
+        assertEquals(14, index.getRunEnd(14, MIN_Y + 2, 3));
+
+        // through an empty row or outside the bounds
+        assertEquals(15, index.getRunEnd(15, MIN_Y, 2));
+        assertEquals(15, index.getRunEnd(15, MIN_Y + 4, 2));
+        assertEquals(15, index.getRunEnd(15, MIN_Y - 1, 3));
+    }
+
+    @Test
+    public void testEmptyMask() {
+        final WritableRaster mask = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 4, 3, 1,
+                new Point(-2, -1));
+        final ROISpanIndex index = ROISpanIndex.create(mask);
+        assertEquals(new Rectangle(-2, -1, 4, 3), index.getBounds());
+        for (int y = -1; y < 2; y++) {
+            assertRow(new int[0], index.getRow(y));
+            assertEquals(-2, index.getRunEnd(-2, y, 1));
+            for (int x = -2; x < 2; x++) {
+                assertFalse(index.contains(x, y));
+            }
+        }
+    }
+}
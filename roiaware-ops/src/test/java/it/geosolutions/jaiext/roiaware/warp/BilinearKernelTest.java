@@ -0,0 +1,202 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware.warp;
+
+import static org.junit.Assert.assertEquals;
+import it.geosolutions.jaiext.roiaware.ROISpanIndex;
+
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BilinearKernelTest {
+
+    /** The kernel with the default subsample bits of the JAI interpolations. */
+    private final BilinearKernel kernel = new BilinearKernel(8);
+
+    /**
+     * The double precision bilinear interpolation of four samples.
+     */
+    private static double reference(final int s00, final int s01, final int s10, final int s11,
+            final double xfrac, final double yfrac) {
+        final double s0 = s00 + (s01 - s00) * xfrac;
+        final double s1 = s10 + (s11 - s10) * xfrac;
+        return s0 + (s1 - s0) * yfrac;
+    }
+
+    private void assertKernel(final int s00, final int s01, final int s10, final int s11,
+            final int xfrac, final int yfrac) {
+        final double expected = reference(s00, s01, s10, s11, xfrac / (double) kernel.one, yfrac
+                / (double) kernel.one);
+        assertEquals(s00 + "," + s01 + "," + s10 + "," + s11 + " at " + xfrac + "," + yfrac,
+                expected, kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac), 1);
+    }
+
+    /**
+     * A 2x2 ROI at 10,20, over the neighbours of the position 10,20, inside where the mask holds 1.
+     */
+    private static ROISpanIndex createROI(final int i00, final int i01, final int i10,
+            final int i11) {
+        final WritableRaster mask = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 2, 2, 1,
+                new Point(10, 20));
+        mask.setSample(10, 20, 0, i00);
+        mask.setSample(11, 20, 0, i01);
+        mask.setSample(10, 21, 0, i10);
+        mask.setSample(11, 21, 0, i11);
+        return ROISpanIndex.create(mask);
+    }
+
+    /**
+     * Interpolates with the neighbours inside the provided ROI and checks the result against the double precision weighted mean of
+     * those neighbours.
+     */
+    private void assertWeighted(final ROISpanIndex roi, final int s00, final int s01,
+            final int s10, final int s11, final int xfrac, final int yfrac) {
+        final int[] weights = new int[4];
+        final int weightSum = kernel.getWeights(roi, 10, 20, xfrac, yfrac, weights);
+        final double fx = xfrac / (double) kernel.one;
+        final double fy = yfrac / (double) kernel.one;
+        final double w00 = roi.contains(10, 20) ? (1 - fx) * (1 - fy) : 0;
+        final double w01 = roi.contains(11, 20) ? fx * (1 - fy) : 0;
+        final double w10 = roi.contains(10, 21) ? (1 - fx) * fy : 0;
+        final double w11 = roi.contains(11, 21) ? fx * fy : 0;
+        final double sum = w00 + w01 + w10 + w11;
+        if (sum == 0) {
+            assertEquals(0, weightSum);
+            return;
+        }
+        final double expected = (s00 * w00 + s01 * w01 + s10 * w10 + s11 * w11) / sum;
+        assertEquals(xfrac + "," + yfrac, expected, BilinearKernel.interpolate(s00, s01, s10,
+                s11, weights, weightSum), 1);
+    }
+
+    @Test
+    public void testSubsampleBits() {
+        assertEquals(1, new BilinearKernel(0).subsampleBits);
+        assertEquals(2, new BilinearKernel(0).one);
+        assertEquals(5, new BilinearKernel(5).subsampleBits);
+        assertEquals(BilinearKernel.MAX_SUBSAMPLE_BITS, new BilinearKernel(32).subsampleBits);
+        assertEquals(1 << BilinearKernel.MAX_SUBSAMPLE_BITS, new BilinearKernel(32).one);
+    }
+
+    @Test
+    public void testByte() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            assertKernel(random.nextInt(256), random.nextInt(256), random.nextInt(256), random
+                    .nextInt(256), random.nextInt(kernel.one), random.nextInt(kernel.one));
+        }
+    }
+
+    @Test
+    public void testUShort() {
+        final Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            assertKernel(random.nextInt(65536), random.nextInt(65536), random.nextInt(65536),
+                    random.nextInt(65536), random.nextInt(kernel.one), random.nextInt(kernel.one));
+        }
+    }
+
+    @Test
+    public void testUShortOverflow() {
+        // the largest samples and fractions, whose fixed point sum does not fit in a signed int
+        final int max = 0xFFFF;
+        final int last = kernel.one - 1;
+        assertEquals(max, kernel.interpolate(max, max, max, max, last, last));
+        assertEquals(max, kernel.interpolate(max, max, max, max, 0, 0));
+        final int[][] corners = { { max, 0, 0, 0 }, { 0, max, 0, 0 }, { 0, 0, max, 0 },
+                { 0, 0, 0, max }, { 0, max, max, max }, { max, 0, max, max },
+                { max, max, 0, max }, { max, max, max, 0 } };
+        for (int[] c : corners) {
+            for (int xfrac : new int[] { 0, 1, last - 1, last }) {
+                for (int yfrac : new int[] { 0, 1, last - 1, last }) {
+                    assertKernel(c[0], c[1], c[2], c[3], xfrac, yfrac);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAllInside() {
+        // the weighted kernel matches the plain one
+        final ROISpanIndex roi = createROI(1, 1, 1, 1);
+        final Random random = new Random(0);
+        final int[] weights = new int[4];
+        for (int i = 0; i < 10000; i++) {
+            final int s00 = random.nextInt(65536);
+            final int s01 = random.nextInt(65536);
+            final int s10 = random.nextInt(65536);
+            final int s11 = random.nextInt(65536);
+            final int xfrac = random.nextInt(kernel.one);
+            final int yfrac = random.nextInt(kernel.one);
+            final int weightSum = kernel.getWeights(roi, 10, 20, xfrac, yfrac, weights);
+            assertEquals(kernel.one * kernel.one, weightSum);
+            assertEquals(kernel.interpolate(s00, s01, s10, s11, xfrac, yfrac), BilinearKernel
+                    .interpolate(s00, s01, s10, s11, weights, weightSum));
+        }
+    }
+
+    @Test
+    public void testPartiallyInside() {
+        // one, two and three neighbours inside, in all the arrangements
+        final Random random = new Random(0);
+        for (int inside = 1; inside < 15; inside++) {
+            final ROISpanIndex roi = createROI(inside & 1, (inside >> 1) & 1, (inside >> 2) & 1,
+                    (inside >> 3) & 1);
+            for (int i = 0; i < 2000; i++) {
+                assertWeighted(roi, random.nextInt(65536), random.nextInt(65536), random
+                        .nextInt(65536), random.nextInt(65536), random.nextInt(kernel.one),
+                        random.nextInt(kernel.one));
+            }
+            for (int xfrac : new int[] { 0, kernel.one - 1 }) {
+                for (int yfrac : new int[] { 0, kernel.one - 1 }) {
+                    assertWeighted(roi, 0xFFFF, 0xFFFF, 0xFFFF, 0xFFFF, xfrac, yfrac);
+                    assertWeighted(roi, 0, 0xFFFF, 0xFFFF, 0, xfrac, yfrac);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSingleNeighbourInside() {
+        // a single neighbour with a non zero weight gives its own value
+        final ROISpanIndex roi = createROI(0, 1, 0, 0);
+        final int[] weights = new int[4];
+        final int weightSum = kernel.getWeights(roi, 10, 20, 3, 5, weights);
+        assertEquals(3 * (kernel.one - 5), weightSum);
+        assertEquals(1234, BilinearKernel.interpolate(7, 1234, 65535, 0, weights, weightSum));
+    }
+
+    @Test
+    public void testZeroWeightSum() {
+        final int[] weights = new int[4];
+
+        // no neighbour inside
+        assertEquals(0, kernel.getWeights(createROI(0, 0, 0, 0), 10, 20, 100, 100, weights));
+
+        // the only neighbours inside are not looked at by the position
+        assertEquals(0, kernel.getWeights(createROI(0, 1, 0, 0), 10, 20, 0, 100, weights));
+        assertEquals(0, kernel.getWeights(createROI(0, 0, 1, 1), 10, 20, 100, 0, weights));
+        assertEquals(0, kernel.getWeights(createROI(0, 1, 1, 1), 10, 20, 0, 0, weights));
+
+        // outside of the indexed area
+        assertEquals(0, kernel.getWeights(createROI(1, 1, 1, 1), 30, 40, 100, 100, weights));
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *    JAI-Ext - OpenSource Java Advanced Image Extensions Library
+ *    http://www.geo-solutions.it/
+ *    (C) 2012, GeoSolutions
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    either version 3 of the License, or (at your option) any later version.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package it.geosolutions.jaiext.roiaware.warp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.jai.BorderExtender;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
+import javax.media.jai.InterpolationBilinear;
+import javax.media.jai.InterpolationNearest;
+import javax.media.jai.JAI;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.ROI;
+import javax.media.jai.ROIShape;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TileRecycler;
+import javax.media.jai.TiledImage;
+import javax.media.jai.Warp;
+import javax.media.jai.WarpAffine;
+
+import org.junit.Test;
+
+public class ROIAwareWarpTest {
+
+    static final int WIDTH = 200;
+
+    static final int HEIGHT = 150;
+
+    static final int TILE_SIZE = 64;
+
+    static final double[] BACKGROUND = { 3, 5, 7 };
+
+    static final Interpolation[] INTERPOLATIONS = {
+            Interpolation.getInstance(Interpolation.INTERP_NEAREST),
+            Interpolation.getInstance(Interpolation.INTERP_BILINEAR),
+            Interpolation.getInstance(Interpolation.INTERP_BICUBIC) };
+
+    static final int[] DATA_TYPES = { DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT };
+
+    /**
+     * A tiled, three bands, source whose samples span the whole range of the data type.
+     */
+    static TiledImage createSource(final int dataType) {
+        final SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(dataType,
+                TILE_SIZE, TILE_SIZE, 3);
+        final TiledImage image = new TiledImage(0, 0, WIDTH, HEIGHT, 0, 0, sm,
+                PlanarImage.createColorModel(sm));
+        final int mask = dataType == DataBuffer.TYPE_BYTE ? 0xFF : 0xFFFF;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                for (int b = 0; b < 3; b++) {
+                    image.setSample(x, y, b, (x * 331 + y * 173 + b * 10007) & mask);
+                }
+            }
+        }
+        return image;
+    }
+
+    static Warp createWarp() {
+        // dest to source, rotated, sheared and shifted so that the borders are read
+        return new WarpAffine(new AffineTransform(0.9, 0.12, -0.15, 1.1, 5.3, -7.7));
+    }
+
+    static ROIAwareWarpOpImage warp(final RenderedImage source, final Interpolation interp,
+            final BorderExtender extender, final ROI roi) {
+        return warp(source, interp, extender, roi, new ImageLayout(0, 0, WIDTH, HEIGHT, 0, 0,
+                TILE_SIZE, TILE_SIZE, null, null));
+    }
+
+    static ROIAwareWarpOpImage warp(final RenderedImage source, final Interpolation interp,
+            final BorderExtender extender, final ROI roi, final ImageLayout layout) {
+        return warp(source, interp, extender, roi, layout, null);
+    }
+
+    static ROIAwareWarpOpImage warp(final RenderedImage source, final Interpolation interp,
+            final BorderExtender extender, final ROI roi, final ImageLayout layout,
+            final Map<?, ?> config) {
+        final Warp warp = createWarp();
+        if (interp instanceof InterpolationNearest) {
+            return new ROIAwareWarpNearestOpImage(source, config, layout, warp, interp,
+                    BACKGROUND, roi);
+        } else if (interp instanceof InterpolationBilinear) {
+            return new ROIAwareWarpBilinearOpImage(source, extender, config, layout, warp, interp,
+                    BACKGROUND, roi);
+        } else {
+            return new ROIAwareWarpGeneralOpImage(source, extender, config, layout, warp, interp,
+                    BACKGROUND, roi);
+        }
+    }
+
+    static BorderExtender[] extenders(final Interpolation interp) {
+        // the nearest neighbour warp takes no extender
+        if (interp instanceof InterpolationNearest) {
+            return new BorderExtender[] { null };
+        }
+        return new BorderExtender[] { null,
+                BorderExtender.createInstance(BorderExtender.BORDER_COPY) };
+    }
+
+    static void assertSameSamples(final String message, final RenderedImage expected,
+            final RenderedImage actual) {
+        final Raster e = expected.getData();
+        final Raster a = actual.getData();
+        assertEquals(message, e.getBounds(), a.getBounds());
+        assertEquals(message, e.getNumBands(), a.getNumBands());
+        final Rectangle bounds = e.getBounds();
+        for (int b = 0; b < e.getNumBands(); b++) {
+            final double[] es = e.getSamples(bounds.x, bounds.y, bounds.width, bounds.height, b,
+                    (double[]) null);
+            final double[] as = a.getSamples(bounds.x, bounds.y, bounds.width, bounds.height, b,
+                    (double[]) null);
+            for (int i = 0; i < es.length; i++) {
+                if (es[i] != as[i]) {
+                    assertEquals(message + ", pixel " + (bounds.x + i % bounds.width) + ","
+                            + (bounds.y + i / bounds.width) + ", band " + b, es[i], as[i], 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * A ROI made of an image, 255 over the provided area.
+     */
+    static ROI createImageROI(final Rectangle area) {
+        final SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 1);
+        final TiledImage image = new TiledImage(area.x, area.y, area.width, area.height, 0, 0,
+                sm, null);
+        for (int y = area.y; y < area.y + area.height; y++) {
+            for (int x = area.x; x < area.x + area.width; x++) {
+                image.setSample(x, y, 0, 255);
+            }
+        }
+        return new ROI(image);
+    }
+
+    /**
+     * A polygon with non integer vertices, partially covering the source.
+     */
+    static ROI createPolygonROI() {
+        final Path2D.Double polygon = new Path2D.Double();
+        polygon.moveTo(20.3, 10.7);
+        polygon.lineTo(170.6, 30.2);
+        polygon.lineTo(120.5, 90.5);
+        polygon.lineTo(190.5, 140.4);
+        polygon.lineTo(30.25, 120.75);
+        polygon.closePath();
+        return new ROIShape(polygon);
+    }
+
+    /**
+     * Warps through the cobbled sources and through the iterators, checking that the results are the same.
+     */
+    static void assertSamePaths(final String message, final RenderedImage source,
+            final Interpolation interp, final BorderExtender extender, final ROI roi,
+            final ImageLayout layout) {
+        final ROIAwareWarpOpImage cobbled = warp(source, interp, extender, roi, layout);
+        final ROIAwareWarpOpImage iterated = warp(source, interp, extender, roi, layout);
+        iterated.maxCobbledBytes = 0;
+        assertSameSamples(message, cobbled, iterated);
+    }
+
+    @Test
+    public void testCobbledEquivalence() {
+        final ROI[] rois = { null, createPolygonROI(),
+                createImageROI(new Rectangle(40, -10, 100, 120)) };
+        final ImageLayout layout = new ImageLayout(0, 0, WIDTH, HEIGHT, 0, 0, TILE_SIZE,
+                TILE_SIZE, null, null);
+        for (int dataType : DATA_TYPES) {
+            final TiledImage source = createSource(dataType);
+            for (Interpolation interp : INTERPOLATIONS) {
+                for (BorderExtender extender : extenders(interp)) {
+                    for (ROI roi : rois) {
+                        final String message = "Data type " + dataType + ", "
+                                + interp.getClass().getSimpleName() + ", extender " + extender
+                                + ", ROI " + roi;
+                        assertSamePaths(message, source, interp, extender, roi, layout);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCobbledEquivalenceIndexColorModel() {
+        // a palette source, expanded to RGB but for the nearest neighbour
+        final byte[] reds = new byte[256];
+        final byte[] greens = new byte[256];
+        final byte[] blues = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            reds[i] = (byte) i;
+            greens[i] = (byte) (255 - i);
+            blues[i] = (byte) (i * 7);
+        }
+        final SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 1);
+        final IndexColorModel icm = new IndexColorModel(8, 256, reds, greens, blues);
+        final TiledImage source = new TiledImage(0, 0, WIDTH, HEIGHT, 0, 0, sm, icm);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                source.setSample(x, y, 0, (x * 331 + y * 173) & 0xFF);
+            }
+        }
+
+        final SampleModel rgb = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, TILE_SIZE, TILE_SIZE, 3);
+        final ImageLayout expanded = new ImageLayout(0, 0, WIDTH, HEIGHT, 0, 0, TILE_SIZE,
+                TILE_SIZE, rgb, PlanarImage.createColorModel(rgb));
+        final ImageLayout indexed = new ImageLayout(0, 0, WIDTH, HEIGHT, 0, 0, TILE_SIZE,
+                TILE_SIZE, sm, icm);
+        final ROI[] rois = { null, createPolygonROI() };
+        for (Interpolation interp : INTERPOLATIONS) {
+            final ImageLayout layout = interp instanceof InterpolationNearest ? indexed
+                    : expanded;
+            for (BorderExtender extender : extenders(interp)) {
+                for (ROI roi : rois) {
+                    final String message = interp.getClass().getSimpleName() + ", extender "
+                            + extender + ", ROI " + roi;
+                    assertSamePaths(message, source, interp, extender, roi, layout);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecycling() {
+        // a single source tile, so that most of the footprints lie inside it
+        final SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, WIDTH, HEIGHT, 3);
+        final TiledImage source = new TiledImage(0, 0, WIDTH, HEIGHT, 0, 0, sm,
+                PlanarImage.createColorModel(sm));
+        source.setData(createSource(DataBuffer.TYPE_BYTE).getData());
+        final DataBuffer sourceBuffer = source.getTile(0, 0).getDataBuffer();
+
+        // a recycler reusing the recycled rasters right away, as the next tile created would
+        final List<Raster> recycled = new ArrayList<Raster>();
+        final TileRecycler recycler = new TileRecycler() {
+            public void recycleTile(final Raster tile) {
+                recycled.add(tile);
+                final DataBuffer buffer = tile.getDataBuffer();
+                for (int i = 0; i < buffer.getSize(); i++) {
+                    buffer.setElem(i, 0xFF);
+                }
+            }
+        };
+        final RenderingHints hints = new RenderingHints(JAI.KEY_TILE_RECYCLER, recycler);
+        final ImageLayout layout = new ImageLayout(0, 0, WIDTH, HEIGHT, 0, 0, TILE_SIZE,
+                TILE_SIZE, null, null);
+        for (Interpolation interp : INTERPOLATIONS) {
+            for (BorderExtender extender : extenders(interp)) {
+                final String message = interp.getClass().getSimpleName() + ", extender "
+                        + extender;
+                final RenderedImage expected = warp(source, interp, extender, null, layout);
+                final RenderedImage actual = warp(source, interp, extender, null, layout, hints);
+                assertSameSamples(message, expected, actual);
+                for (Raster raster : recycled) {
+                    assertNotSame(message, sourceBuffer, raster.getDataBuffer());
+                }
+                recycled.clear();
+            }
+        }
+    }
+
+    @Test
+    public void testROIContainingImage() {
+        // larger than the source by more than any interpolation padding
+        final Rectangle area = new Rectangle(-20, -20, WIDTH + 40, HEIGHT + 40);
+        final ROI[] rois = { new ROIShape(area), createImageROI(area) };
+        for (int dataType : DATA_TYPES) {
+            final TiledImage source = createSource(dataType);
+            for (Interpolation interp : INTERPOLATIONS) {
+                for (BorderExtender extender : extenders(interp)) {
+                    final RenderedImage expected = warp(source, interp, extender, null);
+                    for (ROI roi : rois) {
+                        final String message = "Data type " + dataType + ", "
+                                + interp.getClass().getSimpleName() + ", extender " + extender
+                                + ", " + roi.getClass().getSimpleName();
+                        assertSameSamples(message, expected, warp(source, interp, extender, roi));
+                    }
+                }
+            }
+        }
+    }
+}